@@ -15,18 +15,25 @@
  */
 package jp.xet.sparwings.common.filters;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Base64.Encoder;
-import java.util.Collection;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -45,7 +52,6 @@ import javax.servlet.http.HttpServletResponseWrapper;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
-import lombok.experimental.Delegate;
 import lombok.extern.slf4j.Slf4j;
 
 import org.springframework.http.HttpStatus;
@@ -54,7 +60,17 @@ import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 
 /**
- * TODO for daisuke
+ * Servlet filter implementation which dump every HTTP request and response.
+ * 
+ * <p>Nothing is captured unless the trace level is enabled for {@link #MARKER}. Captured requests and responses are
+ * formatted and logged by a background thread, through a queue of {@link #setQueueCapacity(int) queueCapacity}.
+ * When the queue is full, dumps are dropped and counted by {@link #getDroppedCount()}, not to slow down requests.</p>
+ * 
+ * <p>Bodies are streamed through to the handler and the client as they are, and only the first
+ * {@link #setMaxCaptureBytes(int) maxCaptureBytes} of them are copied for the dump. The request body is dumped as far
+ * as the handler reads it. When the body is truncated, its whole length is dumped as
+ * {@code HttpDumpFilter-Body-Length}. Note that form parameters read by {@link ServletRequest#getParameter(String)}
+ * are not dumped, since the container parses the body without going through the filter.</p>
  * 
  * <pre><code>
  * &lt;filter class="ch.qos.logback.core.filter.EvaluatorFilter">
@@ -119,6 +135,32 @@ public class HttpDumpFilter implements Filter {
 	@Getter
 	private boolean dumpResponse = true;
 	
+	/**
+	 * Max number of dumps waiting to be written, beyond which dumps are dropped. Effective only before the first dump.
+	 * 
+	 * @since 0.38
+	 */
+	@Setter
+	@Getter
+	private int queueCapacity = 1024;
+	
+	/**
+	 * Max number of bytes of each request and response body to capture. The rest is passed through without copied.
+	 * 
+	 * @since 0.38
+	 */
+	@Setter
+	@Getter
+	private int maxCaptureBytes = 16 * 1024;
+	
+	private final AtomicLong droppedCount = new AtomicLong();
+	
+	private volatile BlockingQueue<Exchange> queue;
+	
+	private Thread writer;
+	
+	private volatile boolean destroyed;
+	
 	
 	@Override
 	public void init(FilterConfig filterConfig) throws ServletException {
@@ -128,89 +170,190 @@ public class HttpDumpFilter implements Filter {
 	@Override
 	public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain)
 			throws IOException, ServletException {
-		BufferedRequestWrapper bufferedRequest = new BufferedRequestWrapper((HttpServletRequest) servletRequest);
+		if ((dumpRequest == false && dumpResponse == false) || log.isTraceEnabled(MARKER) == false) {
+			filterChain.doFilter(servletRequest, servletResponse);
+			return;
+		}
 		
-		StringBuilder sb = new StringBuilder();
+		HttpServletRequest request = (HttpServletRequest) servletRequest;
+		HttpServletResponse response = (HttpServletResponse) servletResponse;
+		Exchange exchange = new Exchange();
+		TeeRequestWrapper teeRequest = null;
+		TeeResponseWrapper teeResponse = null;
 		if (dumpRequest) {
-			dumpRequest(bufferedRequest, sb);
+			captureRequest(request, exchange);
+			teeRequest = new TeeRequestWrapper(request, maxCaptureBytes);
+		}
+		if (dumpResponse) {
+			teeResponse = new TeeResponseWrapper(response, maxCaptureBytes);
 		}
 		
-		final HttpServletResponse response = (HttpServletResponse) servletResponse;
-		final ByteArrayPrintWriter pw = new ByteArrayPrintWriter();
-		HttpServletResponse wrappedResp = new HttpServletResponseWrapper(response) {
-			
-			@Override
-			public PrintWriter getWriter() {
-				return pw.getWriter();
-			}
-			
-			@Override
-			public ServletOutputStream getOutputStream() {
-				return pw.getStream();
+		try {
+			filterChain.doFilter(teeRequest != null ? teeRequest : request,
+					teeResponse != null ? teeResponse : response);
+		} finally {
+			if (teeResponse != null) {
+				teeResponse.flushWriter();
 			}
-		};
-		
-		filterChain.doFilter(bufferedRequest, wrappedResp);
-		
-		byte[] bytes = pw.toByteArray();
-		response.getOutputStream().write(bytes);
-		
-		if (dumpRequest && dumpResponse) {
-			sb.append("---").append(NL);
 		}
-		if (dumpResponse) {
-			dumpResponse(wrappedResp, bytes, sb);
-		}
-		if (dumpRequest || dumpResponse) {
-			log.trace(MARKER, sb.toString());
+		
+		if (request.isAsyncStarted()) {
+			// the body is not completed yet
+			request.getAsyncContext().addListener(new CompletionListener(exchange, teeRequest, teeResponse));
+		} else {
+			complete(exchange, teeRequest, teeResponse);
 		}
 	}
 	
-	private void dumpRequest(BufferedRequestWrapper bufferedRequest, StringBuilder sb) {
-		sb.append(bufferedRequest.getMethod()).append(' ')
-			.append(buildRequestUrl(bufferedRequest))
-			.append(NL);
-		
-		Enumeration<String> requestHeaderNames = bufferedRequest.getHeaderNames();
+	/**
+	 * Returns the number of dumps dropped because the queue is full.
+	 * 
+	 * @return the number of dumps
+	 * @since 0.38
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	private static void captureRequest(HttpServletRequest request, Exchange exchange) {
+		exchange.method = request.getMethod();
+		exchange.url = buildRequestUrl(request);
+		exchange.requestHeaders = new ArrayList<>();
+		Enumeration<String> requestHeaderNames = request.getHeaderNames();
 		while (requestHeaderNames.hasMoreElements()) {
 			String headerName = requestHeaderNames.nextElement();
-			Enumeration<String> headers = bufferedRequest.getHeaders(headerName);
+			Enumeration<String> headers = request.getHeaders(headerName);
 			while (headers.hasMoreElements()) {
-				String value = headers.nextElement();
-				sb.append(headerName).append(": ").append(value).append(NL);
+				exchange.requestHeaders.add(headerName);
+				exchange.requestHeaders.add(headers.nextElement());
 			}
 		}
-		byte[] buffer = bufferedRequest.getBuffer();
-		if (buffer.length > 0) {
-			if (buffer.length <= 256 && isPrintable(buffer)) {
-				sb.append(NL);
-				sb.append(new String(buffer, StandardCharsets.UTF_8)).append(NL);
-			} else {
-				sb.append("HttpDumpFilter-Body-Encoding: b64").append(NL);
-				sb.append(NL);
-				sb.append(ENCODER.encodeToString(buffer)).append(NL);
+	}
+	
+	private static void captureResponse(HttpServletResponse response, Exchange exchange) {
+		exchange.status = response.getStatus();
+		exchange.responseHeaders = new ArrayList<>();
+		for (String headerName : response.getHeaderNames()) {
+			for (String value : response.getHeaders(headerName)) {
+				exchange.responseHeaders.add(headerName);
+				exchange.responseHeaders.add(value);
 			}
 		}
 	}
 	
-	private void dumpResponse(HttpServletResponse response, byte[] buffer, StringBuilder sb) {
-		int status = response.getStatus();
-		sb.append(status).append(' ').append(HttpStatus.valueOf(status).getReasonPhrase()).append(NL);
-		
-		Collection<String> responseHeaderNames = response.getHeaderNames();
-		for (String headerName : responseHeaderNames) {
-			Collection<String> headers = response.getHeaders(headerName);
-			for (String value : headers) {
-				sb.append(headerName).append(": ").append(value).append(NL);
+	private void complete(Exchange exchange, TeeRequestWrapper teeRequest, TeeResponseWrapper teeResponse) {
+		if (teeRequest != null) {
+			exchange.requestBody = teeRequest.capture.toByteArray();
+			exchange.requestLength = teeRequest.capture.length;
+		}
+		if (teeResponse != null) {
+			captureResponse((HttpServletResponse) teeResponse.getResponse(), exchange);
+			exchange.responseBody = teeResponse.capture.toByteArray();
+			exchange.responseLength = teeResponse.capture.length;
+		}
+		enqueue(exchange);
+	}
+	
+	private void enqueue(Exchange exchange) {
+		BlockingQueue<Exchange> q = queue;
+		if (q == null) {
+			q = startWriter();
+			if (q == null) {
+				log.debug("HTTP dump filter is destroyed, dump is discarded");
+				return;
 			}
 		}
-		
+		if (q.offer(exchange) == false) {
+			droppedCount.incrementAndGet();
+		}
+	}
+	
+	private synchronized BlockingQueue<Exchange> startWriter() {
+		if (destroyed) {
+			return null; // never revive the writer
+		}
+		if (queue == null) {
+			BlockingQueue<Exchange> q = new ArrayBlockingQueue<>(queueCapacity);
+			writer = new Thread(() -> write(q), "http-dump-writer");
+			writer.setDaemon(true);
+			writer.start();
+			queue = q;
+		}
+		return queue;
+	}
+	
+	private void write(BlockingQueue<Exchange> q) {
+		long reportedDroppedCount = 0;
+		boolean running = true;
+		while (running || q.isEmpty() == false) {
+			Exchange exchange;
+			try {
+				exchange = running ? q.take() : q.poll();
+			} catch (InterruptedException e) {
+				running = false; // write the rest, then exit
+				continue;
+			}
+			if (exchange == null) {
+				continue;
+			}
+			long dropped = droppedCount.get();
+			if (dropped != reportedDroppedCount) {
+				log.trace(MARKER, "{} dumps dropped", dropped - reportedDroppedCount);
+				reportedDroppedCount = dropped;
+			}
+			try {
+				log.trace(MARKER, format(exchange));
+			} catch (RuntimeException e) { // NOPMD - cc
+				log.warn("Failed to dump", e);
+			}
+		}
+	}
+	
+	private static String format(Exchange exchange) {
+		StringBuilder sb = new StringBuilder();
+		if (exchange.method != null) {
+			dumpRequest(exchange, sb);
+		}
+		if (exchange.method != null && exchange.responseHeaders != null) {
+			sb.append("---").append(NL);
+		}
+		if (exchange.responseHeaders != null) {
+			dumpResponse(exchange, sb);
+		}
+		return sb.toString();
+	}
+	
+	private static void dumpRequest(Exchange exchange, StringBuilder sb) {
+		sb.append(exchange.method).append(' ')
+			.append(exchange.url)
+			.append(NL);
+		appendHeaders(exchange.requestHeaders, sb);
+		appendBody(exchange.requestBody, exchange.requestLength, "b64", sb);
+	}
+	
+	private static void dumpResponse(Exchange exchange, StringBuilder sb) {
+		int status = exchange.status;
+		sb.append(status).append(' ').append(HttpStatus.valueOf(status).getReasonPhrase()).append(NL);
+		appendHeaders(exchange.responseHeaders, sb);
+		appendBody(exchange.responseBody, exchange.responseLength, "base64", sb);
+	}
+	
+	private static void appendHeaders(List<String> headers, StringBuilder sb) {
+		for (int i = 0; i < headers.size(); i += 2) {
+			sb.append(headers.get(i)).append(": ").append(headers.get(i + 1)).append(NL);
+		}
+	}
+	
+	private static void appendBody(byte[] buffer, long length, String encodingName, StringBuilder sb) {
+		if (length > buffer.length) {
+			sb.append("HttpDumpFilter-Body-Length: ").append(length).append(NL);
+		}
 		if (buffer.length > 0) {
 			if (buffer.length <= 256 && isPrintable(buffer)) {
 				sb.append(NL);
 				sb.append(new String(buffer, StandardCharsets.UTF_8)).append(NL);
 			} else {
-				sb.append("HttpDumpFilter-Body-Encoding: base64").append(NL);
+				sb.append("HttpDumpFilter-Body-Encoding: ").append(encodingName).append(NL);
 				sb.append(NL);
 				sb.append(ENCODER.encodeToString(buffer)).append(NL);
 			}
@@ -218,107 +361,291 @@ public class HttpDumpFilter implements Filter {
 	}
 	
 	@Override
-	public void destroy() {
-		// do nothing
+	public synchronized void destroy() {
+		destroyed = true;
+		if (writer != null) {
+			writer.interrupt(); // writes the queued dumps, then exits
+			writer = null;
+			queue = null;
+		}
 	}
 	
 	
+	/**
+	 * Snapshot of request and response captured on the request thread, to be formatted by the writer thread.
+	 */
+	private static class Exchange {
+		
+		private String method;
+		
+		private String url;
+		
+		/** Names and values of headers, alternately */
+		private List<String> requestHeaders;
+		
+		private byte[] requestBody;
+		
+		/** Length of the whole request body, which may exceed the captured one */
+		private long requestLength;
+		
+		private int status;
+		
+		/** Names and values of headers alternately, or {@code null} if the response is not dumped */
+		private List<String> responseHeaders;
+		
+		private byte[] responseBody;
+		
+		/** Length of the whole response body, which may exceed the captured one */
+		private long responseLength;
+	}
+	
+	/**
+	 * Buffer to keep the head of a body up to the limit, and to count the length of the whole body.
+	 */
+	private static class Capture {
+		
+		private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		
+		private final int limit;
+		
+		private long length;
+		
+		
+		Capture(int limit) {
+			this.limit = limit;
+		}
+		
+		void write(int b) {
+			if (head.size() < limit) {
+				head.write(b);
+			}
+			length++;
+		}
+		
+		void write(byte[] b, int off, int len) {
+			int n = Math.min(len, limit - head.size());
+			if (n > 0) {
+				head.write(b, off, n);
+			}
+			length += len;
+		}
+		
+		byte[] toByteArray() {
+			return head.toByteArray();
+		}
+	}
+	
 	@RequiredArgsConstructor
-	private static class ByteArrayServletStream extends ServletOutputStream {
+	private static class TeeServletInputStream extends ServletInputStream {
+		
+		final ServletInputStream in;
+		
+		final Capture capture;
+		
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				capture.write(b);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				capture.write(b, off, n);
+			}
+			return n;
+		}
 		
-		final ByteArrayOutputStream baos;
+		@Override
+		public int available() throws IOException {
+			return in.available();
+		}
 		
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
 		
 		@Override
-		public void write(int param) throws IOException {
-			baos.write(param);
+		public boolean isFinished() {
+			return in.isFinished();
 		}
 		
 		@Override
 		public boolean isReady() {
-			return false;
+			return in.isReady();
 		}
 		
 		@Override
-		public void setWriteListener(WriteListener writeListener) {
-			// do nothing
+		public void setReadListener(ReadListener readListener) {
+			in.setReadListener(readListener);
 		}
 	}
 	
-	private static class ByteArrayPrintWriter {
+	@RequiredArgsConstructor
+	private static class TeeServletOutputStream extends ServletOutputStream {
 		
-		private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final ServletOutputStream out;
 		
-		@Getter
-		private PrintWriter writer = new PrintWriter(new OutputStreamWriter(baos, StandardCharsets.UTF_8), false);
+		final Capture capture;
 		
-		@Getter
-		private ServletOutputStream stream = new ByteArrayServletStream(baos);
 		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			capture.write(b);
+		}
 		
-		byte[] toByteArray() {
-			return baos.toByteArray();
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			capture.write(b, off, len);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+		
+		@Override
+		public boolean isReady() {
+			return out.isReady();
+		}
+		
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			out.setWriteListener(writeListener);
 		}
 	}
 	
-	@RequiredArgsConstructor
-	private static class BufferedServletInputStream extends ServletInputStream {
+	/**
+	 * Request wrapper to copy the head of the body while it is read by the handler.
+	 */
+	private static class TeeRequestWrapper extends HttpServletRequestWrapper {
 		
-		@Delegate
-		final ByteArrayInputStream bais;
+		final Capture capture;
 		
+		private ServletInputStream inputStream;
 		
-		@Override
-		public boolean isFinished() {
-			return false;
+		private BufferedReader reader;
+		
+		
+		TeeRequestWrapper(HttpServletRequest request, int maxCaptureBytes) {
+			super(request);
+			capture = new Capture(maxCaptureBytes);
 		}
 		
 		@Override
-		public boolean isReady() {
-			return false;
+		public ServletInputStream getInputStream() throws IOException {
+			if (inputStream == null) {
+				inputStream = new TeeServletInputStream(super.getInputStream(), capture);
+			}
+			return inputStream;
 		}
 		
 		@Override
-		public void setReadListener(ReadListener readListener) {
-			// do nothing
+		public BufferedReader getReader() throws IOException {
+			if (reader == null) {
+				String encoding = getCharacterEncoding();
+				Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.ISO_8859_1;
+				reader = new BufferedReader(new InputStreamReader(getInputStream(), charset));
+			}
+			return reader;
 		}
 	}
 	
-	private static class BufferedRequestWrapper extends HttpServletRequestWrapper {
+	/**
+	 * Response wrapper to copy the head of the body while it is written through to the client.
+	 */
+	private static class TeeResponseWrapper extends HttpServletResponseWrapper {
 		
-		ByteArrayInputStream bais;
+		final Capture capture;
 		
-		ByteArrayOutputStream baos;
+		private ServletOutputStream outputStream;
 		
-		BufferedServletInputStream bsis;
+		private PrintWriter writer;
 		
-		@Getter
-		byte[] buffer;
 		
+		TeeResponseWrapper(HttpServletResponse response, int maxCaptureBytes) {
+			super(response);
+			capture = new Capture(maxCaptureBytes);
+		}
 		
-		BufferedRequestWrapper(HttpServletRequest req) throws IOException {
-			super(req);
-			try (InputStream is = req.getInputStream()) {
-				baos = new ByteArrayOutputStream();
-				byte[] buf = new byte[1024];
-				int letti;
-				while ((letti = is.read(buf)) > 0) {
-					baos.write(buf, 0, letti);
-				}
-				buffer = baos.toByteArray();
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (outputStream == null) {
+				outputStream = new TeeServletOutputStream(super.getOutputStream(), capture);
 			}
+			return outputStream;
 		}
 		
 		@Override
-		public ServletInputStream getInputStream() {
-			try {
-				bais = new ByteArrayInputStream(buffer);
-				bsis = new BufferedServletInputStream(bais);
-			} catch (Exception e) { // NOPMD
-				log.error("unexpected", e);
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				String encoding = getCharacterEncoding();
+				Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.ISO_8859_1;
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), charset), false);
+			}
+			return writer;
+		}
+		
+		@Override
+		public void flushBuffer() throws IOException {
+			flushWriter();
+			super.flushBuffer();
+		}
+		
+		/**
+		 * Flush characters encoded by the writer, which the container does not know.
+		 */
+		void flushWriter() {
+			if (writer != null) {
+				writer.flush();
 			}
-			
-			return bsis;
+		}
+	}
+	
+	/**
+	 * Listener to dump asynchronously processed request on completion.
+	 */
+	@RequiredArgsConstructor
+	private class CompletionListener implements AsyncListener {
+		
+		final Exchange exchange;
+		
+		final TeeRequestWrapper teeRequest;
+		
+		final TeeResponseWrapper teeResponse;
+		
+		
+		@Override
+		public void onComplete(AsyncEvent event) {
+			complete(exchange, teeRequest, teeResponse);
+		}
+		
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			// dumped on completion
+		}
+		
+		@Override
+		public void onError(AsyncEvent event) {
+			// dumped on completion
+		}
+		
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// do nothing
 		}
 	}
 }
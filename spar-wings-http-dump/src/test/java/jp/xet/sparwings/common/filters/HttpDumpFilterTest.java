@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.common.filters;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletResponse;
+
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+
+/**
+ * Test for {@link HttpDumpFilter}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class HttpDumpFilterTest {
+	
+	private static final long TIMEOUT_MILLIS = 5000;
+	
+	private static final String NL = System.getProperty("line.separator");
+	
+	Logger logger = (Logger) LoggerFactory.getLogger(HttpDumpFilter.class);
+	
+	BlockingAppender appender = new BlockingAppender();
+	
+	HttpDumpFilter sut = new HttpDumpFilter();
+	
+	
+	@Before
+	public void setUp() {
+		appender.start();
+		logger.addAppender(appender);
+		logger.setLevel(Level.TRACE);
+	}
+	
+	@After
+	public void tearDown() {
+		appender.release();
+		sut.destroy();
+		logger.detachAppender(appender);
+		logger.setLevel(null);
+	}
+	
+	@Test
+	public void testBypassWhenTraceIsDisabled() throws Exception {
+		// setup
+		logger.setLevel(Level.DEBUG);
+		MockHttpServletRequest request = newRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain();
+		// exercise
+		sut.doFilter(request, response, chain);
+		// verify
+		assertThat(chain.getRequest(), is(sameInstance(request)));
+		assertThat(chain.getResponse(), is(sameInstance(response)));
+		assertThat(appender.getDumps(), is(empty()));
+	}
+	
+	@Test
+	public void testDumpsAreDroppedWhenQueueIsFull() throws Exception {
+		// setup
+		sut.setQueueCapacity(1);
+		appender.block();
+		dump(); // taken by the blocked writer
+		assertThat(appender.awaitEntered(), is(true));
+		// exercise
+		dump(); // queued
+		dump(); // dropped
+		// verify
+		assertThat(sut.getDroppedCount(), is(1L));
+		appender.release();
+		assertThat(appender.awaitDumps(2), hasSize(2));
+	}
+	
+	@Test
+	public void testQueuedDumpsAreWrittenOnDestroy() throws Exception {
+		// setup
+		appender.block();
+		dump();
+		assertThat(appender.awaitEntered(), is(true));
+		dump();
+		dump();
+		// exercise
+		sut.destroy();
+		appender.release();
+		// verify
+		assertThat(appender.awaitDumps(3), hasSize(3));
+	}
+	
+	@Test
+	public void testDumpAfterDestroyIsDiscarded() throws Exception {
+		// setup
+		dump();
+		assertThat(appender.awaitDumps(1), hasSize(1));
+		sut.destroy();
+		// exercise
+		dump();
+		// verify
+		Thread.sleep(100);
+		assertThat(appender.getDumps(), hasSize(1));
+		assertThat(sut.getDroppedCount(), is(0L));
+	}
+	
+	@Test
+	public void testBodiesLargerThanCaptureArePassedThrough() throws Exception {
+		// setup
+		sut.setMaxCaptureBytes(4);
+		MockHttpServletRequest request = newRequest();
+		request.setContent("hello world".getBytes(StandardCharsets.UTF_8));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		AtomicReference<byte[]> read = new AtomicReference<>();
+		// exercise
+		sut.doFilter(request, response, (req, res) -> {
+			read.set(StreamUtils.copyToByteArray(req.getInputStream()));
+			res.getOutputStream().write("goodbye world".getBytes(StandardCharsets.UTF_8));
+		});
+		// verify
+		assertThat(new String(read.get(), StandardCharsets.UTF_8), is("hello world"));
+		assertThat(response.getContentAsString(), is("goodbye world"));
+	}
+	
+	@Test
+	public void testTruncatedBodiesAreDumpedWithWholeLength() throws Exception {
+		// setup
+		sut.setMaxCaptureBytes(4);
+		MockHttpServletRequest request = newRequest();
+		request.setContent("hello world".getBytes(StandardCharsets.UTF_8));
+		// exercise
+		sut.doFilter(request, new MockHttpServletResponse(), (req, res) -> {
+			StreamUtils.copyToByteArray(req.getInputStream());
+			res.getOutputStream().write("goodbye world".getBytes(StandardCharsets.UTF_8));
+		});
+		// verify
+		String actual = appender.awaitDumps(1).get(0);
+		assertThat(actual, containsString("HttpDumpFilter-Body-Length: 11" + NL + NL + "hell" + NL));
+		assertThat(actual, containsString("HttpDumpFilter-Body-Length: 13" + NL + NL + "good" + NL));
+		assertThat(actual, not(containsString("world")));
+	}
+	
+	@Test
+	public void testWriterOutputReachesClient() throws Exception {
+		// setup
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		response.setCharacterEncoding("UTF-8");
+		// exercise
+		sut.doFilter(newRequest(), response, (req, res) -> res.getWriter().print("hello world")); // not flushed
+		// verify
+		assertThat(response.getContentAsString(), is("hello world"));
+		assertThat(appender.awaitDumps(1).get(0), containsString(NL + "hello world" + NL));
+	}
+	
+	@Test
+	public void testAsyncRequestIsDumpedOnComplete() throws Exception {
+		// setup
+		MockHttpServletRequest request = newRequest();
+		request.setAsyncSupported(true);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		AtomicReference<AsyncContext> asyncContext = new AtomicReference<>();
+		AtomicReference<ServletResponse> teeResponse = new AtomicReference<>();
+		sut.doFilter(request, response, (req, res) -> {
+			asyncContext.set(req.startAsync());
+			teeResponse.set(res);
+		});
+		teeResponse.get().getOutputStream().write("hello async".getBytes(StandardCharsets.UTF_8));
+		assertThat(appender.getDumps(), is(empty()));
+		// exercise
+		asyncContext.get().complete();
+		// verify
+		assertThat(response.getContentAsString(), is("hello async"));
+		assertThat(appender.awaitDumps(1).get(0), containsString(NL + "hello async" + NL));
+	}
+	
+	private void dump() throws Exception {
+		sut.doFilter(newRequest(), new MockHttpServletResponse(), new MockFilterChain());
+	}
+	
+	private static MockHttpServletRequest newRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/foo");
+		request.setServletPath("/foo");
+		return request;
+	}
+	
+	
+	/**
+	 * Appender which can block the writer thread of the filter, regardless of interruption. The messages are guarded
+	 * by themselves, since {@link AppenderBase} holds the lock of the appender while blocked.
+	 */
+	private static class BlockingAppender extends AppenderBase<ILoggingEvent> {
+		
+		private final List<String> messages = new ArrayList<>();
+		
+		private final CountDownLatch entered = new CountDownLatch(1);
+		
+		private volatile boolean blocked;
+		
+		
+		void block() {
+			blocked = true;
+		}
+		
+		void release() {
+			blocked = false;
+		}
+		
+		boolean awaitEntered() throws InterruptedException {
+			return entered.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		
+		List<String> getDumps() {
+			synchronized (messages) {
+				return messages.stream().filter(m -> m.startsWith("GET ")).collect(Collectors.toList());
+			}
+		}
+		
+		List<String> awaitDumps(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while (getDumps().size() < count && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			return getDumps();
+		}
+		
+		@Override
+		protected void append(ILoggingEvent event) {
+			synchronized (messages) {
+				messages.add(event.getFormattedMessage());
+			}
+			entered.countDown();
+			while (blocked) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+		}
+	}
+}
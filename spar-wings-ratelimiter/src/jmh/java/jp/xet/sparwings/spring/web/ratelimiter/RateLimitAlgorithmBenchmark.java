@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jp.xet.sparwings.spring.web.ratelimiter.RateLimitAlgorithm.Outcome;
+
+/**
+ * Compares the cost per decision of {@link RateLimitAlgorithm}s, applied by compare-and-swap in the same way as
+ * {@link InMemoryRateLimitService}.
+ * 
+ * <p>Run by {@code ./gradlew :spar-wings-ratelimiter:jmh}.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RateLimitAlgorithmBenchmark {
+	
+	@Param({
+		"token-bucket",
+		"gcra",
+		"sliding-window"
+	})
+	public String algorithmName;
+	
+	private RateLimitAlgorithm algorithm;
+	
+	private RateLimitDescriptor descriptor;
+	
+	private AtomicReference<long[]> state;
+	
+	
+	@Setup
+	public void setUp() {
+		switch (algorithmName) {
+			case "token-bucket":
+				algorithm = new TokenBucketAlgorithm();
+				break;
+			case "gcra":
+				algorithm = new GcraAlgorithm();
+				break;
+			case "sliding-window":
+				algorithm = new SlidingWindowAlgorithm();
+				break;
+			default:
+				throw new IllegalArgumentException(algorithmName);
+		}
+		descriptor = new RateLimitDescriptor("192.0.2.1", 10, 1000000).setCurrentBudget(1000000);
+		state = new AtomicReference<>(algorithm.initialState(descriptor));
+	}
+	
+	@Benchmark
+	public long decide() {
+		return apply();
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public long decideContended() {
+		return apply();
+	}
+	
+	private long apply() {
+		long now = System.currentTimeMillis();
+		for (;;) {
+			long[] current = state.get();
+			Outcome outcome = algorithm.apply(current, descriptor, now, 1);
+			if (state.compareAndSet(current, outcome.getState())) {
+				return outcome.getBudget();
+			}
+		}
+	}
+}
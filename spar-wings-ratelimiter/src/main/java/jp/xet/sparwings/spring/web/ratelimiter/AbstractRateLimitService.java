@@ -46,4 +46,10 @@ public abstract class AbstractRateLimitService implements RateLimitService {
 	protected RateLimitDescriptor computeRateLimitRecovery(HttpServletRequest request) {
 		return recoveryStrategy.apply(request);
 	}
+	
+	@Override
+	public String computeLimitationUnitName(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		return descriptor == null ? null : descriptor.getLimitationUnitName();
+	}
 }
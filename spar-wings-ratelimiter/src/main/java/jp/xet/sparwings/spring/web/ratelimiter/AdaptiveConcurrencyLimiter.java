@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.util.Assert;
+
+/**
+ * Limiter of concurrent requests, whose limit is discovered from the latency in the manner of TCP Vegas.
+ * 
+ * <p>The latency without queueing is estimated by the minimum latency observed, and the queue length is estimated by
+ * {@code limit × (1 - minLatency / latency)}. The limit is increased while the queue is short, and decreased while
+ * it is long, so that the latency stays close to the one without load. The minimum latency is measured again after
+ * {@link #setProbeMultiplier(int) probeMultiplier} × limit samples, to follow the change of the baseline.</p>
+ * 
+ * <p>Acquisition is lock-free, and the limit is updated under the lock of this instance on release.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see RateLimitingInterceptor#setConcurrencyLimiter(AdaptiveConcurrencyLimiter)
+ */
+@Slf4j
+public class AdaptiveConcurrencyLimiter {
+	
+	private static final int DEFAULT_INITIAL_LIMIT = 20;
+	
+	/** Lower bound of the limit */
+	@Getter
+	@Setter
+	private volatile int minLimit = 1;
+	
+	/** Upper bound of the limit */
+	@Getter
+	@Setter
+	private volatile int maxLimit = 1000;
+	
+	/** Number of samples per the limit, after which the latency without load is measured again */
+	@Getter
+	@Setter
+	private volatile int probeMultiplier = 30;
+	
+	private volatile double limit;
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	/** Minimum latency in nanoseconds, or 0 if not measured, guarded by this */
+	private long noLoadLatency;
+	
+	/** Number of samples since the minimum latency is measured, guarded by this */
+	private long samplesSinceProbe;
+	
+	
+	/**
+	 * Create instance.
+	 */
+	public AdaptiveConcurrencyLimiter() {
+		this(DEFAULT_INITIAL_LIMIT);
+	}
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param initialLimit initial limit of concurrent requests
+	 * @throws IllegalArgumentException if the limit is not positive
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit) {
+		Assert.isTrue(initialLimit > 0, "initialLimit must be positive");
+		limit = initialLimit;
+	}
+	
+	/**
+	 * Returns the current limit of concurrent requests.
+	 * 
+	 * @return the limit
+	 */
+	public int getLimit() {
+		return (int) limit;
+	}
+	
+	/**
+	 * Returns the number of requests in flight.
+	 * 
+	 * @return the number of requests
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * Acquire a permit to process a request.
+	 * 
+	 * @return the permit which must be released when the request completes, or {@code null} if the limit is reached
+	 */
+	public Permit tryAcquire() {
+		for (;;) {
+			int current = inFlight.get();
+			if (current >= (int) limit) {
+				return null;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return new Permit(current + 1, System.nanoTime());
+			}
+		}
+	}
+	
+	/**
+	 * Update the limit by the latency of a request.
+	 * 
+	 * @param latency latency in nanoseconds
+	 * @param concurrency number of requests in flight when the request is started
+	 */
+	synchronized void onSample(long latency, int concurrency) {
+		if (latency <= 0) {
+			return;
+		}
+		double current = limit;
+		if (++samplesSinceProbe > probeMultiplier * current) {
+			noLoadLatency = 0;
+		}
+		if (noLoadLatency == 0 || latency < noLoadLatency) {
+			noLoadLatency = latency;
+			samplesSinceProbe = 0;
+			return;
+		}
+		if (concurrency * 2 < current) {
+			// latency under light load tells nothing about the limit
+			return;
+		}
+		
+		double queueSize = Math.ceil(current * (1 - (double) noLoadLatency / latency));
+		double step = Math.max(1, Math.log10(current));
+		double next;
+		if (queueSize <= step) {
+			next = current + 6 * step;
+		} else if (queueSize < 3 * step) {
+			next = current + step;
+		} else if (queueSize > 6 * step) {
+			next = current - step;
+		} else {
+			return;
+		}
+		next = Math.max(minLimit, Math.min(maxLimit, next));
+		if ((int) next != (int) current) {
+			log.debug("Concurrency limit changed: {} -> {} (queue size {})", (int) current, (int) next, queueSize);
+		}
+		limit = next;
+	}
+	
+	
+	/**
+	 * Permit to process a request, acquired by {@link AdaptiveConcurrencyLimiter#tryAcquire()}.
+	 * 
+	 * @since 0.38
+	 */
+	public final class Permit {
+		
+		private final int concurrency;
+		
+		private final long startTime;
+		
+		private final AtomicBoolean released = new AtomicBoolean();
+		
+		
+		Permit(int concurrency, long startTime) {
+			this.concurrency = concurrency;
+			this.startTime = startTime;
+		}
+		
+		/**
+		 * Release the permit and sample the latency of the request. Only the first call takes effect.
+		 */
+		public void release() {
+			if (released.compareAndSet(false, true) == false) {
+				return;
+			}
+			inFlight.decrementAndGet();
+			onSample(System.nanoTime() - startTime, concurrency);
+		}
+		
+		/**
+		 * Release the permit without sampling, since the request is not processed. Only the first call of this or
+		 * {@link #release()} takes effect.
+		 */
+		public void cancel() {
+			if (released.compareAndSet(false, true)) {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation to fall back to local rate limiting while {@link RedisRateLimitService} is
+ * slow or down.
+ * 
+ * <p>Each call to redis is given {@link #setTimeoutMillis(long) timeoutMillis}. After
+ * {@link #setFailureThreshold(int) failureThreshold} consecutive errors or timeouts, the circuit is opened and
+ * requests are limited by {@link InMemoryRateLimitService} whose fill rates and max budgets are divided by the number
+ * of nodes, so that the cluster as a whole admits roughly the same rate. After {@link #setOpenMillis(long) openMillis}
+ * one request probes redis, and the circuit is closed if it succeeds.</p>
+ * 
+ * <p>To enforce the timeout, redis is called on a bounded pool of daemon threads, which costs a thread hand-off per
+ * call. When all threads are stalled, the call fails immediately. Note that the budgets consumed locally are not
+ * reflected to redis after recovery.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class CircuitBreakingRateLimitService implements RateLimitService, DisposableBean {
+	
+	private static final int MAX_THREADS = 64;
+	
+	@Getter
+	private final RedisRateLimitService delegate;
+	
+	/** Expected number of nodes sharing the budgets in redis */
+	@Getter
+	private final int nodeCount;
+	
+	/** Latency budget of each call to redis in milliseconds */
+	@Getter
+	@Setter
+	private volatile long timeoutMillis = 50;
+	
+	/** Number of consecutive failures to open the circuit */
+	@Getter
+	@Setter
+	private volatile int failureThreshold = 3;
+	
+	/** Duration to use the fallback before probing redis in milliseconds */
+	@Getter
+	@Setter
+	private volatile long openMillis = 5000;
+	
+	private final InMemoryRateLimitService fallback;
+	
+	private final ThreadPoolExecutor executor;
+	
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	
+	/** Time until which the circuit is open in epoch millis, or 0 if closed */
+	private final AtomicLong openUntil = new AtomicLong();
+	
+	private final AtomicBoolean probing = new AtomicBoolean();
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param delegate {@link RedisRateLimitService} to use while it is healthy
+	 * @param nodeCount expected number of nodes sharing the budgets in redis
+	 * @throws IllegalArgumentException if the node count is not positive
+	 */
+	public CircuitBreakingRateLimitService(@NonNull RedisRateLimitService delegate, int nodeCount) {
+		Assert.isTrue(nodeCount > 0, "nodeCount must be positive");
+		this.delegate = delegate;
+		this.nodeCount = nodeCount;
+		fallback = new ScaledRateLimitService(delegate, nodeCount);
+		fallback.setAlgorithm(delegate.getAlgorithm());
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+			Thread thread = new Thread(r, "ratelimit-redis-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		return call(() -> delegate.consume(request, consumption), () -> fallback.consume(request, consumption));
+	}
+	
+	@Override
+	public RateLimitDescriptor charge(HttpServletRequest request, long consumption) {
+		return call(() -> delegate.charge(request, consumption), () -> fallback.charge(request, consumption));
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		return call(() -> delegate.get(request), () -> fallback.get(request));
+	}
+	
+	@Override
+	public String computeLimitationUnitName(HttpServletRequest request) {
+		return delegate.computeLimitationUnitName(request);
+	}
+	
+	/**
+	 * Returns whether the circuit is open, that is, requests are limited locally.
+	 * 
+	 * @return {@code true} if the circuit is open
+	 */
+	public boolean isOpen() {
+		return openUntil.get() != 0;
+	}
+	
+	@Override
+	public void destroy() {
+		executor.shutdownNow();
+	}
+	
+	private RateLimitDescriptor call(Callable<RateLimitDescriptor> primary, Supplier<RateLimitDescriptor> secondary) {
+		long now = Clock.now().toEpochMillisec();
+		long until = openUntil.get();
+		boolean probe = false;
+		if (until != 0) {
+			if (now < until || probing.compareAndSet(false, true) == false) {
+				return secondary.get();
+			}
+			probe = true;
+		}
+		try {
+			RateLimitDescriptor result = invoke(primary);
+			consecutiveFailures.set(0);
+			if (probe) {
+				openUntil.set(0);
+				log.info("Redis rate limiting recovered, circuit closed");
+			}
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return secondary.get();
+		} catch (ExecutionException | TimeoutException | RejectedExecutionException e) {
+			onFailure(now, probe, e);
+			return secondary.get();
+		} finally {
+			if (probe) {
+				probing.set(false);
+			}
+		}
+	}
+	
+	private RateLimitDescriptor invoke(Callable<RateLimitDescriptor> primary)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		Future<RateLimitDescriptor> future = executor.submit(primary);
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			throw e;
+		}
+	}
+	
+	private void onFailure(long now, boolean probe, Exception e) {
+		Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+		if (probe) {
+			openUntil.set(now + openMillis);
+			log.warn("Redis rate limiting is still unavailable: {}", cause.toString());
+		} else if (consecutiveFailures.incrementAndGet() >= failureThreshold
+				&& openUntil.compareAndSet(0, now + openMillis)) {
+			consecutiveFailures.set(0);
+			log.warn("Redis rate limiting is unavailable, falling back to local rate limiting", cause);
+		} else {
+			log.debug("Redis rate limiting failed: {}", cause.toString());
+		}
+	}
+	
+	
+	/**
+	 * {@link InMemoryRateLimitService} to apply the recovery strategies of the delegate divided by the node count.
+	 */
+	private static class ScaledRateLimitService extends InMemoryRateLimitService {
+		
+		private final RedisRateLimitService delegate;
+		
+		private final int nodeCount;
+		
+		
+		ScaledRateLimitService(RedisRateLimitService delegate, int nodeCount) {
+			this.delegate = delegate;
+			this.nodeCount = nodeCount;
+		}
+		
+		@Override
+		protected List<RateLimitDescriptor> computeRateLimitRecoveries(HttpServletRequest request) {
+			return delegate.computeRateLimitRecoveries(request).stream()
+				.map(d -> new RateLimitDescriptor(d.getLimitationUnitName(), divideRoundingUp(d.getFillRate()),
+						divideRoundingUp(d.getMaxBudget()), divideRoundingUp(d.getCurrentBudget()),
+						d.getLastUpdateTime()))
+				.collect(Collectors.toList());
+		}
+		
+		// rounded up so that a positive rate never becomes zero
+		private long divideRoundingUp(long value) {
+			return value <= 0 ? value : (value + nodeCount - 1) / nodeCount;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.util.Assert;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation to store values in a fixed size table of primitive longs.
+ * 
+ * <p>Each limitation unit is identified by the 64-bit hash of its name, and occupies one slot of three longs
+ * (key hash, budget and last update time), so that no object is allocated per unit and the memory footprint is fixed
+ * by the capacity. The table can be allocated off-heap by {@link ByteBuffer#allocateDirect(int)}. It is split into
+ * segments each guarded by its own lock, so that requests of different units rarely contend.</p>
+ * 
+ * <p>Slots are found by linear probing within a bounded window. When the window is full, a slot whose bucket has
+ * been refilled to the max budget (which is indistinguishable from a fresh one) is reused, otherwise the least
+ * recently updated slot is overwritten. Refill of other units is computed with the fill rate and the max budget of the
+ * current request, so this implementation assumes the recovery strategy applies the same rates to all units.
+ * Distinct names whose hashes collide share one bucket. For the same reason, only one limitation unit is applied to
+ * a request, unlike {@link MultiUnitRateLimitService}.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class CompactRateLimitService extends AbstractRateLimitService {
+	
+	private static final int SLOT_LONGS = 3;
+	
+	private static final int KEY = 0;
+	
+	private static final int BUDGET = 1;
+	
+	private static final int LAST_UPDATE = 2;
+	
+	private static final int MAX_SEGMENTS = 64;
+	
+	private static final int MAX_PROBES = 16;
+	
+	/** Total number of slots */
+	@Getter
+	private final int capacity;
+	
+	private final Segment[] segments;
+	
+	private final int segmentMask;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param capacity the number of limitation units to track, rounded up to power of 2
+	 * @param offHeap {@code true} to allocate the table off-heap
+	 * @throws IllegalArgumentException if the capacity is not positive, or too large
+	 */
+	public CompactRateLimitService(int capacity, boolean offHeap) {
+		Assert.isTrue(capacity > 0, "capacity must be positive");
+		Assert.isTrue(capacity <= 1 << 30, "capacity is too large");
+		this.capacity = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+		int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, this.capacity / MAX_PROBES));
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(this.capacity / segmentCount, offHeap);
+		}
+		segmentMask = segmentCount - 1;
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		return update(request, consumption, true);
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		return update(request, 0, false);
+	}
+	
+	private RateLimitDescriptor update(HttpServletRequest request, long consumption, boolean store) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long key = hash(descriptor.getLimitationUnitName());
+		long now = Clock.now().toEpochMillisec();
+		Segment segment = segments[(int) (key >>> 32) & segmentMask];
+		
+		long budget;
+		long lastUpdateTime;
+		synchronized (segment) {
+			int slot = segment.find(key, now, descriptor);
+			if (segment.keyAt(slot) == key) {
+				budget = segment.get(slot, BUDGET);
+				lastUpdateTime = segment.get(slot, LAST_UPDATE);
+			} else {
+				budget = descriptor.getCurrentBudget();
+				lastUpdateTime = descriptor.getLastUpdateTime();
+			}
+			budget = Math.min(descriptor.getMaxBudget(), refill(budget, lastUpdateTime, now, descriptor) - consumption);
+			lastUpdateTime = Math.max(now, lastUpdateTime);
+			if (store) {
+				segment.put(slot, KEY, key);
+				segment.put(slot, BUDGET, budget);
+				segment.put(slot, LAST_UPDATE, lastUpdateTime);
+			}
+		}
+		log.debug("Budget of {} after current request (consumed {}): {}",
+				descriptor.getLimitationUnitName(), consumption, budget);
+		return new RateLimitDescriptor(descriptor.getLimitationUnitName(), descriptor.getFillRate(),
+				descriptor.getMaxBudget(), budget, lastUpdateTime);
+	}
+	
+	private static long refill(long budget, long lastUpdateTime, long now, RateLimitDescriptor descriptor) {
+		long fill = Math.max(0, now - lastUpdateTime) * descriptor.getFillRate();
+		return Math.min(descriptor.getMaxBudget(), budget + fill);
+	}
+	
+	/**
+	 * Compute 64-bit hash of the name by FNV-1a followed by the finalizer of MurmurHash3. Never returns zero, which
+	 * is reserved for empty slots.
+	 */
+	static long hash(String name) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+	
+	
+	private static class Segment {
+		
+		private final LongBuffer table;
+		
+		private final int mask;
+		
+		private final int probes;
+		
+		
+		Segment(int slots, boolean offHeap) {
+			table = offHeap
+					? ByteBuffer.allocateDirect(slots * SLOT_LONGS * Long.BYTES).order(ByteOrder.nativeOrder())
+						.asLongBuffer()
+					: LongBuffer.allocate(slots * SLOT_LONGS);
+			mask = slots - 1;
+			probes = Math.min(MAX_PROBES, slots);
+		}
+		
+		/**
+		 * Find the slot of the key, or the slot to store it.
+		 * 
+		 * <p>Slots never become empty once occupied, so the key cannot be found beyond an empty slot.</p>
+		 */
+		int find(long key, long now, RateLimitDescriptor descriptor) {
+			int home = (int) key & mask;
+			int refilled = -1;
+			int oldest = -1;
+			long oldestUpdateTime = Long.MAX_VALUE;
+			for (int i = 0; i < probes; i++) {
+				int slot = (home + i) & mask;
+				long k = keyAt(slot);
+				if (k == key || k == 0) {
+					return slot;
+				}
+				if (refilled < 0) {
+					long lastUpdateTime = get(slot, LAST_UPDATE);
+					if (refill(get(slot, BUDGET), lastUpdateTime, now, descriptor) >= descriptor.getMaxBudget()) {
+						refilled = slot;
+					} else if (lastUpdateTime < oldestUpdateTime) {
+						oldest = slot;
+						oldestUpdateTime = lastUpdateTime;
+					}
+				}
+			}
+			if (refilled >= 0) {
+				return refilled;
+			}
+			log.debug("Probe window is full, overwrite the least recently updated slot");
+			return oldest;
+		}
+		
+		long keyAt(int slot) {
+			return get(slot, KEY);
+		}
+		
+		long get(int slot, int field) {
+			return table.get(slot * SLOT_LONGS + field);
+		}
+		
+		void put(int slot, int field, long value) {
+			table.put(slot * SLOT_LONGS + field, value);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+/**
+ * Generic cell rate algorithm (GCRA).
+ * 
+ * <p>The state is only the theoretical arrival time (TAT), measured in budget, that is milliseconds multiplied by the
+ * fill rate. Each consumption pushes the TAT forward, and the budget is the max budget minus how far the TAT is
+ * ahead of now. This admits the same requests as {@link TokenBucketAlgorithm}, but the state is a single long, which
+ * is stored in redis as a plain string key updated by one {@code SET}.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class GcraAlgorithm implements RateLimitAlgorithm {
+	
+	@Override
+	public long[] initialState(RateLimitDescriptor descriptor) {
+		return new long[] {
+			descriptor.getLastUpdateTime() * descriptor.getFillRate()
+					+ descriptor.getMaxBudget() - descriptor.getCurrentBudget()
+		};
+	}
+	
+	@Override
+	public Outcome apply(long[] state, RateLimitDescriptor descriptor, long now, long consumption) {
+		long nowInBudget = now * descriptor.getFillRate();
+		long tat = Math.max(Math.max(state[0], nowInBudget) + consumption, nowInBudget);
+		return new Outcome(new long[] {
+			tat
+		}, descriptor.getMaxBudget() - (tat - nowInBudget));
+	}
+	
+	@Override
+	public long computeWaitMillis(long[] state, RateLimitDescriptor descriptor, long now, long cost) {
+		long deficit = cost - apply(state, descriptor, now, 0).getBudget();
+		if (deficit <= 0) {
+			return 0;
+		}
+		if (descriptor.getFillRate() <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return (deficit + descriptor.getFillRate() - 1) / descriptor.getFillRate();
+	}
+	
+	@Override
+	public long computeIdleDeadline(long[] state, RateLimitDescriptor descriptor) {
+		if (state[0] <= 0) {
+			return 0;
+		}
+		if (descriptor.getFillRate() <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return (state[0] + descriptor.getFillRate() - 1) / descriptor.getFillRate();
+	}
+	
+	@Override
+	public String getRedisKeyPrefix() {
+		return "ratelimit:g:";
+	}
+	
+	@Override
+	public String getRedisScriptName() {
+		return "gcra.lua";
+	}
+}
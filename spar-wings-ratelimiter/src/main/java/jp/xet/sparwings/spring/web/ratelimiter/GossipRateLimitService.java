@@ -0,0 +1,404 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation to share the consumption among nodes by gossip over UDP, without any
+ * central store.
+ * 
+ * <p>Each node keeps the token bucket of each limitation unit in memory, and admits requests without network calls.
+ * The consumption of each node is counted by a cumulative counter per limitation unit (a PN-counter, so that refunds
+ * are shared too), and sent to all {@link #setPeers(List) peers} every gossip interval when it changes, and every
+ * {@link #setFullSyncRounds(int) fullSyncRounds} intervals regardless. Receivers merge the counters by maximum,
+ * which makes duplicated or reordered packets harmless, and apply the increase to their buckets. Thus every node
+ * enforces the budget of the whole cluster approximately, delayed by the gossip interval.</p>
+ * 
+ * <p>Buckets are evicted when refilled and all the consumption is sent. The counters restart with a new incarnation
+ * number after eviction, and a receiver who has lost the previous value of a counter applies only the increase since
+ * the previous packet, so that the consumption is not applied twice. Packets lost while the receiver has no previous
+ * value are not recovered, which makes the limit looser, not stricter.</p>
+ * 
+ * <p>Packets are neither authenticated nor encrypted, so peers must be in a trusted network. Only the primary
+ * recovery strategy is supported.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class GossipRateLimitService extends AbstractRateLimitService implements DisposableBean {
+	
+	private static final int MAGIC = 0x52_4c_47_31; // "RLG1"
+	
+	private static final int MAX_PACKET_SIZE = 1400;
+	
+	private static final long DEFAULT_GOSSIP_INTERVAL_MILLIS = 100;
+	
+	/** Addresses of other nodes */
+	@Getter
+	@Setter
+	@NonNull
+	private volatile List<InetSocketAddress> peers = Collections.emptyList();
+	
+	/** Number of gossip intervals to send all counters, to recover lost packets */
+	@Getter
+	@Setter
+	private volatile int fullSyncRounds = 10;
+	
+	/** Random identifier of this node, which changes on restart */
+	@Getter
+	private final long nodeId = ThreadLocalRandom.current().nextLong();
+	
+	private final Map<String, Unit> units = new ConcurrentHashMap<>();
+	
+	private final AtomicLong incarnations = new AtomicLong();
+	
+	private final DatagramSocket socket;
+	
+	private final ScheduledExecutorService scheduler;
+	
+	private final Thread receiver;
+	
+	private long rounds;
+	
+	
+	/**
+	 * Create instance and start gossip at the interval of 100 milliseconds.
+	 * 
+	 * @param bindAddress local address to receive packets
+	 * @throws SocketException if the socket could not be bound
+	 */
+	public GossipRateLimitService(SocketAddress bindAddress) throws SocketException {
+		this(bindAddress, DEFAULT_GOSSIP_INTERVAL_MILLIS);
+	}
+	
+	/**
+	 * Create instance and start gossip.
+	 * 
+	 * @param bindAddress local address to receive packets
+	 * @param gossipIntervalMillis interval to send counters in milliseconds
+	 * @throws SocketException if the socket could not be bound
+	 */
+	public GossipRateLimitService(SocketAddress bindAddress, long gossipIntervalMillis) throws SocketException {
+		socket = new DatagramSocket(bindAddress);
+		receiver = new Thread(this::receive, "ratelimit-gossip-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ratelimit-gossip-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::gossip, gossipIntervalMillis, gossipIntervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Returns the local address to receive packets.
+	 * 
+	 * @return the address
+	 */
+	public SocketAddress getLocalAddress() {
+		return socket.getLocalSocketAddress();
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		for (;;) {
+			Unit unit = unitOf(descriptor.getLimitationUnitName(), descriptor.getFillRate(),
+					descriptor.getMaxBudget(), descriptor.getCurrentBudget(), now);
+			synchronized (unit) {
+				if (unit.removed) {
+					continue;
+				}
+				unit.apply(consumption, now);
+				if (consumption > 0) {
+					unit.positive += consumption;
+				} else {
+					unit.negative -= consumption;
+				}
+				log.info("Budget after current request (consumed {}): {}", consumption, unit.budget);
+				return unit.toDescriptor(now);
+			}
+		}
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		Unit unit = units.get(descriptor.getLimitationUnitName());
+		if (unit == null) {
+			return descriptor.setLastUpdateTime(now);
+		}
+		synchronized (unit) {
+			unit.apply(0, now);
+			return unit.toDescriptor(now);
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		scheduler.shutdownNow();
+		socket.close();
+	}
+	
+	private Unit unitOf(String name, long fillRate, long maxBudget, long initialBudget, long now) {
+		return units.computeIfAbsent(name,
+				k -> new Unit(name, fillRate, maxBudget, initialBudget, now, incarnations.incrementAndGet()));
+	}
+	
+	private void gossip() {
+		try {
+			long now = Clock.now().toEpochMillisec();
+			boolean fullSync = fullSyncRounds > 0 && ++rounds % fullSyncRounds == 0;
+			Packet packet = new Packet();
+			Iterator<Unit> iterator = units.values().iterator();
+			while (iterator.hasNext()) {
+				Unit unit = iterator.next();
+				synchronized (unit) {
+					boolean dirty = unit.positive != unit.sentPositive || unit.negative != unit.sentNegative;
+					if ((dirty || fullSync) && (unit.positive != 0 || unit.negative != 0)) {
+						packet.write(unit);
+						unit.sentPositive = unit.positive;
+						unit.sentNegative = unit.negative;
+						if (packet.size() >= MAX_PACKET_SIZE) {
+							send(packet);
+							packet = new Packet();
+						}
+					} else if (dirty == false && unit.isRefilled(now)) {
+						unit.removed = true;
+						iterator.remove();
+					}
+				}
+			}
+			if (packet.isEmpty() == false) {
+				send(packet);
+			}
+		} catch (IOException | RuntimeException e) { // NOPMD - cc
+			log.warn("Failed to gossip", e);
+		}
+	}
+	
+	private void send(Packet packet) throws IOException {
+		byte[] bytes = packet.toByteArray();
+		for (InetSocketAddress peer : peers) {
+			try {
+				socket.send(new DatagramPacket(bytes, bytes.length, peer));
+			} catch (IOException e) {
+				log.debug("Failed to send to {}: {}", peer, e.getMessage());
+			}
+		}
+	}
+	
+	private void receive() {
+		byte[] buffer = new byte[65536];
+		while (socket.isClosed() == false) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+				merge(new DataInputStream(new ByteArrayInputStream(buffer, 0, packet.getLength())));
+			} catch (SocketException e) {
+				log.debug("Gossip socket closed: {}", e.getMessage());
+			} catch (IOException | RuntimeException e) { // NOPMD - cc
+				log.warn("Failed to receive gossip from {}", packet.getSocketAddress(), e);
+			}
+		}
+	}
+	
+	private void merge(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			log.debug("Unknown packet ignored");
+			return;
+		}
+		long sender = in.readLong();
+		if (sender == nodeId) {
+			return;
+		}
+		long now = Clock.now().toEpochMillisec();
+		while (in.available() > 0) {
+			String name = in.readUTF();
+			long fillRate = in.readLong();
+			long maxBudget = in.readLong();
+			long incarnation = in.readLong();
+			long positive = in.readLong();
+			long negative = in.readLong();
+			long positiveDelta = in.readLong();
+			long negativeDelta = in.readLong();
+			for (;;) {
+				Unit unit = unitOf(name, fillRate, maxBudget, maxBudget, now);
+				synchronized (unit) {
+					if (unit.removed) {
+						continue;
+					}
+					long[] known = unit.remotes.get(sender);
+					long consumption;
+					if (known == null || incarnation > known[0]) {
+						// previous value is unknown, so apply the increase since the previous packet
+						consumption = positiveDelta - negativeDelta;
+						unit.remotes.put(sender, new long[] {
+							incarnation,
+							positive,
+							negative
+						});
+					} else if (incarnation == known[0]) {
+						consumption = Math.max(0, positive - known[1]) - Math.max(0, negative - known[2]);
+						known[1] = Math.max(known[1], positive);
+						known[2] = Math.max(known[2], negative);
+					} else {
+						break; // stale incarnation
+					}
+					unit.apply(consumption, now);
+					break;
+				}
+			}
+		}
+	}
+	
+	
+	private static class Unit {
+		
+		private final String name;
+		
+		private final long fillRate;
+		
+		private final long maxBudget;
+		
+		private final long incarnation;
+		
+		private long budget;
+		
+		private long lastUpdateTime;
+		
+		/** Cumulative consumption and refund of this node */
+		private long positive;
+		
+		private long negative;
+		
+		/** Values of the counters sent last */
+		private long sentPositive;
+		
+		private long sentNegative;
+		
+		/** Incarnation and counters of other nodes by their node IDs */
+		private final Map<Long, long[]> remotes = new HashMap<>();
+		
+		private boolean removed;
+		
+		
+		Unit(String name, long fillRate, long maxBudget, long budget, long now, long incarnation) {
+			this.name = name;
+			this.fillRate = fillRate;
+			this.maxBudget = maxBudget;
+			this.budget = budget;
+			this.lastUpdateTime = now;
+			this.incarnation = incarnation;
+		}
+		
+		void apply(long consumption, long now) {
+			long fill = Math.max(0, now - lastUpdateTime) * fillRate;
+			budget = Math.min(maxBudget, Math.min(maxBudget, budget + fill) - consumption);
+			lastUpdateTime = Math.max(now, lastUpdateTime);
+		}
+		
+		boolean isRefilled(long now) {
+			return budget + Math.max(0, now - lastUpdateTime) * fillRate >= maxBudget;
+		}
+		
+		RateLimitDescriptor toDescriptor(long now) {
+			return new RateLimitDescriptor(name, fillRate, maxBudget, budget, now);
+		}
+	}
+	
+	private class Packet {
+		
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_PACKET_SIZE + 256);
+		
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		
+		private boolean empty = true;
+		
+		
+		Packet() throws IOException {
+			out.writeInt(MAGIC);
+			out.writeLong(nodeId);
+		}
+		
+		void write(Unit unit) throws IOException {
+			out.writeUTF(unit.name);
+			out.writeLong(unit.fillRate);
+			out.writeLong(unit.maxBudget);
+			out.writeLong(unit.incarnation);
+			out.writeLong(unit.positive);
+			out.writeLong(unit.negative);
+			out.writeLong(unit.positive - unit.sentPositive);
+			out.writeLong(unit.negative - unit.sentNegative);
+			empty = false;
+		}
+		
+		int size() {
+			return bytes.size();
+		}
+		
+		boolean isEmpty() {
+			return empty;
+		}
+		
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+}
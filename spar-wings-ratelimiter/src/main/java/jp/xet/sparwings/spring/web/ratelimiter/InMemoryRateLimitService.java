@@ -15,77 +15,243 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.http.HttpServletRequest;
 
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import jp.xet.baseunits.timeutil.Clock;
 
+import jp.xet.sparwings.spring.web.ratelimiter.RateLimitAlgorithm.Outcome;
+
 /**
  * {@link RateLimitService} implementation to store values in memory.
  * 
+ * <p>The state of each limitation unit is kept immutable, and updated by compare-and-swap, so that requests of
+ * different units never contend and requests of the same unit contend only while retrying the swap. The state is
+ * computed by the {@link RateLimitAlgorithm}, which is {@link TokenBucketAlgorithm} by default.</p>
+ * 
+ * <p>When multiple limitation units are applied by {@link #setAdditionalRecoveryStrategies(List)}, the request is
+ * admitted only if all of them have enough budget, and rejected requests consume no budget.</p>
+ * 
+ * <p>Buckets which stay idle until they are indistinguishable from fresh ones are evicted by a timing wheel advanced
+ * on the request path. By default the wheel has 512 slots of 1 second.</p>
+ * 
  * @since 0.8
  * @author daisuke
  */
 @Slf4j
-public class InMemoryRateLimitService extends AbstractRateLimitService {
+public class InMemoryRateLimitService extends MultiUnitRateLimitService {
+	
+	private static final long DEFAULT_TICK_MILLIS = 1000;
+	
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+	
+	/** Marker of the state of evicted bucket */
+	private static final long[] EVICTED = new long[0];
+	
+	private Map<String, Bucket> buckets = new ConcurrentHashMap<>();
 	
-	private Map<String, RateLimitDescriptor> specs = new ConcurrentHashMap<>();
+	private final TimingWheel<Bucket> expiryWheel;
 	
+	/**
+	 * Algorithm applied to buckets created after it is set.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	@NonNull
+	private volatile RateLimitAlgorithm algorithm = new TokenBucketAlgorithm();
+	
+	
+	/**
+	 * Create instance.
+	 */
+	public InMemoryRateLimitService() {
+		this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+	}
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param tickMillis resolution of idle bucket expiry in milliseconds
+	 * @param wheelSize number of slots of the expiry wheel, must be power of 2
+	 * @throws IllegalArgumentException if the argument is invalid
+	 * @since 0.38
+	 */
+	public InMemoryRateLimitService(long tickMillis, int wheelSize) {
+		expiryWheel = new TimingWheel<>(tickMillis, wheelSize);
+	}
 	
 	@Override
 	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
-		synchronized (this) {
-			RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
-			if (descriptor == null) {
-				return null;
-			}
-			descriptor =
-					specs.computeIfAbsent(descriptor.getLimitationUnitName(), p -> computeRateLimitRecovery(request));
-			if (descriptor == null) {
-				return null;
-			}
-			long now = Clock.now().toEpochMillisec();
-			
-			long secSinceLastUpdate = now - descriptor.getLastUpdateTime();
-			log.debug("Time (sec) since last update = {}", secSinceLastUpdate);
-			long fill = secSinceLastUpdate * descriptor.getFillRate();
-			long budget = Math.min(descriptor.getMaxBudget(), descriptor.getCurrentBudget() + fill);
-			log.info("Budget before current request (filled {}): {}", fill, budget);
-			
-			budget -= consumption;
-			log.info("Budget after current request (consumed {}): {}", consumption, budget);
-			
-			descriptor.setLastUpdateTime(now);
-			descriptor.setCurrentBudget(budget);
-			
-			return descriptor;
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		
+		RateLimitDescriptor result;
+		if (descriptors.size() == 1) {
+			result = update(descriptors.get(0), consumption, now, true);
+		} else {
+			result = consumeAll(descriptors, consumption, now);
 		}
+		log.info("Budget after current request (consumed {}): {}", consumption, result.getCurrentBudget());
+		expiryWheel.advance(now, this::expire);
+		return result;
 	}
 	
 	@Override
-	public RateLimitDescriptor get(HttpServletRequest request) {
-		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
-		if (descriptor == null) {
+	public RateLimitDescriptor charge(HttpServletRequest request, long consumption) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
 			return null;
 		}
-		descriptor = specs.computeIfAbsent(descriptor.getLimitationUnitName(), p -> computeRateLimitRecovery(request));
-		if (descriptor == null) {
+		long now = Clock.now().toEpochMillisec();
+		
+		List<RateLimitDescriptor> results = new ArrayList<>(descriptors.size());
+		for (RateLimitDescriptor descriptor : descriptors) {
+			results.add(update(descriptor, consumption, now, true));
+		}
+		RateLimitDescriptor result = mostConstrained(results);
+		log.info("Budget after charge (charged {}): {}", consumption, result.getCurrentBudget());
+		expiryWheel.advance(now, this::expire);
+		return result;
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
 			return null;
 		}
 		long now = Clock.now().toEpochMillisec();
 		
-		long secSinceLastUpdate = now - descriptor.getLastUpdateTime();
-		log.debug("Time (sec) since last update = {}", secSinceLastUpdate);
-		long fill = secSinceLastUpdate * descriptor.getFillRate();
-		long budget = Math.min(descriptor.getMaxBudget(), descriptor.getCurrentBudget() + fill);
-		descriptor.setLastUpdateTime(now);
+		List<RateLimitDescriptor> results = new ArrayList<>(descriptors.size());
+		for (RateLimitDescriptor descriptor : descriptors) {
+			results.add(update(descriptor, 0, now, false));
+		}
+		RateLimitDescriptor result = mostConstrained(results);
+		log.info("Current budget: {}", result.getCurrentBudget());
+		expiryWheel.advance(now, this::expire);
+		return result;
+	}
+	
+	/**
+	 * Returns the number of limitation units currently tracked.
+	 * 
+	 * @return the number of buckets
+	 * @since 0.38
+	 */
+	public int getBucketCount() {
+		return buckets.size();
+	}
+	
+	/**
+	 * Consume the budgets of all limitation units only if all of them are enough. Each bucket is charged by
+	 * compare-and-swap in turn, and the charged ones are returned when a later one is not enough. Concurrent requests
+	 * may be rejected by the charge which is about to be returned, but never admitted beyond the budgets.
+	 */
+	private RateLimitDescriptor consumeAll(List<RateLimitDescriptor> descriptors, long consumption, long now) {
+		List<RateLimitDescriptor> results = new ArrayList<>(descriptors.size());
+		for (RateLimitDescriptor descriptor : descriptors) {
+			RateLimitDescriptor result = update(descriptor, consumption, now, false);
+			if (result.getCurrentBudget() < 0) {
+				for (RateLimitDescriptor charged : descriptors.subList(0, results.size())) {
+					update(charged, -consumption, now, true);
+				}
+				return result.setConsumed(false);
+			}
+			results.add(result);
+		}
+		return mostConstrained(results);
+	}
+	
+	/**
+	 * Apply the consumption to the bucket of the limitation unit.
+	 * 
+	 * @param commitIfNegative whether to store the state even if the budget becomes negative
+	 * @return descriptor of the budget after the consumption, whether it is stored or not
+	 */
+	private RateLimitDescriptor update(RateLimitDescriptor descriptor, long consumption, long now,
+			boolean commitIfNegative) {
+		for (;;) {
+			Bucket bucket = bucketOf(descriptor, now);
+			long[] current = bucket.state.get();
+			if (current == EVICTED) {
+				buckets.remove(bucket.spec.getLimitationUnitName(), bucket);
+				continue;
+			}
+			Outcome outcome = bucket.algorithm.apply(current, bucket.spec, now, consumption);
+			if (consumption == 0 || (outcome.getBudget() < 0 && commitIfNegative == false)
+					|| bucket.state.compareAndSet(current, outcome.getState())) {
+				return bucket.toDescriptor(outcome, now);
+			}
+		}
+	}
+	
+	private Bucket bucketOf(RateLimitDescriptor descriptor, long now) {
+		return buckets.computeIfAbsent(descriptor.getLimitationUnitName(), p -> {
+			Bucket bucket = new Bucket(descriptor, algorithm);
+			expiryWheel.schedule(bucket, now);
+			return bucket;
+		});
+	}
+	
+	private long expire(Bucket bucket, long now) {
+		long[] current = bucket.state.get();
+		if (current == EVICTED) {
+			return TimingWheel.Expirer.EXPIRED;
+		}
+		long deadline = bucket.algorithm.computeIdleDeadline(current, bucket.spec);
+		if (deadline > now) {
+			return deadline;
+		}
+		if (bucket.state.compareAndSet(current, EVICTED) == false) {
+			// consumed concurrently
+			return bucket.algorithm.computeIdleDeadline(bucket.state.get(), bucket.spec);
+		}
+		buckets.remove(bucket.spec.getLimitationUnitName(), bucket);
+		log.debug("Idle bucket evicted: {}", bucket.spec.getLimitationUnitName());
+		return TimingWheel.Expirer.EXPIRED;
+	}
+	
+	
+	private static class Bucket {
+		
+		/** Descriptor computed by the recovery strategy when created, which must not be modified */
+		private final RateLimitDescriptor spec;
+		
+		private final RateLimitAlgorithm algorithm;
 		
-		descriptor.setCurrentBudget(budget);
-		log.info("Current budget: (filled {}) and {}", fill, descriptor.getCurrentBudget());
-		return descriptor;
+		private final AtomicReference<long[]> state;
+		
+		
+		Bucket(RateLimitDescriptor spec, RateLimitAlgorithm algorithm) {
+			this.spec = spec;
+			this.algorithm = algorithm;
+			state = new AtomicReference<>(algorithm.initialState(spec));
+		}
+		
+		RateLimitDescriptor toDescriptor(Outcome outcome, long now) {
+			RateLimitDescriptor descriptor = new RateLimitDescriptor(spec.getLimitationUnitName(), spec.getFillRate(),
+					spec.getMaxBudget(), outcome.getBudget(), now);
+			if (outcome.getBudget() < 0) {
+				descriptor.setMillisecsToRecover(algorithm.computeWaitMillis(outcome.getState(), spec, now, 0));
+			} else {
+				descriptor.setMillisecsToRecover(0);
+			}
+			return descriptor;
+		}
 	}
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation to lease chunks of budget from {@link RedisRateLimitService}, and spend
+ * them locally.
+ * 
+ * <p>A lease of {@link #setLeaseRatio(double) leaseRatio} of the max budget is consumed from redis at once, and
+ * requests are admitted by lock-free decrements of the lease until it runs out or expires after
+ * {@link #setLeaseMillis(long) leaseMillis}. The unused part of the lease is returned to redis with the next lease,
+ * or when expired leases are swept. Since leased budget is already deducted in redis, the cluster never admits more
+ * than the budget, but other nodes may be limited earlier by at most the leased amount. Smaller ratio and shorter
+ * lease improve the accuracy, larger ones reduce the redis calls per second.</p>
+ * 
+ * <p>When the budget in redis is not enough for a whole lease, the exceeding part is returned immediately and only
+ * the requested cost is consumed, the same as {@link RedisRateLimitService}. Then the limitation unit is regarded as
+ * scarce for {@link #getLeaseMillis() leaseMillis}, and only the cost of each request is consumed from redis until
+ * the budget recovers to a whole lease, not to double the redis calls of units running at their limit.</p>
+ * 
+ * <p>Only the primary recovery strategy of the delegate is leased, and its additional recovery strategies are not
+ * applied.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class LeasingRateLimitService implements RateLimitService, DisposableBean {
+	
+	@Getter
+	private final RedisRateLimitService delegate;
+	
+	/** Ratio of the max budget to lease at once */
+	@Getter
+	@Setter
+	private volatile double leaseRatio = 0.05;
+	
+	/** Lifetime of a lease in milliseconds */
+	@Getter
+	@Setter
+	private volatile long leaseMillis = 1000;
+	
+	private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+	
+	private final AtomicLong nextSweepTime = new AtomicLong();
+	
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = delegate.computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		RateLimitDescriptor result = null;
+		while (result == null) {
+			Slot slot = slots.computeIfAbsent(descriptor.getLimitationUnitName(), Slot::new);
+			Lease lease = slot.lease;
+			if (lease != null && lease.tryTake(consumption, now)) {
+				return lease.estimate(descriptor, now);
+			}
+			synchronized (slot) {
+				if (slot.removed) {
+					continue;
+				}
+				lease = slot.lease;
+				if (lease != null && lease.tryTake(consumption, now)) {
+					return lease.estimate(descriptor, now);
+				}
+				result = renew(slot, descriptor, consumption, now);
+			}
+		}
+		// sweep out of the lock of slot, not to wait for other slots
+		sweepIfNecessary(now);
+		return result;
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = delegate.computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		delegate.consume(descriptor, 0);
+		Slot slot = slots.get(descriptor.getLimitationUnitName());
+		Lease lease = slot == null ? null : slot.lease;
+		long now = Clock.now().toEpochMillisec();
+		if (lease != null && lease.isExpired(now) == false) {
+			descriptor.setCurrentBudget(
+					Math.min(descriptor.getMaxBudget(), descriptor.getCurrentBudget() + lease.remaining.get()));
+		}
+		return descriptor;
+	}
+	
+	@Override
+	public String computeLimitationUnitName(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = delegate.computeRateLimitRecovery(request);
+		return descriptor == null ? null : descriptor.getLimitationUnitName();
+	}
+	
+	/**
+	 * Return the unused part of expired leases to redis, and forget them.
+	 * 
+	 * <p>This is also done in the course of renewing leases at most once per {@link #getLeaseMillis() leaseMillis}.
+	 * </p>
+	 */
+	public void returnExpiredLeases() {
+		sweep(Clock.now().toEpochMillisec(), false);
+	}
+	
+	@Override
+	public void destroy() {
+		sweep(Long.MAX_VALUE, true);
+	}
+	
+	/**
+	 * Consume a new lease from redis, returning the unused part of the current lease. Must be called with the lock
+	 * of the slot.
+	 */
+	private RateLimitDescriptor renew(Slot slot, RateLimitDescriptor descriptor, long consumption, long now) {
+		long chunk = Math.max(consumption, (long) (descriptor.getMaxBudget() * leaseRatio));
+		long unused = slot.lease == null ? 0 : slot.lease.remaining.getAndSet(0);
+		slot.lease = null;
+		
+		if (slot.isScarce(now)) {
+			RateLimitDescriptor result = delegate.consume(descriptor, consumption - unused);
+			slot.scarceUntil = result.getCurrentBudget() < chunk ? now + leaseMillis : 0;
+			return result;
+		}
+		
+		RateLimitDescriptor result = delegate.consume(descriptor, chunk - unused);
+		long budget = result.getCurrentBudget();
+		if (budget < 0) {
+			if (chunk > consumption) {
+				result = delegate.consume(descriptor, consumption - chunk);
+			}
+			slot.scarceUntil = now + leaseMillis;
+			log.debug("Budget of {} is not enough to lease: {}", descriptor.getLimitationUnitName(),
+					result.getCurrentBudget());
+			return result;
+		}
+		Lease lease = new Lease(new AtomicLong(chunk - consumption), now + leaseMillis, budget, now,
+				descriptor.getFillRate(), descriptor.getMaxBudget());
+		slot.lease = lease;
+		log.debug("Leased {} of {} (returned {}), budget in redis: {}", chunk, descriptor.getLimitationUnitName(),
+				unused, budget);
+		return lease.estimate(descriptor, now);
+	}
+	
+	private void sweepIfNecessary(long now) {
+		long next = nextSweepTime.get();
+		if (now >= next && nextSweepTime.compareAndSet(next, now + leaseMillis)) {
+			sweep(now, false);
+		}
+	}
+	
+	private void sweep(long now, boolean all) {
+		Iterator<Slot> iterator = slots.values().iterator();
+		while (iterator.hasNext()) {
+			Slot slot = iterator.next();
+			if (all == false && slot.isAlive(now)) {
+				continue;
+			}
+			synchronized (slot) {
+				if (all == false && slot.isAlive(now)) {
+					continue;
+				}
+				Lease lease = slot.lease;
+				slot.removed = true;
+				slots.remove(slot.limitationUnitName, slot);
+				long unused = lease == null ? 0 : lease.remaining.getAndSet(0);
+				if (unused > 0) {
+					try {
+						delegate.consume(new RateLimitDescriptor(slot.limitationUnitName, lease.fillRate,
+								lease.maxBudget), -unused);
+					} catch (RuntimeException e) { // NOPMD - cc
+						log.warn("Failed to return unused lease of {}", slot.limitationUnitName, e);
+					}
+				}
+			}
+		}
+	}
+	
+	
+	@RequiredArgsConstructor
+	private static class Slot {
+		
+		private final String limitationUnitName;
+		
+		private volatile Lease lease;
+		
+		private boolean removed;
+		
+		/** Time until which the budget in redis is regarded as not enough for a whole lease */
+		private volatile long scarceUntil;
+		
+		
+		boolean isScarce(long now) {
+			return now < scarceUntil;
+		}
+		
+		boolean isAlive(long now) {
+			Lease lease = this.lease;
+			return (lease != null && lease.isExpired(now) == false) || isScarce(now);
+		}
+	}
+	
+	@RequiredArgsConstructor
+	private static class Lease {
+		
+		private final AtomicLong remaining;
+		
+		private final long expiresAt;
+		
+		/** Budget in redis when leased */
+		private final long budget;
+		
+		private final long leasedAt;
+		
+		private final long fillRate;
+		
+		private final long maxBudget;
+		
+		
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+		
+		boolean tryTake(long consumption, long now) {
+			if (isExpired(now)) {
+				return false;
+			}
+			long current;
+			do {
+				current = remaining.get();
+				if (current < consumption) {
+					return false;
+				}
+			} while (remaining.compareAndSet(current, current - consumption) == false);
+			return true;
+		}
+		
+		/**
+		 * Estimate the current budget including the rest of this lease.
+		 */
+		RateLimitDescriptor estimate(RateLimitDescriptor descriptor, long now) {
+			long refilled = budget + Math.max(0, now - leasedAt) * fillRate;
+			descriptor.setCurrentBudget(Math.min(maxBudget, refilled + remaining.get()));
+			descriptor.setLastUpdateTime(now);
+			return descriptor;
+		}
+	}
+}
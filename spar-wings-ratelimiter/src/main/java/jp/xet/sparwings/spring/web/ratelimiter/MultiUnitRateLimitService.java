@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServletRequest;
+
+import lombok.NonNull;
+import lombok.Setter;
+
+/**
+ * Abstract {@link RateLimitService} which applies multiple limitation units to a request, such as per-user and
+ * per-endpoint limitation, and admits the request only if all of them have enough budget.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public abstract class MultiUnitRateLimitService extends AbstractRateLimitService {
+	
+	/**
+	 * Strategies to compute the limitation units applied to the request together with the one of
+	 * {@code recoveryStrategy}. The names of limitation units must be distinct among strategies.
+	 */
+	@Setter
+	@NonNull
+	private List<Function<HttpServletRequest, RateLimitDescriptor>> additionalRecoveryStrategies =
+			Collections.emptyList();
+	
+	
+	/**
+	 * Compute the descriptors of all limitation units applied to the request.
+	 * 
+	 * @param request the request
+	 * @return the descriptors, empty if limitation is not applied
+	 */
+	protected List<RateLimitDescriptor> computeRateLimitRecoveries(HttpServletRequest request) {
+		List<RateLimitDescriptor> descriptors = new ArrayList<>(1 + additionalRecoveryStrategies.size());
+		RateLimitDescriptor primary = computeRateLimitRecovery(request);
+		if (primary != null) {
+			descriptors.add(primary);
+		}
+		for (Function<HttpServletRequest, RateLimitDescriptor> strategy : additionalRecoveryStrategies) {
+			RateLimitDescriptor descriptor = strategy.apply(request);
+			if (descriptor != null) {
+				descriptors.add(descriptor);
+			}
+		}
+		return descriptors;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>Unlike {@link #consume(HttpServletRequest, long)}, the consumption is stored for every limitation unit
+	 * even if the budget of another one is not enough.</p>
+	 */
+	@Override
+	public abstract RateLimitDescriptor charge(HttpServletRequest request, long consumption);
+	
+	@Override
+	public String computeLimitationUnitName(HttpServletRequest request) {
+		if (additionalRecoveryStrategies.isEmpty()) {
+			return super.computeLimitationUnitName(request);
+		}
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
+			return null;
+		}
+		return descriptors.stream().map(RateLimitDescriptor::getLimitationUnitName).collect(Collectors.joining(","));
+	}
+	
+	/**
+	 * Returns the descriptor of the least budget, which decides whether the request is admitted.
+	 * 
+	 * @param descriptors descriptors of the limitation units applied to the request
+	 * @return the descriptor, or {@code null} if the descriptors are empty
+	 */
+	protected static RateLimitDescriptor mostConstrained(List<RateLimitDescriptor> descriptors) {
+		return descriptors.stream().min(Comparator.comparingLong(RateLimitDescriptor::getCurrentBudget)).orElse(null);
+	}
+}
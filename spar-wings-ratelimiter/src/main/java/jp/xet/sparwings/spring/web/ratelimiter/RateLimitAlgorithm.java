@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import lombok.Value;
+
+/**
+ * Algorithm to decide the budget of a limitation unit.
+ * 
+ * <p>The state of each limitation unit is represented by a small fixed number of longs, so that it can be updated
+ * atomically in memory, and the same algorithm is implemented by a Lua script to update it on redis in one round
+ * trip. Consumption is always recorded, and the caller decides whether to admit the request by the sign of the
+ * resulting budget, as {@link RateLimitingInterceptor} does.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see TokenBucketAlgorithm
+ * @see GcraAlgorithm
+ * @see SlidingWindowAlgorithm
+ */
+public interface RateLimitAlgorithm {
+	
+	/**
+	 * Create the state of fresh limitation unit.
+	 * 
+	 * @param descriptor descriptor computed by the recovery strategy
+	 * @return the state
+	 */
+	long[] initialState(RateLimitDescriptor descriptor);
+	
+	/**
+	 * Apply the consumption to the state.
+	 * 
+	 * @param state current state, which must not be modified
+	 * @param descriptor descriptor of the limitation unit
+	 * @param now current time in epoch milliseconds
+	 * @param consumption amount to consume, or negative amount to return
+	 * @return the next state and the budget after the consumption
+	 */
+	Outcome apply(long[] state, RateLimitDescriptor descriptor, long now, long consumption);
+	
+	/**
+	 * Compute the milliseconds to wait until the cost can be consumed without making the budget negative, if nothing
+	 * else is consumed meanwhile.
+	 * 
+	 * @param state current state
+	 * @param descriptor descriptor of the limitation unit
+	 * @param now current time in epoch milliseconds
+	 * @param cost amount to consume, or {@code 0} to wait until the budget is no longer negative
+	 * @return the milliseconds to wait, or {@link Long#MAX_VALUE} if the budget never recovers
+	 * @since 0.38
+	 */
+	long computeWaitMillis(long[] state, RateLimitDescriptor descriptor, long now, long cost);
+	
+	/**
+	 * Compute the time when the state becomes indistinguishable from a fresh one if nothing is consumed.
+	 * 
+	 * @param state current state
+	 * @param descriptor descriptor of the limitation unit
+	 * @return the time in epoch milliseconds
+	 */
+	long computeIdleDeadline(long[] state, RateLimitDescriptor descriptor);
+	
+	/**
+	 * Returns the prefix of redis keys to store the state.
+	 * 
+	 * @return the key prefix
+	 */
+	String getRedisKeyPrefix();
+	
+	/**
+	 * Returns the name of classpath resource of the Lua script, relative to this package. The script receives the
+	 * keys of limitation units in {@code KEYS}, and the current time, consumption, all-or-nothing flag, then the fill
+	 * rate and max budget of each unit in {@code ARGV}. It returns the current budget and the milliseconds to wait
+	 * until the budget is no longer negative of each unit, flattened.
+	 * 
+	 * @return the resource name
+	 */
+	String getRedisScriptName();
+	
+	
+	/**
+	 * Outcome of {@link RateLimitAlgorithm#apply(long[], RateLimitDescriptor, long, long)}.
+	 */
+	@Value
+	class Outcome {
+		
+		/** The next state */
+		long[] state;
+		
+		/** The budget after the consumption */
+		long budget;
+	}
+}
@@ -16,7 +16,6 @@
 package jp.xet.sparwings.spring.web.ratelimiter;
 
 import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -30,7 +29,6 @@ import lombok.experimental.Accessors;
  */
 @ToString
 @Accessors(chain = true)
-@AllArgsConstructor
 public class RateLimitDescriptor {
 	
 	@Getter
@@ -46,13 +44,32 @@ public class RateLimitDescriptor {
 	private long maxBudget;
 	
 	@Getter
-	@Setter(AccessLevel.PACKAGE)
 	private long currentBudget;
 	
 	@Getter
 	@Setter(AccessLevel.PACKAGE)
 	private long lastUpdateTime;
 	
+	/**
+	 * Milliseconds to wait until the current budget is no longer negative, computed by the {@link RateLimitAlgorithm},
+	 * or negative if unknown.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter(AccessLevel.PACKAGE)
+	private long millisecsToRecover = -1;
+	
+	/**
+	 * Whether the consumption resulted in this descriptor is stored, or {@code false} if it is rejected as a whole
+	 * since the budget of another limitation unit applied together is not enough.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter(AccessLevel.PACKAGE)
+	private boolean consumed = true;
+	
 	
 	public RateLimitDescriptor(String limitationUnitName, long fillRate, long maxBudget) {
 		this.limitationUnitName = limitationUnitName;
@@ -60,7 +77,56 @@ public class RateLimitDescriptor {
 		this.maxBudget = maxBudget;
 	}
 	
+	public RateLimitDescriptor(String limitationUnitName, long fillRate, long maxBudget, long currentBudget,
+			long lastUpdateTime) {
+		this(limitationUnitName, fillRate, maxBudget);
+		this.currentBudget = currentBudget;
+		this.lastUpdateTime = lastUpdateTime;
+	}
+	
+	/**
+	 * Set the current budget, and forget {@link #getMillisecsToRecover() millisecsToRecover} computed for the
+	 * previous budget.
+	 * 
+	 * @param currentBudget the current budget
+	 * @return this descriptor
+	 */
+	RateLimitDescriptor setCurrentBudget(long currentBudget) {
+		this.currentBudget = currentBudget;
+		millisecsToRecover = -1;
+		return this;
+	}
+	
 	public long computeWaitMillisecsToConsume(long cost) {
 		return (cost - currentBudget) / fillRate;
 	}
+	
+	/**
+	 * Compute the milliseconds to wait until the current budget is no longer negative. The wait computed by the
+	 * {@link RateLimitAlgorithm} is preferred, since the budget of some algorithms is not refilled linearly.
+	 * 
+	 * @return the milliseconds to wait
+	 * @since 0.38
+	 */
+	public long computeWaitMillisecsToRecover() {
+		if (millisecsToRecover >= 0) {
+			return millisecsToRecover;
+		}
+		return Math.max(0, computeWaitMillisecsToConsume(0));
+	}
+	
+	/**
+	 * Compute the milliseconds to wait until the budget recovers enough to consume the cost again, which is the wait
+	 * to recover computed by the {@link RateLimitAlgorithm} plus the time to refill the cost.
+	 * 
+	 * @param cost the cost to consume
+	 * @return the milliseconds to wait
+	 * @since 0.38
+	 */
+	public long computeWaitMillisecsToRetry(long cost) {
+		if (millisecsToRecover >= 0) {
+			return millisecsToRecover + (cost + fillRate - 1) / fillRate;
+		}
+		return Math.max(0, computeWaitMillisecsToConsume(cost));
+	}
 }
@@ -44,4 +44,31 @@ public interface RateLimitService {
 	 * @since 0.8
 	 */
 	RateLimitDescriptor get(HttpServletRequest request);
+	
+	/**
+	 * Consume the budgets of all limitation units of the request regardless of whether they are enough, such as to
+	 * settle the actual cost of the request admitted already.
+	 * 
+	 * <p>The default implementation delegates to {@link #consume(HttpServletRequest, long)}, which stores the
+	 * consumption of a single limitation unit even if the budget becomes negative.</p>
+	 * 
+	 * @param request the request
+	 * @param consumption amount to consume, or negative amount to return
+	 * @return {@link RateLimitDescriptor} or {@code null} if limitation is not applied.
+	 * @since 0.38
+	 */
+	default RateLimitDescriptor charge(HttpServletRequest request, long consumption) {
+		return consume(request, consumption);
+	}
+	
+	/**
+	 * Compute the name of limitation unit of the request, without touching the backing store.
+	 * 
+	 * @param request the request
+	 * @return the name of limitation unit, or {@code null} if it is unknown or limitation is not applied
+	 * @since 0.38
+	 */
+	default String computeLimitationUnitName(HttpServletRequest request) {
+		return null;
+	}
 }
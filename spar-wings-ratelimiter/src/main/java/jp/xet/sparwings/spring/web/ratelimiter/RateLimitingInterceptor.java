@@ -15,19 +15,31 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.web.method.HandlerMethod;
 import org.springframework.web.servlet.HandlerInterceptor;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 
+import jp.xet.baseunits.timeutil.Clock;
+
 import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
+import jp.xet.sparwings.spring.web.ratelimiter.AdaptiveConcurrencyLimiter.Permit;
 
 /**
  * リクエスト毎にレートリミットを判断する {@link HandlerInterceptor} 実装クラス。
@@ -35,16 +47,129 @@ import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
  * @since 0.8
  * @author daisuke
  */
-public class RateLimitingInterceptor extends HandlerInterceptorAdapter {
+@Slf4j
+public class RateLimitingInterceptor extends HandlerInterceptorAdapter implements DisposableBean {
 	
 	private static final int DEFAULT_CONSUMPTION = 100;
 	
+	private static final String PERMIT_ATTRIBUTE = RateLimitingInterceptor.class.getName() + ".PERMIT";
+	
+	private static final String RESERVATION_ATTRIBUTE = RateLimitingInterceptor.class.getName() + ".RESERVATION";
+	
+	private static final String PARKED_ATTRIBUTE = RateLimitingInterceptor.class.getName() + ".PARKED";
+	
+	/** Margin of async timeout of parked request over the wait, not to time out before dispatched */
+	private static final long PARKING_TIMEOUT_MARGIN_MILLIS = 10000;
+	
+	/**
+	 * Name of request attribute for handlers to report the actual cost of the request as {@link Number}, which is
+	 * settled after completion when {@link #setCostSettlementEnabled(boolean) costSettlementEnabled}.
+	 * 
+	 * @since 0.38
+	 */
+	public static final String ACTUAL_COST_ATTRIBUTE = RateLimitingInterceptor.class.getName() + ".ACTUAL_COST";
+	
 	private final RateLimitService rateLimitService;
 	
 	@Getter
 	@Setter
 	private boolean responseHeader = true;
 	
+	/**
+	 * Whether to reject requests of the limitation unit denied recently without touching {@link RateLimitService},
+	 * until its budget is expected to recover to zero.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private boolean denialCacheEnabled = true;
+	
+	/**
+	 * Max number of limitation units to remember denial.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private int denialCacheSize = 100000;
+	
+	/**
+	 * Limiter of concurrent requests applied before the rate limit, so that requests rejected by the limiter consume
+	 * no budget, or {@code null} not to limit concurrency. The permit is not held while the request is parked.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private AdaptiveConcurrencyLimiter concurrencyLimiter;
+	
+	/**
+	 * Whether to settle the difference between the cost consumed before handling and the actual cost computed by
+	 * {@link #computeActualCost(HttpServletRequest, HttpServletResponse, Object, long, long)} after completion.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private boolean costSettlementEnabled;
+	
+	/**
+	 * Actual cost per millisecond of handling, used when the handler does not report the actual cost.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private double costPerMillisecond;
+	
+	/**
+	 * Actual cost per kilobyte of {@code Content-Length} of response, used when the handler does not report the
+	 * actual cost.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private double costPerKilobyte;
+	
+	/**
+	 * Whether to park requests exceeding the budget until it is expected to recover, instead of rejecting them
+	 * immediately. Parked requests are released from the servlet thread by asynchronous processing, and dispatched
+	 * again to be handled without consuming the cost twice.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private boolean smoothingEnabled;
+	
+	/**
+	 * Max milliseconds to park a request, beyond which the request is rejected.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private long maxSmoothingWaitMillis = 100;
+	
+	/**
+	 * Max number of requests parked at once for each limitation unit, beyond which the request is rejected.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private int maxSmoothingWaitersPerUnit = 10;
+	
+	/** Time until which each limitation unit is denied, in epoch millis */
+	private final Map<String, Long> deniedUntil = new ConcurrentHashMap<>();
+	
+	/** Number of parked requests of each limitation unit */
+	private final Map<String, Integer> waiters = new ConcurrentHashMap<>();
+	
+	private ScheduledExecutorService scheduler;
+	
 	
 	/**
 	 * インスタンスを生成する。
@@ -59,12 +184,37 @@ public class RateLimitingInterceptor extends HandlerInterceptorAdapter {
 	@Override
 	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
 			throws Exception { // NOPMD
-		if (rateLimitService != null && isRateLimitTarget(request, response, handler)) {
-			rateLimit(request, response, handler);
+		if ((rateLimitService != null || concurrencyLimiter != null) && isRateLimitTarget(request, response, handler)) {
+			if (concurrencyLimiter != null) {
+				acquirePermit(request, handler);
+			}
+			boolean admitted = false;
+			try {
+				admitted = rateLimitService == null || rateLimit(request, response, handler);
+			} finally {
+				if (admitted == false) {
+					releasePermit(request, false);
+				}
+			}
+			if (admitted == false) {
+				return false;
+			}
 		}
 		return super.preHandle(request, response, handler);
 	}
 	
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) throws Exception { // NOPMD
+		releasePermit(request, true);
+		Object reservation = request.getAttribute(RESERVATION_ATTRIBUTE);
+		if (reservation instanceof Reservation) {
+			request.removeAttribute(RESERVATION_ATTRIBUTE);
+			settle(request, response, handler, (Reservation) reservation);
+		}
+		super.afterCompletion(request, response, handler, ex);
+	}
+	
 	/**
 	 * TODO for daisuke
 	 * 
@@ -77,12 +227,36 @@ public class RateLimitingInterceptor extends HandlerInterceptorAdapter {
 		return true;
 	}
 	
-	private void rateLimit(HttpServletRequest request, HttpServletResponse response, Object handler)
+	@Override
+	public synchronized void destroy() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Consume the cost of request, and reject or park it if the budget is not enough.
+	 * 
+	 * @return {@code false} if the request is parked
+	 */
+	private boolean rateLimit(HttpServletRequest request, HttpServletResponse response, Object handler)
 			throws HttpTooManyRequestsException {
 		int cost = computeCost(request, handler);
+		if (Boolean.TRUE.equals(request.getAttribute(PARKED_ATTRIBUTE))) {
+			// dispatched again after parked, and the cost is consumed already
+			request.setAttribute(PARKED_ATTRIBUTE, Boolean.FALSE);
+			if (costSettlementEnabled) {
+				reserve(request, cost);
+			}
+			return true;
+		}
+		String unitName = denialCacheEnabled ? rateLimitService.computeLimitationUnitName(request) : null;
+		if (unitName != null) {
+			rejectIfDenied(unitName, response);
+		}
 		RateLimitDescriptor desc = rateLimitService.consume(request, cost);
 		if (desc == null) {
-			return; // through
+			return true; // through
 		}
 		
 		if (responseHeader) {
@@ -94,13 +268,174 @@ public class RateLimitingInterceptor extends HandlerInterceptorAdapter {
 		}
 		
 		if (desc.getCurrentBudget() < 0) {
-			long millisecsToWait = desc.computeWaitMillisecsToConsume(cost);
+			if (smoothingEnabled && park(request, response, desc)) {
+				return false;
+			}
+			if (unitName != null) {
+				cacheDenial(unitName, desc);
+			}
+			long millisecsToWait = desc.computeWaitMillisecsToRetry(cost);
 			if (responseHeader) {
 				long secsToWait = Math.floorDiv(millisecsToWait, 1000L);
 				response.setHeader("Retry-After", String.valueOf(secsToWait));
 			}
 			throw new HttpTooManyRequestsException(millisecsToWait);
 		}
+		if (costSettlementEnabled) {
+			reserve(request, cost);
+		}
+		return true;
+	}
+	
+	/**
+	 * Park the request until the budget recovers to zero. If the cost is consumed already, the request is admitted
+	 * without consuming again when dispatched, otherwise it is rate limited once more.
+	 */
+	private boolean park(HttpServletRequest request, HttpServletResponse response, RateLimitDescriptor desc) {
+		if (desc.getFillRate() <= 0 || request.isAsyncSupported() == false
+				|| request.getAttribute(PARKED_ATTRIBUTE) != null) {
+			return false; // never recovers, or parked once already
+		}
+		long millisecsToWait = desc.computeWaitMillisecsToRecover() + 1; // rounded up
+		if (millisecsToWait > maxSmoothingWaitMillis) {
+			return false;
+		}
+		String unitName = desc.getLimitationUnitName();
+		if (waiters.merge(unitName, 1, Integer::sum) > maxSmoothingWaitersPerUnit) {
+			leave(unitName);
+			return false;
+		}
+		try {
+			request.setAttribute(PARKED_ATTRIBUTE, desc.isConsumed());
+			AsyncContext asyncContext = request.startAsync(request, response);
+			asyncContext.setTimeout(millisecsToWait + PARKING_TIMEOUT_MARGIN_MILLIS);
+			getScheduler().schedule(() -> {
+				leave(unitName);
+				try {
+					asyncContext.dispatch();
+				} catch (IllegalStateException e) {
+					log.debug("Parked request is already completed: {}", e.getMessage());
+				}
+			}, millisecsToWait, TimeUnit.MILLISECONDS);
+			log.debug("Parked request of {} for {} ms", unitName, millisecsToWait);
+			return true;
+		} catch (IllegalStateException | RejectedExecutionException e) {
+			leave(unitName);
+			request.removeAttribute(PARKED_ATTRIBUTE);
+			log.warn("Failed to park request of {}", unitName, e);
+			return false;
+		}
+	}
+	
+	private void leave(String unitName) {
+		waiters.computeIfPresent(unitName, (k, count) -> count <= 1 ? null : count - 1);
+	}
+	
+	private synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "ratelimit-smoothing");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return scheduler;
+	}
+	
+	private void reserve(HttpServletRequest request, long cost) {
+		Object previous = request.getAttribute(RESERVATION_ATTRIBUTE);
+		if (previous instanceof Reservation) {
+			// dispatched again for asynchronous processing, and consumed again
+			((Reservation) previous).cost += cost;
+		} else {
+			request.setAttribute(RESERVATION_ATTRIBUTE, new Reservation(cost, System.nanoTime()));
+		}
+	}
+	
+	private void settle(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Reservation reservation) {
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reservation.startTime);
+		long actual = computeActualCost(request, response, handler, reservation.cost, elapsedMillis);
+		long difference = actual - reservation.cost;
+		if (difference == 0) {
+			return;
+		}
+		try {
+			rateLimitService.charge(request, difference);
+		} catch (RuntimeException e) { // NOPMD - cc
+			log.warn("Failed to settle cost {} (reserved {})", actual, reservation.cost, e);
+		}
+	}
+	
+	private void acquirePermit(HttpServletRequest request, Object handler) throws HttpTooManyRequestsException {
+		if (request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+			return; // dispatched again for asynchronous processing, and the permit is still held
+		}
+		Permit permit = concurrencyLimiter.tryAcquire();
+		if (permit == null) {
+			if (rateLimitService != null && Boolean.TRUE.equals(request.getAttribute(PARKED_ATTRIBUTE))) {
+				// dispatched again after parked, and the cost consumed already is returned
+				request.setAttribute(PARKED_ATTRIBUTE, Boolean.FALSE);
+				refund(request, computeCost(request, handler));
+			}
+			throw new HttpTooManyRequestsException("Too many concurrent requests");
+		}
+		request.setAttribute(PERMIT_ATTRIBUTE, permit);
+	}
+	
+	/**
+	 * Release the permit held by the request, sampling the latency only if the request is processed.
+	 */
+	private void releasePermit(HttpServletRequest request, boolean processed) {
+		Object permit = request.getAttribute(PERMIT_ATTRIBUTE);
+		if (permit instanceof Permit) {
+			request.removeAttribute(PERMIT_ATTRIBUTE);
+			if (processed) {
+				((Permit) permit).release();
+			} else {
+				((Permit) permit).cancel();
+			}
+		}
+	}
+	
+	private void refund(HttpServletRequest request, long cost) {
+		try {
+			rateLimitService.charge(request, -cost);
+		} catch (RuntimeException e) { // NOPMD - cc
+			log.warn("Failed to refund cost {}", cost, e);
+		}
+	}
+	
+	private void rejectIfDenied(String unitName, HttpServletResponse response) throws HttpTooManyRequestsException {
+		Long until = deniedUntil.get(unitName);
+		if (until == null) {
+			return;
+		}
+		long millisecsToWait = until - Clock.now().toEpochMillisec();
+		if (millisecsToWait <= 0) {
+			deniedUntil.remove(unitName, until);
+			return;
+		}
+		if (responseHeader) {
+			response.setHeader("RateLimit-Unit", unitName);
+			response.setHeader("Retry-After", String.valueOf(Math.floorDiv(millisecsToWait, 1000L)));
+		}
+		throw new HttpTooManyRequestsException(millisecsToWait);
+	}
+	
+	private void cacheDenial(String unitName, RateLimitDescriptor desc) {
+		if (desc.getFillRate() <= 0) {
+			return;
+		}
+		long now = Clock.now().toEpochMillisec();
+		if (deniedUntil.size() >= denialCacheSize) {
+			deniedUntil.values().removeIf(until -> until <= now);
+			if (deniedUntil.size() >= denialCacheSize) {
+				return;
+			}
+		}
+		// until the budget recovers to zero, every request is denied regardless of its cost
+		deniedUntil.put(unitName, now + desc.computeWaitMillisecsToRecover());
 	}
 	
 	/**
@@ -118,4 +453,54 @@ public class RateLimitingInterceptor extends HandlerInterceptorAdapter {
 		int cost = Optional.ofNullable(rateLimited).map(RateLimited::value).orElse(DEFAULT_CONSUMPTION);
 		return cost; // NOPMD
 	}
+	
+	/**
+	 * Compute actual cost of completed request, which is settled against the reserved cost.
+	 * 
+	 * <p>The cost reported by the handler as {@link #ACTUAL_COST_ATTRIBUTE} is used if present. Otherwise it is
+	 * computed from the elapsed time and the response size if {@link #setCostPerMillisecond(double)} or
+	 * {@link #setCostPerKilobyte(double)} is set, or the reserved cost is kept.</p>
+	 * 
+	 * @param request The request
+	 * @param response The response
+	 * @param handler The handler of request
+	 * @param reservedCost cost consumed before handling
+	 * @param elapsedMillis milliseconds elapsed since the cost is reserved
+	 * @return actual cost
+	 * @since 0.38
+	 */
+	protected long computeActualCost(HttpServletRequest request, HttpServletResponse response, Object handler,
+			long reservedCost, long elapsedMillis) {
+		Object reported = request.getAttribute(ACTUAL_COST_ATTRIBUTE);
+		if (reported instanceof Number) {
+			return ((Number) reported).longValue();
+		}
+		if (costPerMillisecond <= 0 && costPerKilobyte <= 0) {
+			return reservedCost;
+		}
+		double cost = elapsedMillis * costPerMillisecond;
+		String contentLength = response.getHeader("Content-Length");
+		if (costPerKilobyte > 0 && contentLength != null) {
+			try {
+				cost += Long.parseLong(contentLength) / 1024.0 * costPerKilobyte;
+			} catch (NumberFormatException e) {
+				log.debug("Invalid Content-Length: {}", contentLength);
+			}
+		}
+		return (long) Math.ceil(cost);
+	}
+	
+	
+	private static class Reservation {
+		
+		private long cost;
+		
+		private final long startTime;
+		
+		
+		Reservation(long cost, long startTime) {
+			this.cost = cost;
+			this.startTime = startTime;
+		}
+	}
 }
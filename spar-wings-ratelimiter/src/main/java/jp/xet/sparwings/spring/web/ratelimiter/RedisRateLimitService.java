@@ -15,108 +15,181 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
+import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 import jp.xet.baseunits.timeutil.Clock;
 
 /**
  * {@link RateLimitService} implementation to store values in redis.
  * 
+ * <p>The state of each limitation unit is stored in one key, and updated by the Lua script of the
+ * {@link RateLimitAlgorithm} in a single round trip, so that concurrent requests are applied atomically. The key
+ * expires when the state becomes indistinguishable from a fresh one.</p>
+ * 
+ * <p>When multiple limitation units are applied by {@link #setAdditionalRecoveryStrategies(List)}, all of their keys
+ * are evaluated by one script call, and the budgets are consumed only if all of them are enough. Note that the keys
+ * must be in the same hash slot for Redis Cluster, e.g. by using hash tags in the limitation unit names.</p>
+ * 
  * @since 0.8
  * @author daisuke
  */
 @Slf4j
-@RequiredArgsConstructor
-public class RedisRateLimitService extends AbstractRateLimitService {
+public class RedisRateLimitService extends MultiUnitRateLimitService {
+	
+	private static final RedisSerializer<String> ARGS_SERIALIZER = new StringRedisSerializer();
+	
+	private static final RedisSerializer<Long> RESULT_SERIALIZER = new GenericToStringSerializer<>(Long.class);
 	
 	@Getter
 	private final RedisTemplate<String, Long> redisTemplate;
 	
+	/**
+	 * Algorithm to compute the budget.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private final RateLimitAlgorithm algorithm;
+	
+	@SuppressWarnings("rawtypes")
+	private final RedisScript<List> script;
+	
+	
+	/**
+	 * Create instance with {@link TokenBucketAlgorithm}.
+	 * 
+	 * @param redisTemplate {@link RedisTemplate}
+	 */
+	public RedisRateLimitService(RedisTemplate<String, Long> redisTemplate) {
+		this(redisTemplate, new TokenBucketAlgorithm());
+	}
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param redisTemplate {@link RedisTemplate}
+	 * @param algorithm algorithm to compute the budget
+	 * @since 0.38
+	 */
+	@SuppressWarnings("rawtypes")
+	public RedisRateLimitService(RedisTemplate<String, Long> redisTemplate, @NonNull RateLimitAlgorithm algorithm) {
+		this.redisTemplate = redisTemplate;
+		this.algorithm = algorithm;
+		DefaultRedisScript<List> script = new DefaultRedisScript<>();
+		script.setLocation(new ClassPathResource(algorithm.getRedisScriptName(), RateLimitAlgorithm.class));
+		script.setResultType(List.class);
+		this.script = script;
+	}
 	
 	@Override
-	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) { // NOPMD - nc
-		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
-		if (descriptor == null) {
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
 			return null;
 		}
-		String limitationUnitName = descriptor.getLimitationUnitName();
-		long fillRate = descriptor.getFillRate();
-		long maxBudget = descriptor.getMaxBudget();
-		long now = Clock.now().toEpochMillisec();
-		
-		String tKey = "ratelimit:t:" + limitationUnitName;
-		String cKey = "ratelimit:c:" + limitationUnitName;
-		
-		long delta = consumption;
-		Long ts = redisTemplate.opsForValue().getAndSet(tKey, now);
-		if (ts != null) {
-			long secSinceLastUpdate = now - ts;
-			log.debug("Time (sec) since last update = {}", secSinceLastUpdate);
-			delta -= secSinceLastUpdate * fillRate;
-		}
-		Long carma = redisTemplate.opsForValue().increment(cKey, delta);
-		if (carma == null) {
-			throw new AssertionError("Unexpected condition. can not do in transaction");
-		}
-		
-		if (carma < consumption) {
-			redisTemplate.opsForValue().set(cKey, consumption);
-			carma = consumption;
+		boolean allOrNothing = descriptors.size() > 1;
+		List<RateLimitDescriptor> results = execute(descriptors, consumption, allOrNothing);
+		RateLimitDescriptor result = results.stream()
+			.filter(d -> d.getCurrentBudget() < 0)
+			.findFirst()
+			.map(d -> d.setConsumed(allOrNothing == false))
+			.orElseGet(() -> mostConstrained(results));
+		log.info("Budget after current request (consumed {}): {}", consumption, result.getCurrentBudget());
+		return result;
+	}
+	
+	@Override
+	public RateLimitDescriptor charge(HttpServletRequest request, long consumption) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
+			return null;
 		}
-		
-		log.info("Budget before current request (filled {}): {}",
-				ts == null ? "<unknown>" : (now - ts) * fillRate,
-				ts == null ? maxBudget : maxBudget - carma + consumption);
-		log.info("Budget after current request (consumed {}): {}", consumption, maxBudget - carma);
-		
-		long expire = carma / fillRate;
-		redisTemplate.expire(tKey, expire, TimeUnit.SECONDS);
-		redisTemplate.expire(cKey, expire, TimeUnit.SECONDS);
-		
-		descriptor.setCurrentBudget(maxBudget - carma);
-		return descriptor;
+		RateLimitDescriptor result = mostConstrained(execute(descriptors, consumption, false));
+		log.info("Budget after charge (charged {}): {}", consumption, result.getCurrentBudget());
+		return result;
 	}
 	
 	@Override
 	public RateLimitDescriptor get(HttpServletRequest request) {
-		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
-		if (descriptor == null) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
 			return null;
 		}
-		String limitationUnitName = descriptor.getLimitationUnitName();
-		long fillRate = descriptor.getFillRate();
-		long maxBudget = descriptor.getMaxBudget();
-		
+		RateLimitDescriptor result = mostConstrained(execute(descriptors, 0, false));
+		log.info("Current budget: {}", result.getCurrentBudget());
+		return result;
+	}
+	
+	/**
+	 * Consume the budget of the limitation unit described by the descriptor.
+	 * 
+	 * @param descriptor descriptor computed by the recovery strategy, which is updated to the current budget
+	 * @param consumption amount to consume, or negative amount to return
+	 * @return the descriptor
+	 * @since 0.38
+	 */
+	RateLimitDescriptor consume(RateLimitDescriptor descriptor, long consumption) {
+		return execute(Collections.singletonList(descriptor), consumption, false).get(0);
+	}
+	
+	/**
+	 * Consume the budgets of the limitation units in a single script call.
+	 * 
+	 * @param descriptors descriptors computed by the recovery strategies, which are updated to the current budgets
+	 * @param consumption amount to consume, or negative amount to return
+	 * @param allOrNothing {@code true} to consume only if the budgets of all units are enough
+	 * @return the descriptors
+	 */
+	@SuppressWarnings({
+		"unchecked",
+		"rawtypes"
+	})
+	private List<RateLimitDescriptor> execute(List<RateLimitDescriptor> descriptors, long consumption,
+			boolean allOrNothing) {
 		long now = Clock.now().toEpochMillisec();
-		String tKey = "ratelimit:t:" + limitationUnitName;
-		String cKey = "ratelimit:c:" + limitationUnitName;
-		
-		long delta = 0;
-		Long ts = redisTemplate.opsForValue().getAndSet(tKey, now);
-		if (ts != null) {
-			long msSinceLastUpdate = now - ts;
-			log.debug("Time (ms) since last update = {}", msSinceLastUpdate);
-			delta -= msSinceLastUpdate * fillRate;
+		List<String> keys = new ArrayList<>(descriptors.size());
+		Object[] args = new Object[3 + 2 * descriptors.size()];
+		args[0] = String.valueOf(now);
+		args[1] = String.valueOf(consumption);
+		args[2] = allOrNothing ? "1" : "0";
+		for (int i = 0; i < descriptors.size(); i++) {
+			RateLimitDescriptor descriptor = descriptors.get(i);
+			keys.add(algorithm.getRedisKeyPrefix() + descriptor.getLimitationUnitName());
+			args[3 + 2 * i] = String.valueOf(descriptor.getFillRate());
+			args[4 + 2 * i] = String.valueOf(descriptor.getMaxBudget());
+		}
+		List<Long> reply = redisTemplate.execute(script, ARGS_SERIALIZER, (RedisSerializer) RESULT_SERIALIZER, keys,
+				args);
+		if (reply == null || reply.size() < 2 * descriptors.size()) {
+			throw new AssertionError("Unexpected reply of rate limit script: " + reply);
 		}
-		Long carma = redisTemplate.opsForValue().increment(cKey, delta);
-		if (carma == null) {
-			throw new AssertionError("Unexpected condition. can not do in transaction");
+		for (int i = 0; i < descriptors.size(); i++) {
+			RateLimitDescriptor descriptor = descriptors.get(i);
+			long budget = reply.get(2 * i);
+			long retryAfter = reply.get(2 * i + 1);
+			if (retryAfter > 0) {
+				log.debug("Budget of {} recovers in {} ms", descriptor.getLimitationUnitName(), retryAfter);
+			}
+			descriptor.setCurrentBudget(budget);
+			descriptor.setLastUpdateTime(now);
+			descriptor.setMillisecsToRecover(retryAfter);
 		}
-		
-		long expire = carma / fillRate;
-		redisTemplate.expire(tKey, expire, TimeUnit.SECONDS);
-		redisTemplate.expire(cKey, expire, TimeUnit.SECONDS);
-		
-		descriptor.setCurrentBudget(maxBudget - carma);
-		log.info("Current budget: (filled {}) and {}", delta, descriptor.getCurrentBudget());
-		return descriptor;
+		return descriptors;
 	}
 }
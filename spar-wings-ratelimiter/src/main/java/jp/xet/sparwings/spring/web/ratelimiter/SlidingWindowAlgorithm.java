@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+/**
+ * Sliding window counter.
+ * 
+ * <p>Time is divided into fixed windows of the length to fill the max budget by the fill rate, and the max budget
+ * may be consumed per window. The consumption in the sliding window is estimated by the count of the current window
+ * plus the count of the previous window weighted by its overlap. The state is the start of the current window and the
+ * counts of the current and the previous windows.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class SlidingWindowAlgorithm implements RateLimitAlgorithm {
+	
+	private static final int WINDOW_START = 0;
+	
+	private static final int CURRENT = 1;
+	
+	private static final int PREVIOUS = 2;
+	
+	/** Window length when the fill rate is not positive */
+	private static final long UNBOUNDED_WINDOW_MILLIS = 1L << 60;
+	
+	
+	@Override
+	public long[] initialState(RateLimitDescriptor descriptor) {
+		return new long[3];
+	}
+	
+	@Override
+	public Outcome apply(long[] state, RateLimitDescriptor descriptor, long now, long consumption) {
+		long window = computeWindowMillis(descriptor);
+		long windowStart = now - Math.floorMod(now, window);
+		long current = state[CURRENT];
+		long previous = state[PREVIOUS];
+		if (windowStart <= state[WINDOW_START]) {
+			windowStart = state[WINDOW_START];
+		} else if (windowStart - window == state[WINDOW_START]) {
+			previous = current;
+			current = 0;
+		} else {
+			previous = 0;
+			current = 0;
+		}
+		current = Math.max(0, current + consumption);
+		long elapsed = Math.min(window, Math.max(0, now - windowStart));
+		long weighted = (long) (previous * ((double) (window - elapsed) / window));
+		return new Outcome(new long[] {
+			windowStart,
+			current,
+			previous
+		}, descriptor.getMaxBudget() - weighted - current);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>The weighted count of the previous window decreases linearly until the end of the current window, then the
+	 * count of the current window becomes the previous one. So the budget may recover much earlier than the linear
+	 * refill by the fill rate implies, or only after the current window.</p>
+	 */
+	@Override
+	public long computeWaitMillis(long[] state, RateLimitDescriptor descriptor, long now, long cost) {
+		Outcome outcome = apply(state, descriptor, now, 0);
+		if (outcome.getBudget() >= cost) {
+			return 0;
+		}
+		if (descriptor.getFillRate() <= 0) {
+			return Long.MAX_VALUE;
+		}
+		long[] current = outcome.getState();
+		long maxBudget = descriptor.getMaxBudget();
+		long room = maxBudget - current[CURRENT] - cost;
+		if (room >= 0) {
+			long elapsed = Math.max(0, now - current[WINDOW_START]);
+			return Math.max(0, computeElapsedToFit(current[PREVIOUS], room, descriptor) - elapsed);
+		}
+		if (maxBudget - cost < 0) {
+			return Long.MAX_VALUE;
+		}
+		long nextWindowStart = current[WINDOW_START] + computeWindowMillis(descriptor);
+		return Math.max(0, nextWindowStart - now)
+				+ computeElapsedToFit(current[CURRENT], maxBudget - cost, descriptor);
+	}
+	
+	@Override
+	public long computeIdleDeadline(long[] state, RateLimitDescriptor descriptor) {
+		if (state[CURRENT] == 0 && state[PREVIOUS] == 0) {
+			return state[WINDOW_START];
+		}
+		long window = computeWindowMillis(descriptor);
+		long deadline = state[WINDOW_START] + 2 * window;
+		return deadline < state[WINDOW_START] ? Long.MAX_VALUE : deadline;
+	}
+	
+	@Override
+	public String getRedisKeyPrefix() {
+		return "ratelimit:w:";
+	}
+	
+	@Override
+	public String getRedisScriptName() {
+		return "sliding-window.lua";
+	}
+	
+	/**
+	 * Compute the elapsed time in a window since when the weighted count of the previous window fits in the room.
+	 */
+	private static long computeElapsedToFit(long previous, long room, RateLimitDescriptor descriptor) {
+		if (previous <= room) {
+			return 0;
+		}
+		long window = computeWindowMillis(descriptor);
+		return window - (long) Math.floor((double) room * window / previous);
+	}
+	
+	static long computeWindowMillis(RateLimitDescriptor descriptor) {
+		if (descriptor.getFillRate() <= 0) {
+			return UNBOUNDED_WINDOW_MILLIS;
+		}
+		return Math.max(1, (descriptor.getMaxBudget() + descriptor.getFillRate() - 1) / descriptor.getFillRate());
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.util.Assert;
+
+/**
+ * Hashed timing wheel to expire elements lazily.
+ * 
+ * <p>Each element sits in the slot of its deadline tick. When the wheel advances past a slot, the deadline of
+ * each element in it is re-evaluated by {@link Expirer}, so that elements whose deadline was extended in the meantime
+ * are simply rescheduled instead of being moved on every update. Scheduling is O(1) and lock-free, and advancing is
+ * amortized O(1) per element and tick. Elements may expire later than their deadline (at most one revolution), but
+ * never earlier.</p>
+ * 
+ * @param <E> type of element
+ * @since 0.38
+ * @author daisuke
+ */
+class TimingWheel<E> {
+	
+	private final long tickMillis;
+	
+	private final int mask;
+	
+	private final List<Queue<E>> slots;
+	
+	private final Lock advanceLock = new ReentrantLock();
+	
+	/** The next tick to be processed, or {@link Long#MIN_VALUE} before the first advance */
+	private volatile long currentTick = Long.MIN_VALUE;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param tickMillis duration of one tick in milliseconds
+	 * @param wheelSize number of slots, must be power of 2
+	 * @throws IllegalArgumentException if the argument is invalid
+	 */
+	TimingWheel(long tickMillis, int wheelSize) {
+		Assert.isTrue(tickMillis > 0, "tickMillis must be positive");
+		Assert.isTrue(wheelSize > 0 && Integer.bitCount(wheelSize) == 1, "wheelSize must be power of 2");
+		this.tickMillis = tickMillis;
+		mask = wheelSize - 1;
+		slots = new ArrayList<>(wheelSize);
+		for (int i = 0; i < wheelSize; i++) {
+			slots.add(new ConcurrentLinkedQueue<>());
+		}
+	}
+	
+	/**
+	 * Schedule the element to be examined at the deadline.
+	 * 
+	 * @param element element
+	 * @param deadline deadline in epoch milliseconds
+	 */
+	void schedule(E element, long deadline) {
+		long tick = Math.max(Math.max(deadline, 0) / tickMillis, currentTick);
+		slots.get((int) (tick & mask)).add(element);
+	}
+	
+	/**
+	 * Process the ticks elapsed until {@code now}. Returns immediately if no tick has elapsed, or other thread is
+	 * advancing the wheel.
+	 * 
+	 * @param now current time in epoch milliseconds
+	 * @param expirer callback to examine the elements whose slot has come
+	 */
+	void advance(long now, Expirer<E> expirer) {
+		long nowTick = Math.max(now, 0) / tickMillis;
+		if (currentTick != Long.MIN_VALUE && nowTick <= currentTick) {
+			return;
+		}
+		if (advanceLock.tryLock() == false) {
+			return;
+		}
+		try {
+			if (currentTick == Long.MIN_VALUE) {
+				currentTick = nowTick;
+				return;
+			}
+			List<E> batch = new ArrayList<>();
+			for (int step = 0; currentTick < nowTick && step <= mask; step++) {
+				Queue<E> slot = slots.get((int) (currentTick & mask));
+				E element;
+				while ((element = slot.poll()) != null) {
+					batch.add(element);
+				}
+				currentTick++;
+				for (E e : batch) {
+					long deadline = expirer.expire(e, now);
+					if (deadline != Expirer.EXPIRED) {
+						schedule(e, deadline);
+					}
+				}
+				batch.clear();
+			}
+			if (currentTick < nowTick) {
+				// all slots have been visited once in this advance
+				currentTick = nowTick;
+			}
+		} finally {
+			advanceLock.unlock();
+		}
+	}
+	
+	
+	/**
+	 * Callback to examine the element whose slot has come.
+	 * 
+	 * @param <E> type of element
+	 */
+	@FunctionalInterface
+	interface Expirer<E> {
+		
+		/** Return value to indicate the element has expired */
+		long EXPIRED = -1L;
+		
+		
+		/**
+		 * Expire the element if its deadline has passed.
+		 * 
+		 * @param element element
+		 * @param now current time in epoch milliseconds
+		 * @return {@link #EXPIRED} if the element has been expired, otherwise its next deadline
+		 */
+		long expire(E element, long now);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+/**
+ * Token bucket refilled linearly by the fill rate up to the max budget.
+ * 
+ * <p>The state is the budget and the last update time.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class TokenBucketAlgorithm implements RateLimitAlgorithm {
+	
+	private static final int BUDGET = 0;
+	
+	private static final int LAST_UPDATE = 1;
+	
+	
+	@Override
+	public long[] initialState(RateLimitDescriptor descriptor) {
+		return new long[] {
+			descriptor.getCurrentBudget(),
+			descriptor.getLastUpdateTime()
+		};
+	}
+	
+	@Override
+	public Outcome apply(long[] state, RateLimitDescriptor descriptor, long now, long consumption) {
+		long fill = Math.max(0, now - state[LAST_UPDATE]) * descriptor.getFillRate();
+		long refilled = Math.min(descriptor.getMaxBudget(), state[BUDGET] + fill);
+		long budget = Math.min(descriptor.getMaxBudget(), refilled - consumption);
+		return new Outcome(new long[] {
+			budget,
+			Math.max(now, state[LAST_UPDATE])
+		}, budget);
+	}
+	
+	@Override
+	public long computeWaitMillis(long[] state, RateLimitDescriptor descriptor, long now, long cost) {
+		long deficit = cost - apply(state, descriptor, now, 0).getBudget();
+		if (deficit <= 0) {
+			return 0;
+		}
+		if (descriptor.getFillRate() <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return (deficit + descriptor.getFillRate() - 1) / descriptor.getFillRate();
+	}
+	
+	@Override
+	public long computeIdleDeadline(long[] state, RateLimitDescriptor descriptor) {
+		long deficit = descriptor.getMaxBudget() - state[BUDGET];
+		if (deficit <= 0) {
+			return state[LAST_UPDATE];
+		}
+		if (descriptor.getFillRate() <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return state[LAST_UPDATE] + (deficit + descriptor.getFillRate() - 1) / descriptor.getFillRate();
+	}
+	
+	@Override
+	public String getRedisKeyPrefix() {
+		return "ratelimit:b:";
+	}
+	
+	@Override
+	public String getRedisScriptName() {
+		return "token-bucket.lua";
+	}
+}
@@ -0,0 +1,56 @@
+-- GCRA of RedisRateLimitService, updated atomically in one round trip.
+--
+-- KEYS[i]: key of the theoretical arrival time of i-th limitation unit, measured in budget (milliseconds multiplied
+--          by fill rate)
+-- ARGV[1]: current time in epoch milliseconds
+-- ARGV[2]: consumption, or negative amount to return
+-- ARGV[3]: "1" to consume only if the budgets of all units are enough, "0" to consume regardless
+-- ARGV[2 + 2i]: fill rate per millisecond of i-th limitation unit
+-- ARGV[3 + 2i]: max budget of i-th limitation unit
+--
+-- Returns {current budget, milliseconds to wait until the budget is no longer negative} of each limitation unit,
+-- flattened
+
+local now_millis = tonumber(ARGV[1])
+local consumption = tonumber(ARGV[2])
+local all_or_nothing = ARGV[3] == '1'
+
+local reply = {}
+local updates = {}
+local enough = true
+for i, key in ipairs(KEYS) do
+	local fill_rate = tonumber(ARGV[2 + 2 * i])
+	local max_budget = tonumber(ARGV[3 + 2 * i])
+	local now = now_millis * fill_rate
+	local tat = tonumber(redis.call('GET', key)) or now
+	tat = math.max(math.max(tat, now) + consumption, now)
+	updates[i] = {tat, now, fill_rate}
+	
+	local budget = max_budget - (tat - now)
+	local retry_after = 0
+	if budget < 0 then
+		enough = false
+		if fill_rate > 0 then
+			retry_after = math.ceil(-budget / fill_rate)
+		end
+	end
+	reply[2 * i - 1] = budget
+	reply[2 * i] = retry_after
+end
+
+if enough or not all_or_nothing then
+	for i, key in ipairs(KEYS) do
+		local tat, now, fill_rate = unpack(updates[i])
+		if tat > now then
+			if fill_rate > 0 then
+				-- the state is indistinguishable from a fresh one when the arrival time has passed
+				redis.call('SET', key, string.format('%d', tat), 'PX', math.ceil((tat - now) / fill_rate))
+			else
+				redis.call('SET', key, string.format('%d', tat))
+			end
+		else
+			redis.call('DEL', key)
+		end
+	end
+end
+return reply
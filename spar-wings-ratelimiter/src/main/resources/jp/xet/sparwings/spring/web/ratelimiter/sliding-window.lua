@@ -0,0 +1,89 @@
+-- Sliding window counter of RedisRateLimitService, updated atomically in one round trip.
+--
+-- KEYS[i]: key of the hash of i-th limitation unit, which has fields "w" (start of current window), "c" (count of
+--          current window) and "p" (count of previous window)
+-- ARGV[1]: current time in epoch milliseconds
+-- ARGV[2]: consumption, or negative amount to return
+-- ARGV[3]: "1" to consume only if the budgets of all units are enough, "0" to consume regardless
+-- ARGV[2 + 2i]: fill rate per millisecond of i-th limitation unit, max budget may be consumed per the time to fill it
+-- ARGV[3 + 2i]: max budget of i-th limitation unit
+--
+-- Returns {current budget, milliseconds to wait until the budget is no longer negative} of each limitation unit,
+-- flattened
+
+local now = tonumber(ARGV[1])
+local consumption = tonumber(ARGV[2])
+local all_or_nothing = ARGV[3] == '1'
+
+-- elapsed time in a window since when the weighted count of the previous window fits in the room
+local function elapsed_to_fit(previous, room, window)
+	if previous <= room then
+		return 0
+	end
+	return window - math.floor(room * window / previous)
+end
+
+local reply = {}
+local updates = {}
+local enough = true
+for i, key in ipairs(KEYS) do
+	local fill_rate = tonumber(ARGV[2 + 2 * i])
+	local max_budget = tonumber(ARGV[3 + 2 * i])
+	local window = 2 ^ 60
+	if fill_rate > 0 then
+		window = math.max(1, math.ceil(max_budget / fill_rate))
+	end
+	local window_start = now - (now % window)
+	
+	local current = 0
+	local previous = 0
+	local state = redis.call('HMGET', key, 'w', 'c', 'p')
+	if state[1] then
+		local stored_start = tonumber(state[1])
+		if window_start <= stored_start then
+			window_start = stored_start
+			current = tonumber(state[2])
+			previous = tonumber(state[3])
+		elseif window_start - window == stored_start then
+			previous = tonumber(state[2])
+		end
+	end
+	current = math.max(0, current + consumption)
+	updates[i] = {window_start, current, previous, window, fill_rate}
+	
+	local elapsed = math.min(window, math.max(0, now - window_start))
+	local weighted = math.floor(previous * (window - elapsed) / window)
+	local budget = max_budget - weighted - current
+	local retry_after = 0
+	if budget < 0 then
+		enough = false
+		if fill_rate > 0 then
+			local room = max_budget - current
+			if room >= 0 then
+				retry_after = math.max(0, elapsed_to_fit(previous, room, window) - elapsed)
+			else
+				-- the current count is weighted out during the next window
+				retry_after = window_start + window - now + elapsed_to_fit(current, max_budget, window)
+			end
+		end
+	end
+	reply[2 * i - 1] = budget
+	reply[2 * i] = retry_after
+end
+
+if enough or not all_or_nothing then
+	for i, key in ipairs(KEYS) do
+		local window_start, current, previous, window, fill_rate = unpack(updates[i])
+		if current > 0 or previous > 0 then
+			redis.call('HMSET', key, 'w', string.format('%d', window_start),
+				'c', string.format('%d', current), 'p', string.format('%d', previous))
+			if fill_rate > 0 then
+				-- the state is indistinguishable from a fresh one when both windows have passed
+				redis.call('PEXPIRE', key, math.max(1, window_start + 2 * window - now))
+			end
+		else
+			redis.call('DEL', key)
+		end
+	end
+end
+return reply
@@ -0,0 +1,61 @@
+-- Token bucket of RedisRateLimitService, updated atomically in one round trip.
+--
+-- KEYS[i]: key of the bucket hash of i-th limitation unit, which has fields "t" (last update time) and
+--          "c" (consumed budget)
+-- ARGV[1]: current time in epoch milliseconds
+-- ARGV[2]: consumption, or negative amount to return
+-- ARGV[3]: "1" to consume only if the budgets of all units are enough, "0" to consume regardless
+-- ARGV[2 + 2i]: fill rate per millisecond of i-th limitation unit
+-- ARGV[3 + 2i]: max budget of i-th limitation unit
+--
+-- Returns {current budget, milliseconds to wait until the budget is no longer negative} of each limitation unit,
+-- flattened
+
+local now = tonumber(ARGV[1])
+local consumption = tonumber(ARGV[2])
+local all_or_nothing = ARGV[3] == '1'
+
+local reply = {}
+local updates = {}
+local enough = true
+for i, key in ipairs(KEYS) do
+	local fill_rate = tonumber(ARGV[2 + 2 * i])
+	local max_budget = tonumber(ARGV[3 + 2 * i])
+	local updated_at = now
+	local consumed = 0
+	local state = redis.call('HMGET', key, 't', 'c')
+	if state[1] and state[2] then
+		local last = tonumber(state[1])
+		consumed = math.max(0, tonumber(state[2]) - math.max(0, now - last) * fill_rate)
+		updated_at = math.max(now, last)
+	end
+	consumed = math.max(0, consumed + consumption)
+	updates[i] = {updated_at, consumed, fill_rate}
+	
+	local budget = max_budget - consumed
+	local retry_after = 0
+	if budget < 0 then
+		enough = false
+		if fill_rate > 0 then
+			retry_after = math.ceil(-budget / fill_rate)
+		end
+	end
+	reply[2 * i - 1] = budget
+	reply[2 * i] = retry_after
+end
+
+if enough or not all_or_nothing then
+	for i, key in ipairs(KEYS) do
+		local updated_at, consumed, fill_rate = unpack(updates[i])
+		if consumed > 0 then
+			redis.call('HMSET', key, 't', string.format('%d', updated_at), 'c', string.format('%d', consumed))
+			if fill_rate > 0 then
+				-- the bucket is indistinguishable from a fresh one when it has been refilled
+				redis.call('PEXPIRE', key, math.ceil(consumed / fill_rate))
+			end
+		else
+			redis.call('DEL', key)
+		end
+	end
+end
+return reply
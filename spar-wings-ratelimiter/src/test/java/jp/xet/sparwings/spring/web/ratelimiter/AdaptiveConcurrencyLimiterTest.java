@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.Test;
+
+import jp.xet.sparwings.spring.web.ratelimiter.AdaptiveConcurrencyLimiter.Permit;
+
+/**
+ * Test for {@link AdaptiveConcurrencyLimiter}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class AdaptiveConcurrencyLimiterTest {
+	
+	private static final long BASE_LATENCY = 10_000_000L;
+	
+	AdaptiveConcurrencyLimiter sut = new AdaptiveConcurrencyLimiter(20);
+	
+	
+	@Test
+	public void testAcquireUpToLimitAndRelease() {
+		// setup
+		Permit[] permits = new Permit[20];
+		for (int i = 0; i < permits.length; i++) {
+			permits[i] = sut.tryAcquire();
+			assertThat(permits[i], is(notNullValue()));
+		}
+		// exercise
+		Permit actual = sut.tryAcquire();
+		// verify
+		assertThat(actual, is(nullValue()));
+		assertThat(sut.getInFlight(), is(20));
+		
+		// exercise
+		permits[0].release();
+		permits[0].release();
+		// verify
+		assertThat(sut.getInFlight(), is(19));
+		assertThat(sut.tryAcquire(), is(notNullValue()));
+	}
+	
+	@Test
+	public void testCancelReleasesWithoutSampling() {
+		// setup
+		sut.onSample(BASE_LATENCY, 20);
+		Permit permit = sut.tryAcquire();
+		// exercise
+		permit.cancel();
+		permit.release();
+		// verify
+		assertThat(sut.getInFlight(), is(0));
+		for (int i = 0; i < 10; i++) {
+			sut.onSample(BASE_LATENCY, sut.getLimit());
+		}
+		assertThat(sut.getLimit(), is(greaterThan(20))); // the baseline is not lowered by the cancelled permit
+	}
+	
+	@Test
+	public void testLimitIncreasesWhileLatencyStaysAtBaseline() {
+		// setup
+		sut.onSample(BASE_LATENCY, 20);
+		// exercise
+		for (int i = 0; i < 10; i++) {
+			sut.onSample(BASE_LATENCY, sut.getLimit());
+		}
+		// verify
+		assertThat(sut.getLimit(), is(greaterThan(20)));
+	}
+	
+	@Test
+	public void testLimitDecreasesWhileLatencyGrows() {
+		// setup
+		sut.onSample(BASE_LATENCY, 20);
+		// exercise
+		for (int i = 0; i < 10; i++) {
+			sut.onSample(BASE_LATENCY * 2, sut.getLimit());
+		}
+		// verify
+		assertThat(sut.getLimit(), is(lessThan(20)));
+	}
+	
+	@Test
+	public void testLimitIsKeptUnderLightLoad() {
+		// setup
+		sut.onSample(BASE_LATENCY, 20);
+		// exercise
+		for (int i = 0; i < 10; i++) {
+			sut.onSample(BASE_LATENCY * 2, 1);
+		}
+		// verify
+		assertThat(sut.getLimit(), is(20));
+	}
+	
+	@Test
+	public void testLimitIsBounded() {
+		// setup
+		sut.setMinLimit(15);
+		sut.onSample(BASE_LATENCY, 20);
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			sut.onSample(BASE_LATENCY * 10, sut.getLimit());
+		}
+		// verify
+		assertThat(sut.getLimit(), is(15));
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link CircuitBreakingRateLimitService}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class CircuitBreakingRateLimitServiceTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	FakeRedisRateLimitService redis = new FakeRedisRateLimitService();
+	
+	CircuitBreakingRateLimitService sut;
+	
+	
+	@Before
+	public void setUp() {
+		redis.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000L)
+			.setCurrentBudget(1000L));
+		sut = new CircuitBreakingRateLimitService(redis, 4);
+		sut.setTimeoutMillis(100);
+		sut.setFailureThreshold(2);
+		sut.setOpenMillis(1000);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+		sut.destroy();
+	}
+	
+	@Test
+	public void testRedisIsUsedWhileHealthy() {
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(redis.calls.get(), is(1));
+		assertThat(sut.isOpen(), is(false));
+	}
+	
+	@Test
+	public void testFallbackWithScaledBudgetAfterFailures() {
+		// setup
+		redis.failure = new IllegalStateException("connection refused");
+		sut.consume(request, 100);
+		assertThat(sut.isOpen(), is(false));
+		sut.consume(request, 100);
+		assertThat(sut.isOpen(), is(true));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(redis.calls.get(), is(2));
+		assertThat(actual.getMaxBudget(), is(250L));
+		assertThat(actual.getFillRate(), is(1L));
+		assertThat(actual.getCurrentBudget(), is(-50L));
+	}
+	
+	@Test
+	public void testTimeoutIsFailure() {
+		// setup
+		redis.latencyMillis = 1000;
+		// exercise
+		sut.consume(request, 100);
+		sut.consume(request, 100);
+		// verify
+		assertThat(sut.isOpen(), is(true));
+	}
+	
+	@Test
+	public void testCircuitIsClosedWhenProbeSucceeds() {
+		// setup
+		redis.failure = new IllegalStateException("connection refused");
+		sut.consume(request, 100);
+		sut.consume(request, 100);
+		redis.failure = null;
+		sut.consume(request, 100);
+		assertThat(redis.calls.get(), is(2));
+		
+		// exercise
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1000L)));
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(redis.calls.get(), is(3));
+		assertThat(actual.getMaxBudget(), is(1000L));
+		assertThat(sut.isOpen(), is(false));
+	}
+	
+	
+	private static class FakeRedisRateLimitService extends RedisRateLimitService {
+		
+		AtomicInteger calls = new AtomicInteger();
+		
+		volatile RuntimeException failure;
+		
+		volatile long latencyMillis;
+		
+		long budget = 1000;
+		
+		
+		FakeRedisRateLimitService() {
+			super(null);
+		}
+		
+		@Override
+		public synchronized RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+			calls.incrementAndGet();
+			if (latencyMillis > 0) {
+				try {
+					Thread.sleep(latencyMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			budget -= consumption;
+			return computeRateLimitRecovery(request).setCurrentBudget(budget);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link CompactRateLimitService}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(Parameterized.class)
+public class CompactRateLimitServiceTest {
+	
+	@Parameters(name = "offHeap={0}")
+	public static Collection<Object[]> parameters() {
+		return Arrays.asList(new Object[][] {
+			{
+				false
+			},
+			{
+				true
+			}
+		});
+	}
+	
+	
+	private final boolean offHeap;
+	
+	CompactRateLimitService sut;
+	
+	
+	public CompactRateLimitServiceTest(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+	
+	@Before
+	public void setUp() {
+		sut = new CompactRateLimitService(1000, offHeap);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void testCapacityIsRoundedUpToPowerOf2() {
+		assertThat(sut.getCapacity(), is(1024));
+	}
+	
+	@Test
+	public void testConsumeAndRecover() {
+		// setup
+		HttpServletRequest request = request("192.0.2.1");
+		// exercise
+		assertThat(sut.consume(request, 100).getCurrentBudget(), is(900L));
+		assertThat(sut.consume(request, 200).getCurrentBudget(), is(700L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L))); // recover 20
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getLimitationUnitName(), is("192.0.2.1"));
+		assertThat(actual.getMaxBudget(), is(1000L));
+		assertThat(actual.getFillRate(), is(2L));
+		assertThat(actual.getCurrentBudget(), is(520L));
+		assertThat(sut.get(request).getCurrentBudget(), is(520L));
+		
+		// exercise
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1000L))); // recover to max
+		actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(800L));
+	}
+	
+	@Test
+	public void testGetDoesNotConsume() {
+		// setup
+		HttpServletRequest request = request("192.0.2.1");
+		// exercise
+		RateLimitDescriptor actual = sut.get(request);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(1000L));
+		assertThat(sut.consume(request, 100).getCurrentBudget(), is(900L));
+	}
+	
+	@Test
+	public void testUnitsAreIndependent() {
+		// exercise
+		for (int i = 0; i < 500; i++) {
+			sut.consume(request("192.0.2." + i), i);
+		}
+		// verify
+		for (int i = 0; i < 500; i++) {
+			assertThat(sut.get(request("192.0.2." + i)).getCurrentBudget(), is(1000L - i));
+		}
+	}
+	
+	@Test
+	public void testOverflowReusesSlots() {
+		// setup
+		sut = new CompactRateLimitService(2, offHeap);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		sut.consume(request("a"), 1000);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1L)));
+		sut.consume(request("b"), 1000);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(2L)));
+		
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request("c"), 100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(sut.get(request("b")).getCurrentBudget(), is(2L)); // kept
+		assertThat(sut.get(request("a")).getCurrentBudget(), is(1000L)); // overwritten as the oldest
+	}
+	
+	@Test
+	public void testConcurrentConsume() throws Exception {
+		// setup
+		int threadCount = 50;
+		CountDownLatch startLatch = new CountDownLatch(1);
+		ExecutorService ex = Executors.newFixedThreadPool(threadCount);
+		HttpServletRequest request = request("192.0.2.1");
+		for (int i = 0; i < threadCount; i++) {
+			ex.submit(() -> {
+				startLatch.await();
+				for (int j = 0; j < 10; j++) {
+					sut.consume(request, 1);
+				}
+				return null;
+			});
+		}
+		// exercise
+		startLatch.countDown();
+		ex.shutdown();
+		assertThat(ex.awaitTermination(10, TimeUnit.SECONDS), is(true));
+		// verify
+		assertThat(sut.get(request).getCurrentBudget(), is(500L));
+	}
+	
+	@Test
+	public void testHashIsNeverZero() {
+		assertThat(CompactRateLimitService.hash(""), is(not(0L)));
+		assertThat(CompactRateLimitService.hash("192.0.2.1"), is(not(CompactRateLimitService.hash("192.0.2.2"))));
+	}
+	
+	private static HttpServletRequest request(String remoteAddr) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getRemoteAddr()).thenReturn(remoteAddr);
+		return request;
+	}
+}
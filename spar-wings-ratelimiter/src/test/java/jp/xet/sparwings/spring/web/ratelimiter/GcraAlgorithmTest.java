@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import jp.xet.sparwings.spring.web.ratelimiter.RateLimitAlgorithm.Outcome;
+
+/**
+ * Test for {@link GcraAlgorithm}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class GcraAlgorithmTest {
+	
+	RateLimitDescriptor descriptor = new RateLimitDescriptor("user1", 2, 1000L).setCurrentBudget(1000L);
+	
+	GcraAlgorithm sut = new GcraAlgorithm();
+	
+	
+	@Test
+	public void testConsumeAndRecover() {
+		// exercise
+		Outcome actual1 = sut.apply(sut.initialState(descriptor), descriptor, 0, 100);
+		Outcome actual2 = sut.apply(actual1.getState(), descriptor, 10, 200); // recover 20
+		Outcome actual3 = sut.apply(actual2.getState(), descriptor, 1000, 200); // recover to max
+		// verify
+		assertThat(actual1.getBudget(), is(900L));
+		assertThat(actual2.getBudget(), is(720L));
+		assertThat(actual3.getBudget(), is(800L));
+		assertThat(actual3.getState().length, is(1));
+	}
+	
+	@Test
+	public void testBudgetGoesNegative() {
+		// exercise
+		Outcome actual = sut.apply(sut.initialState(descriptor), descriptor, 0, 1100);
+		// verify
+		assertThat(actual.getBudget(), is(-100L));
+		assertThat(sut.computeIdleDeadline(actual.getState(), descriptor), is(550L));
+	}
+	
+	@Test
+	public void testReturnNeverExceedsMaxBudget() {
+		// exercise
+		Outcome actual = sut.apply(sut.initialState(descriptor), descriptor, 100, -500);
+		// verify
+		assertThat(actual.getBudget(), is(1000L));
+	}
+	
+	@Test
+	public void testSameDecisionsAsTokenBucket() {
+		// setup
+		TokenBucketAlgorithm tokenBucket = new TokenBucketAlgorithm();
+		long[] gcraState = sut.initialState(descriptor);
+		long[] bucketState = tokenBucket.initialState(descriptor);
+		Random random = new Random(0);
+		long now = 0;
+		for (int i = 0; i < 10000; i++) {
+			now += random.nextInt(100);
+			long consumption = random.nextInt(300);
+			// exercise
+			Outcome gcra = sut.apply(gcraState, descriptor, now, consumption);
+			Outcome bucket = tokenBucket.apply(bucketState, descriptor, now, consumption);
+			// verify
+			assertThat(gcra.getBudget(), is(bucket.getBudget()));
+			gcraState = gcra.getState();
+			bucketState = bucket.getState();
+		}
+	}
+}
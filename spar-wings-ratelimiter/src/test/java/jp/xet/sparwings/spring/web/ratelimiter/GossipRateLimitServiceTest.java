@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ * Test for {@link GossipRateLimitService}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class GossipRateLimitServiceTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	List<GossipRateLimitService> nodes = new ArrayList<>();
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			GossipRateLimitService node =
+					new GossipRateLimitService(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 20);
+			node.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 0, 1000L)
+				.setCurrentBudget(1000L));
+			nodes.add(node);
+		}
+		for (GossipRateLimitService node : nodes) {
+			List<InetSocketAddress> peers = new ArrayList<>();
+			for (GossipRateLimitService peer : nodes) {
+				peers.add((InetSocketAddress) peer.getLocalAddress());
+			}
+			node.setPeers(peers); // including itself, which must be ignored
+		}
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		for (GossipRateLimitService node : nodes) {
+			node.destroy();
+		}
+	}
+	
+	@Test
+	public void testConsumptionIsSharedAmongNodes() throws Exception {
+		// exercise
+		nodes.get(0).consume(request, 300);
+		nodes.get(1).consume(request, 200);
+		// verify
+		awaitBudget(() -> nodes.get(2).get(request).getCurrentBudget(), 500L);
+		awaitBudget(() -> nodes.get(0).get(request).getCurrentBudget(), 500L);
+		awaitBudget(() -> nodes.get(1).get(request).getCurrentBudget(), 500L);
+	}
+	
+	@Test
+	public void testGlobalBudgetIsEnforced() throws Exception {
+		// setup
+		nodes.get(0).consume(request, 1000);
+		awaitBudget(() -> nodes.get(1).get(request).getCurrentBudget(), 0L);
+		// exercise
+		RateLimitDescriptor actual = nodes.get(1).consume(request, 100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(lessThan(0L)));
+	}
+	
+	@Test
+	public void testRefundIsShared() throws Exception {
+		// setup
+		nodes.get(0).consume(request, 300);
+		awaitBudget(() -> nodes.get(1).get(request).getCurrentBudget(), 700L);
+		// exercise
+		nodes.get(0).consume(request, -100);
+		// verify
+		awaitBudget(() -> nodes.get(1).get(request).getCurrentBudget(), 800L);
+	}
+	
+	private static void awaitBudget(LongSupplier budget, long expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (budget.getAsLong() != expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(budget.getAsLong(), is(expected));
+	}
+}
@@ -17,9 +17,11 @@ package jp.xet.sparwings.spring.web.ratelimiter;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -118,6 +120,121 @@ public class InMemoryRateLimitServiceTest {
 		assertThat(actual.getCurrentBudget(), is(800L));
 	}
 	
+	@Test
+	public void slidingWindow_waitToRecoverIsComputedByAlgorithm() {
+		// setup
+		sut.setAlgorithm(new SlidingWindowAlgorithm());
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 10, 1000L)); // window of 100ms
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 10000);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(-9000L));
+		assertThat(actual.computeWaitMillisecsToConsume(0), is(900L)); // linear refill
+		assertThat(actual.computeWaitMillisecsToRecover(), is(190L));
+	}
+	
+	@Test
+	public void idleBucketsAreEvictedAfterRefilled() {
+		// setup
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		HttpServletRequest other = mock(HttpServletRequest.class);
+		when(other.getRemoteAddr()).thenReturn("192.0.2.200");
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100); // refilled at 50ms
+		sut.consume(other, 1000); // refilled at 500ms
+		assertThat(sut.getBucketCount(), is(2));
+		
+		// exercise
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(2000L)));
+		sut.get(other);
+		// verify
+		assertThat(sut.getBucketCount(), is(0));
+		
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(sut.getBucketCount(), is(1));
+		assertThat(actual.getCurrentBudget(), is(900L));
+	}
+	
+	@Test
+	public void consumingBucketIsNotEvicted() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 1000); // refilled at 500ms
+		
+		// exercise
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1000L)));
+		sut.consume(request, 1000); // refilled at 1500ms
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(2000L)));
+		RateLimitDescriptor actual = sut.consume(request, 1000);
+		// verify
+		assertThat(sut.getBucketCount(), is(1));
+		assertThat(actual.getCurrentBudget(), is(0L));
+	}
+	
+	@Test
+	public void consumeWithGcra() {
+		// setup
+		sut.setAlgorithm(new GcraAlgorithm());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L))); // recover 20
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(720L));
+	}
+	
+	@Test
+	public void consumeWithSlidingWindow() {
+		// setup
+		sut.setAlgorithm(new SlidingWindowAlgorithm());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L)));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(700L));
+	}
+	
+	@Test
+	public void consumeMultipleUnits_mostConstrainedIsReturned() {
+		// setup
+		sut.setAdditionalRecoveryStrategies(Collections.singletonList(req -> new RateLimitDescriptor("tenant1", 1, 500L)
+			.setCurrentBudget(500L)));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getLimitationUnitName(), is("tenant1"));
+		assertThat(actual.getCurrentBudget(), is(400L));
+		assertThat(sut.computeLimitationUnitName(request), is("user1,tenant1"));
+	}
+	
+	@Test
+	public void consumeMultipleUnits_rejectedRequestConsumesNothing() {
+		// setup
+		sut.setAdditionalRecoveryStrategies(Collections.singletonList(req -> new RateLimitDescriptor("tenant1", 1, 500L)
+			.setCurrentBudget(500L)));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 400);
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getLimitationUnitName(), is("tenant1"));
+		assertThat(actual.getCurrentBudget(), is(-100L));
+		
+		// exercise
+		sut.setAdditionalRecoveryStrategies(Collections.emptyList());
+		RateLimitDescriptor user = sut.get(request);
+		// verify
+		assertThat(user.getCurrentBudget(), is(600L));
+	}
+	
 	@Test
 	public void consume10_50threads() throws InterruptedException {
 		// setup
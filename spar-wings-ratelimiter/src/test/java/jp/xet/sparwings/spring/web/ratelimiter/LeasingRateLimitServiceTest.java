@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link LeasingRateLimitService}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class LeasingRateLimitServiceTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	FakeRedisRateLimitService redis = new FakeRedisRateLimitService();
+	
+	LeasingRateLimitService sut;
+	
+	
+	@Before
+	public void setUp() {
+		redis.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000L));
+		sut = new LeasingRateLimitService(redis);
+		sut.setLeaseRatio(0.1);
+		when(request.getRemoteAddr()).thenReturn("192.0.2.123");
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void testRequestsAreAdmittedFromLease() {
+		// exercise
+		RateLimitDescriptor actual = null;
+		for (int i = 0; i < 10; i++) {
+			actual = sut.consume(request, 10);
+		}
+		// verify
+		assertThat(redis.consumptions, contains(100L));
+		assertThat(actual.getCurrentBudget(), is(900L));
+		
+		// exercise
+		actual = sut.consume(request, 10);
+		// verify
+		assertThat(redis.consumptions, contains(100L, 100L));
+		assertThat(actual.getCurrentBudget(), is(890L));
+	}
+	
+	@Test
+	public void testUnusedLeaseIsReturnedWithNextLease() {
+		// setup
+		sut.consume(request, 10);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(2000L))); // expired
+		// exercise
+		sut.consume(request, 10);
+		// verify
+		assertThat(redis.consumptions, contains(100L, 10L));
+	}
+	
+	@Test
+	public void testOnlyCostIsConsumedWhenBudgetIsNotEnoughToLease() {
+		// setup
+		redis.budget = 50;
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 10);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(40L));
+		assertThat(redis.budget, is(40L));
+		
+		// exercise
+		RateLimitDescriptor actual2 = sut.consume(request, 10);
+		RateLimitDescriptor actual3 = sut.consume(request, 10);
+		// verify
+		assertThat(actual2.getCurrentBudget(), is(30L));
+		assertThat(actual3.getCurrentBudget(), is(20L));
+		assertThat(redis.consumptions, contains(100L, -90L, 10L, 10L)); // one call per request while scarce
+	}
+	
+	@Test
+	public void testLeasedAgainWhenBudgetRecovers() {
+		// setup
+		redis.budget = 50;
+		sut.consume(request, 10);
+		redis.budget = 1000; // recovered
+		sut.consume(request, 10);
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 10);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(980L));
+		assertThat(redis.consumptions, contains(100L, -90L, 10L, 100L));
+	}
+	
+	@Test
+	public void testDeniedWhenBudgetIsExhausted() {
+		// setup
+		redis.budget = 5;
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 10);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(-5L));
+	}
+	
+	@Test
+	public void testLeasesAreReturnedOnDestroy() {
+		// setup
+		sut.consume(request, 10);
+		// exercise
+		sut.destroy();
+		// verify
+		assertThat(redis.consumptions, contains(100L, -90L));
+		assertThat(redis.budget, is(990L));
+	}
+	
+	@Test
+	public void testGetIncludesRestOfLease() {
+		// setup
+		sut.consume(request, 10);
+		// exercise
+		RateLimitDescriptor actual = sut.get(request);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(990L));
+	}
+	
+	@Test
+	public void testConcurrentConsume() throws Exception {
+		// setup
+		int threadCount = 50;
+		CountDownLatch startLatch = new CountDownLatch(1);
+		ExecutorService ex = Executors.newFixedThreadPool(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			ex.submit(() -> {
+				startLatch.await();
+				for (int j = 0; j < 10; j++) {
+					sut.consume(request, 1);
+				}
+				return null;
+			});
+		}
+		// exercise
+		startLatch.countDown();
+		ex.shutdown();
+		assertThat(ex.awaitTermination(10, TimeUnit.SECONDS), is(true));
+		sut.destroy();
+		// verify
+		assertThat(redis.budget, is(500L));
+	}
+	
+	
+	private static class FakeRedisRateLimitService extends RedisRateLimitService {
+		
+		List<Long> consumptions = new CopyOnWriteArrayList<>();
+		
+		long budget = 1000;
+		
+		
+		FakeRedisRateLimitService() {
+			super(null);
+		}
+		
+		@Override
+		synchronized RateLimitDescriptor consume(RateLimitDescriptor descriptor, long consumption) {
+			if (consumption != 0) {
+				consumptions.add(consumption);
+			}
+			budget = Math.min(descriptor.getMaxBudget(), budget - consumption);
+			descriptor.setCurrentBudget(budget);
+			return descriptor;
+		}
+	}
+}
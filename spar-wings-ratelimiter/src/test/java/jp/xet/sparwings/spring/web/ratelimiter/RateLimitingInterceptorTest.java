@@ -0,0 +1,366 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
+
+/**
+ * Test for {@link RateLimitingInterceptor}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class RateLimitingInterceptorTest {
+	
+	@Mock
+	RateLimitService rateLimitService;
+	
+	@Mock
+	HttpServletRequest request;
+	
+	@Mock
+	HttpServletResponse response;
+	
+	RateLimitingInterceptor sut;
+	
+	
+	@Before
+	public void setUp() {
+		sut = new RateLimitingInterceptor(rateLimitService);
+		when(rateLimitService.computeLimitationUnitName(any())).thenReturn("user1");
+		when(rateLimitService.consume(any(), anyLong()))
+			.thenAnswer(invocation -> new RateLimitDescriptor("user1", 2, 1000L, -100L, 0L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void testDeniedUnitIsRejectedWithoutConsuming() throws Exception {
+		// setup
+		assertRejected();
+		// exercise
+		assertRejected();
+		// verify
+		verify(rateLimitService, times(1)).consume(any(), anyLong());
+		verify(response, times(2)).setHeader("Retry-After", "0");
+	}
+	
+	@Test
+	public void testRetryAfterIncludesTimeToRefillCost() throws Exception {
+		// setup
+		when(rateLimitService.consume(any(), anyLong())).thenAnswer(invocation -> new RateLimitDescriptor("user1", 1,
+				1000L, -1000L, 0L).setMillisecsToRecover(1000L));
+		try {
+			// exercise
+			sut.preHandle(request, response, null);
+			fail();
+		} catch (HttpTooManyRequestsException e) {
+			// verify
+			assertThat(e.getMessage(), is("Please wait 1100 ms before next request")); // recover, then refill 100
+		}
+		verify(response).setHeader("Retry-After", "1");
+	}
+	
+	@Test
+	public void testDeniedUnitIsConsultedAgainAfterRecovery() throws Exception {
+		// setup
+		assertRejected();
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(50L))); // recover 100
+		// exercise
+		assertRejected();
+		// verify
+		verify(rateLimitService, times(2)).consume(any(), anyLong());
+	}
+	
+	@Test
+	public void testDenialCacheCanBeDisabled() throws Exception {
+		// setup
+		sut.setDenialCacheEnabled(false);
+		assertRejected();
+		// exercise
+		assertRejected();
+		// verify
+		verify(rateLimitService, never()).computeLimitationUnitName(any());
+		verify(rateLimitService, times(2)).consume(any(), anyLong());
+	}
+	
+	@Test
+	public void testAdmittedRequestIsNotCached() throws Exception {
+		// setup
+		when(rateLimitService.consume(any(), anyLong()))
+			.thenAnswer(invocation -> new RateLimitDescriptor("user1", 2, 1000L, 900L, 0L));
+		// exercise
+		boolean actual1 = sut.preHandle(request, response, null);
+		boolean actual2 = sut.preHandle(request, response, null);
+		// verify
+		assertThat(actual1, is(true));
+		assertThat(actual2, is(true));
+		verify(rateLimitService, times(2)).consume(any(), anyLong());
+	}
+	
+	@Test
+	public void testConcurrencyLimitRejectsUntilCompletion() throws Exception {
+		// setup
+		sut = new RateLimitingInterceptor(null);
+		sut.setConcurrencyLimiter(new AdaptiveConcurrencyLimiter(1));
+		stubAttributes();
+		HttpServletRequest other = mock(HttpServletRequest.class);
+		sut.preHandle(request, response, null);
+		try {
+			// exercise
+			sut.preHandle(other, response, null);
+			fail();
+		} catch (HttpTooManyRequestsException e) {
+			// expected
+		}
+		
+		// exercise
+		sut.afterCompletion(request, response, null, null);
+		boolean actual = sut.preHandle(other, response, null);
+		// verify
+		assertThat(actual, is(true));
+		assertThat(sut.getConcurrencyLimiter().getInFlight(), is(1));
+	}
+	
+	@Test
+	public void testRequestRejectedByConcurrencyLimitConsumesNothing() throws Exception {
+		// setup
+		sut.setConcurrencyLimiter(new AdaptiveConcurrencyLimiter(1));
+		stubAttributes();
+		when(rateLimitService.consume(any(), anyLong()))
+			.thenAnswer(invocation -> new RateLimitDescriptor("user1", 2, 1000L, 900L, 0L));
+		HttpServletRequest other = mock(HttpServletRequest.class);
+		sut.preHandle(request, response, null);
+		try {
+			// exercise
+			sut.preHandle(other, response, null);
+			fail();
+		} catch (HttpTooManyRequestsException e) {
+			// expected
+		}
+		// verify
+		verify(rateLimitService, times(1)).consume(any(), anyLong());
+		verify(rateLimitService, never()).consume(other, 100L);
+	}
+	
+	@Test
+	public void testPermitIsReleasedWhenRateLimited() throws Exception {
+		// setup
+		sut.setConcurrencyLimiter(new AdaptiveConcurrencyLimiter(1));
+		stubAttributes();
+		// exercise
+		assertRejected();
+		// verify
+		assertThat(sut.getConcurrencyLimiter().getInFlight(), is(0));
+	}
+	
+	@Test
+	public void testReportedCostIsSettledAfterCompletion() throws Exception {
+		// setup
+		sut.setCostSettlementEnabled(true);
+		stubAttributes();
+		when(rateLimitService.consume(any(), anyLong()))
+			.thenAnswer(invocation -> new RateLimitDescriptor("user1", 2, 1000L, 900L, 0L));
+		sut.preHandle(request, response, null);
+		request.setAttribute(RateLimitingInterceptor.ACTUAL_COST_ATTRIBUTE, 30);
+		// exercise
+		sut.afterCompletion(request, response, null, null);
+		// verify
+		verify(rateLimitService).consume(request, 100L);
+		verify(rateLimitService).charge(request, -70L);
+	}
+	
+	@Test
+	public void testExtraCostIsSettledToAllUnitsEvenIfNotEnough() throws Exception {
+		// setup
+		InMemoryRateLimitService service = new InMemoryRateLimitService();
+		service.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 1, 1000L).setCurrentBudget(1000L));
+		service.setAdditionalRecoveryStrategies(Collections.singletonList(req -> new RateLimitDescriptor("tenant1", 1,
+				1000L).setCurrentBudget(150L)));
+		sut = new RateLimitingInterceptor(service);
+		sut.setCostSettlementEnabled(true);
+		stubAttributes();
+		sut.preHandle(request, response, null);
+		request.setAttribute(RateLimitingInterceptor.ACTUAL_COST_ATTRIBUTE, 200);
+		// exercise
+		sut.afterCompletion(request, response, null, null);
+		// verify
+		assertThat(service.get(request).getCurrentBudget(), is(-50L)); // tenant1 is charged beyond its budget
+		service.setAdditionalRecoveryStrategies(Collections.emptyList());
+		assertThat(service.get(request).getCurrentBudget(), is(800L)); // user1
+	}
+	
+	@Test
+	public void testReservedCostIsKeptWithoutActualCost() throws Exception {
+		// setup
+		sut.setCostSettlementEnabled(true);
+		stubAttributes();
+		when(rateLimitService.consume(any(), anyLong()))
+			.thenAnswer(invocation -> new RateLimitDescriptor("user1", 2, 1000L, 900L, 0L));
+		sut.preHandle(request, response, null);
+		// exercise
+		sut.afterCompletion(request, response, null, null);
+		// verify
+		verify(rateLimitService, times(1)).consume(any(), anyLong());
+	}
+	
+	@Test
+	public void testSmoothingParksRequestAndDispatchesAgain() throws Exception {
+		// setup
+		sut.setSmoothingEnabled(true);
+		sut.setMaxSmoothingWaitMillis(200);
+		stubAttributes();
+		AsyncContext asyncContext = mock(AsyncContext.class);
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync(request, response)).thenReturn(asyncContext);
+		try {
+			// exercise
+			boolean actual = sut.preHandle(request, response, null);
+			// verify
+			assertThat(actual, is(false));
+			verify(asyncContext, timeout(1000)).dispatch();
+			
+			// exercise
+			boolean actual2 = sut.preHandle(request, response, null);
+			// verify
+			assertThat(actual2, is(true));
+			verify(rateLimitService, times(1)).consume(any(), anyLong());
+		} finally {
+			sut.destroy();
+		}
+	}
+	
+	@Test
+	public void testSmoothingConsumesParkedRequestOnce() throws Exception {
+		// setup
+		InMemoryRateLimitService service = new InMemoryRateLimitService();
+		service.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 1, 1000L).setCurrentBudget(50L));
+		sut = new RateLimitingInterceptor(service);
+		sut.setSmoothingEnabled(true);
+		sut.setMaxSmoothingWaitMillis(200);
+		stubAttributes();
+		AsyncContext asyncContext = mock(AsyncContext.class);
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync(request, response)).thenReturn(asyncContext);
+		try {
+			boolean actual1 = sut.preHandle(request, response, null);
+			assertThat(actual1, is(false));
+			verify(asyncContext, timeout(1000)).dispatch();
+			// exercise
+			boolean actual2 = sut.preHandle(request, response, null);
+			// verify
+			assertThat(actual2, is(true));
+			assertThat(service.get(request).getCurrentBudget(), is(-50L)); // consumed 100 only once
+		} finally {
+			sut.destroy();
+		}
+	}
+	
+	@Test
+	public void testSmoothingRejectsBeyondMaxWait() throws Exception {
+		// setup
+		sut.setSmoothingEnabled(true);
+		sut.setMaxSmoothingWaitMillis(50); // recovers in 50ms
+		when(request.isAsyncSupported()).thenReturn(true);
+		// exercise
+		assertRejected();
+		// verify
+		verify(request, never()).startAsync(any(), any());
+	}
+	
+	@Test
+	public void testSmoothingRejectsBeyondMaxWaiters() throws Exception {
+		// setup
+		sut.setSmoothingEnabled(true);
+		sut.setMaxSmoothingWaitMillis(60000);
+		sut.setMaxSmoothingWaitersPerUnit(1);
+		sut.setDenialCacheEnabled(false);
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync(request, response)).thenReturn(mock(AsyncContext.class));
+		HttpServletRequest other = mock(HttpServletRequest.class);
+		when(other.isAsyncSupported()).thenReturn(true);
+		try {
+			boolean actual = sut.preHandle(request, response, null);
+			assertThat(actual, is(false));
+			// exercise
+			sut.preHandle(other, response, null);
+			fail();
+		} catch (HttpTooManyRequestsException e) {
+			// verify
+			verify(other, never()).startAsync(any(), any());
+		} finally {
+			sut.destroy();
+		}
+	}
+	
+	private void stubAttributes() {
+		Map<String, Object> attributes = new HashMap<>();
+		doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+			.when(request).setAttribute(anyString(), any());
+		doAnswer(invocation -> attributes.remove(invocation.<String> getArgument(0)))
+			.when(request).removeAttribute(anyString());
+		when(request.getAttribute(anyString())).thenAnswer(invocation -> attributes.get(invocation.getArgument(0)));
+	}
+	
+	private void assertRejected() throws Exception {
+		try {
+			sut.preHandle(request, response, null);
+			fail();
+		} catch (HttpTooManyRequestsException e) {
+			// expected
+		}
+	}
+}
@@ -19,9 +19,11 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -53,6 +55,9 @@ import jp.xet.baseunits.timeutil.SystemClock;
 @RunWith(MockitoJUnitRunner.Silent.class)
 public class RedisRateLimitServiceTest {
 	
+	private static final Function<HttpServletRequest, RateLimitDescriptor> USER =
+			req -> new RateLimitDescriptor("user1", 2, 1000);
+	
 	@Mock
 	HttpServletRequest request;
 	
@@ -72,7 +77,7 @@ public class RedisRateLimitServiceTest {
 		redisTemplate.afterPropertiesSet();
 		
 		sut = new RedisRateLimitService(redisTemplate);
-		sut.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000));
+		sut.setRecoveryStrategy(USER);
 		when(request.getRemoteAddr()).thenReturn("192.0.2.123");
 	}
 	
@@ -136,6 +141,108 @@ public class RedisRateLimitServiceTest {
 		assertThat(actual.getCurrentBudget(), is(800L));
 	}
 	
+	@Test
+	public void consumeWithGcra() {
+		// setup
+		sut = createService(new GcraAlgorithm());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L))); // recover 20
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(720L));
+	}
+	
+	@Test
+	public void consumeWithSlidingWindow() {
+		// setup
+		sut = createService(new SlidingWindowAlgorithm());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L)));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(700L));
+	}
+	
+	@Test
+	public void slidingWindow_waitToRecoverIsComputedByScript() {
+		// setup
+		sut = createService(new SlidingWindowAlgorithm());
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 10, 1000L)); // window of 100ms
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 10000);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(-9000L));
+		assertThat(actual.computeWaitMillisecsToRecover(), is(190L));
+	}
+	
+	@Test
+	public void tokenBucket_sameAsInMemory() {
+		assertSameAsInMemory(new TokenBucketAlgorithm());
+	}
+	
+	@Test
+	public void gcra_sameAsInMemory() {
+		assertSameAsInMemory(new GcraAlgorithm());
+	}
+	
+	@Test
+	public void slidingWindow_sameAsInMemory() {
+		assertSameAsInMemory(new SlidingWindowAlgorithm());
+	}
+	
+	@Test
+	public void consumeMultipleUnits_mostConstrainedIsReturned() {
+		// setup
+		sut.setAdditionalRecoveryStrategies(Collections.singletonList(req -> new RateLimitDescriptor("tenant1", 1,
+				500L)));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getLimitationUnitName(), is("tenant1"));
+		assertThat(actual.getCurrentBudget(), is(400L));
+		assertThat(actual.isConsumed(), is(true));
+	}
+	
+	@Test
+	public void consumeMultipleUnits_additionalUnitExhausted_consumesNothing() {
+		// setup
+		Function<HttpServletRequest, RateLimitDescriptor> tenant = req -> new RateLimitDescriptor("tenant1", 1, 500L);
+		sut.setAdditionalRecoveryStrategies(Collections.singletonList(tenant));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 400); // user1: 600, tenant1: 100
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getLimitationUnitName(), is("tenant1"));
+		assertThat(actual.getCurrentBudget(), is(-100L));
+		assertThat(actual.isConsumed(), is(false));
+		assertThat(getBudget(USER), is(600L));
+		assertThat(getBudget(tenant), is(100L));
+	}
+	
+	@Test
+	public void consumeMultipleUnits_primaryUnitExhausted_consumesNothing() {
+		// setup
+		Function<HttpServletRequest, RateLimitDescriptor> tenant = req -> new RateLimitDescriptor("tenant1", 1, 5000L);
+		sut.setAdditionalRecoveryStrategies(Collections.singletonList(tenant));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 900); // user1: 100, tenant1: 4100
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getLimitationUnitName(), is("user1"));
+		assertThat(actual.getCurrentBudget(), is(-100L));
+		assertThat(actual.isConsumed(), is(false));
+		assertThat(getBudget(USER), is(100L));
+		assertThat(getBudget(tenant), is(4100L));
+	}
+	
 	@Test
 	public void consume10_50threads() throws InterruptedException {
 		// setup
@@ -166,4 +273,44 @@ public class RedisRateLimitServiceTest {
 		assertThat(actual.getFillRate(), is(2L));
 		assertThat(actual.getCurrentBudget(), is(500L));
 	}
+	
+	private RedisRateLimitService createService(RateLimitAlgorithm algorithm) {
+		RedisRateLimitService service = new RedisRateLimitService(sut.getRedisTemplate(), algorithm);
+		service.setRecoveryStrategy(USER);
+		return service;
+	}
+	
+	/**
+	 * Assert that the script of the algorithm computes the same budgets and waits as {@link InMemoryRateLimitService}.
+	 */
+	private void assertSameAsInMemory(RateLimitAlgorithm algorithm) {
+		// setup
+		sut = createService(algorithm);
+		InMemoryRateLimitService inMemory = new InMemoryRateLimitService();
+		inMemory.setAlgorithm(algorithm);
+		inMemory.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000L).setCurrentBudget(1000L));
+		long[][] steps = { // time, consumption
+			{ 0, 100 },
+			{ 10, 200 },
+			{ 10, 1000 },
+			{ 100, 300 },
+			{ 600, 100 },
+			{ 1500, 0 }
+		};
+		for (long[] step : steps) {
+			Clock.setTimeSource(new FixedTimeSource(TimePoint.from(step[0])));
+			// exercise
+			RateLimitDescriptor expected = inMemory.consume(request, step[1]);
+			RateLimitDescriptor actual = sut.consume(request, step[1]);
+			// verify
+			assertThat(actual.getCurrentBudget(), is(expected.getCurrentBudget()));
+			assertThat(actual.computeWaitMillisecsToRecover(), is(expected.computeWaitMillisecsToRecover()));
+		}
+	}
+	
+	private long getBudget(Function<HttpServletRequest, RateLimitDescriptor> recoveryStrategy) {
+		RedisRateLimitService service = new RedisRateLimitService(sut.getRedisTemplate(), sut.getAlgorithm());
+		service.setRecoveryStrategy(recoveryStrategy);
+		return service.get(request).getCurrentBudget();
+	}
 }
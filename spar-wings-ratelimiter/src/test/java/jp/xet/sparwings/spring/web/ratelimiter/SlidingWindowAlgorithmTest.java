@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+import jp.xet.sparwings.spring.web.ratelimiter.RateLimitAlgorithm.Outcome;
+
+/**
+ * Test for {@link SlidingWindowAlgorithm}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class SlidingWindowAlgorithmTest {
+	
+	// window of 500ms
+	RateLimitDescriptor descriptor = new RateLimitDescriptor("user1", 2, 1000L);
+	
+	SlidingWindowAlgorithm sut = new SlidingWindowAlgorithm();
+	
+	
+	@Test
+	public void testConsumeInWindow() {
+		// exercise
+		Outcome actual1 = sut.apply(sut.initialState(descriptor), descriptor, 0, 100);
+		Outcome actual2 = sut.apply(actual1.getState(), descriptor, 499, 200);
+		// verify
+		assertThat(actual1.getBudget(), is(900L));
+		assertThat(actual2.getBudget(), is(700L));
+	}
+	
+	@Test
+	public void testPreviousWindowIsWeightedByOverlap() {
+		// setup
+		Outcome previous = sut.apply(sut.initialState(descriptor), descriptor, 100, 800);
+		// exercise
+		Outcome actual1 = sut.apply(previous.getState(), descriptor, 500, 0); // 100% of previous
+		Outcome actual2 = sut.apply(actual1.getState(), descriptor, 750, 100); // 50% of previous
+		Outcome actual3 = sut.apply(actual2.getState(), descriptor, 1000, 0); // only 100 of previous
+		// verify
+		assertThat(actual1.getBudget(), is(200L));
+		assertThat(actual2.getBudget(), is(500L));
+		assertThat(actual3.getBudget(), is(900L));
+	}
+	
+	@Test
+	public void testStateIsResetAfterTwoWindows() {
+		// setup
+		Outcome previous = sut.apply(sut.initialState(descriptor), descriptor, 100, 1200);
+		assertThat(previous.getBudget(), is(-200L));
+		assertThat(sut.computeIdleDeadline(previous.getState(), descriptor), is(1000L));
+		// exercise
+		Outcome actual = sut.apply(previous.getState(), descriptor, 1000, 100);
+		// verify
+		assertThat(actual.getBudget(), is(900L));
+	}
+	
+	@Test
+	public void testWaitUntilPreviousWindowIsWeightedOut() {
+		// setup
+		RateLimitDescriptor desc = new RateLimitDescriptor("user1", 10, 1000L); // window of 100ms
+		Outcome consumed = sut.apply(sut.initialState(desc), desc, 0, 10000);
+		assertThat(consumed.getBudget(), is(-9000L));
+		// exercise
+		long actual = sut.computeWaitMillis(consumed.getState(), desc, 0, 0);
+		// verify
+		assertThat(actual, is(190L)); // linear refill implies 900ms
+		assertThat(sut.apply(consumed.getState(), desc, actual - 1, 0).getBudget(), is(-100L));
+		assertThat(sut.apply(consumed.getState(), desc, actual, 0).getBudget(), is(0L));
+	}
+	
+	@Test
+	public void testWaitToConsumeInCurrentWindow() {
+		// setup
+		Outcome previous = sut.apply(sut.initialState(descriptor), descriptor, 100, 800);
+		// exercise
+		long actual = sut.computeWaitMillis(previous.getState(), descriptor, 500, 500);
+		// verify
+		assertThat(actual, is(188L));
+		assertThat(sut.apply(previous.getState(), descriptor, 500 + actual, 500).getBudget(), is(1L));
+		assertThat(sut.computeWaitMillis(previous.getState(), descriptor, 500, 200), is(0L));
+		assertThat(sut.computeWaitMillis(previous.getState(), descriptor, 500, 1001), is(Long.MAX_VALUE));
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.s3;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+/**
+ * {@link TaskExecutor} for multipart part uploads of {@link S3ObjectResource}, which starts a new virtual thread
+ * for each task on JDK 21 or later.
+ * 
+ * <p>The number of concurrent tasks is limited by a semaphore, and {@link #execute(Runnable)} blocks the caller
+ * while the limit is reached. Because each queued part holds a 5 MB buffer, this back-pressure keeps the memory
+ * consumption bounded without a bounded queue. On JVMs which do not support virtual threads, tasks run on
+ * pooled daemon platform threads.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see S3ObjectResourceLoader#setTaskExecutor(TaskExecutor)
+ */
+@Slf4j
+public class VirtualThreadTaskExecutor implements TaskExecutor, DisposableBean {
+	
+	private static ExecutorService createExecutor() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "s3-upload-", 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, factory);
+		} catch (ReflectiveOperationException | RuntimeException e) { // NOPMD - cc
+			log.info("Virtual threads are not available, use platform threads: {}", e.toString());
+			return Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r, "s3-upload");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+	
+	
+	private final ExecutorService executor = createExecutor();
+	
+	private final Semaphore permits;
+	
+	/** maximum number of concurrent tasks */
+	@Getter
+	private final int maxConcurrency;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param maxConcurrency maximum number of concurrent tasks
+	 * @throws IllegalArgumentException if {@code maxConcurrency} is less than 1
+	 * @since 0.38
+	 */
+	public VirtualThreadTaskExecutor(int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+		}
+		this.maxConcurrency = maxConcurrency;
+		permits = new Semaphore(maxConcurrency);
+	}
+	
+	@Override
+	public void execute(Runnable task) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TaskRejectedException("Interrupted while waiting for the concurrency limit", e);
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw new TaskRejectedException("Executor did not accept task: " + task, e);
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+}
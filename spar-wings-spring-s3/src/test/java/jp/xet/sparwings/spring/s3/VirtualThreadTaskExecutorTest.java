@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.s3;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * Test for {@link VirtualThreadTaskExecutor}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.class)
+public class VirtualThreadTaskExecutorTest {
+	
+	@Mock
+	AmazonS3 amazonS3;
+	
+	VirtualThreadTaskExecutor sut = new VirtualThreadTaskExecutor(2);
+	
+	
+	@After
+	public void tearDown() {
+		sut.destroy();
+	}
+	
+	@Test
+	public void testConcurrencyIsLimited() throws Exception {
+		// setup
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(10);
+		// exercise
+		for (int i = 0; i < 10; i++) {
+			sut.execute(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					running.decrementAndGet();
+					done.countDown();
+				}
+			});
+		}
+		// verify
+		assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+		assertThat(maxRunning.get() <= 2, is(true));
+	}
+	
+	@Test
+	public void testMultipartUpload() throws Exception {
+		// setup
+		when(amazonS3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class)))
+			.thenReturn(new InitiateMultipartUploadResult());
+		when(amazonS3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+			UploadPartRequest request = invocation.getArgument(0);
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag("etag-" + request.getPartNumber());
+			return result;
+		});
+		S3ObjectResource resource = new S3ObjectResource(amazonS3, "bucket", "key", sut);
+		// exercise
+		try (OutputStream out = resource.getOutputStream()) {
+			byte[] chunk = new byte[1024 * 1024];
+			for (int i = 0; i < 11; i++) {
+				out.write(chunk);
+			}
+		}
+		// verify
+		verify(amazonS3, times(3)).uploadPart(any(UploadPartRequest.class));
+		ArgumentCaptor<CompleteMultipartUploadRequest> captor =
+				ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+		verify(amazonS3).completeMultipartUpload(captor.capture());
+		assertThat(captor.getValue().getPartETags().size(), is(3));
+	}
+}
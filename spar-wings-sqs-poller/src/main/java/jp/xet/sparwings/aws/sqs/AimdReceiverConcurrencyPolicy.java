@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Additive-increase/multiplicative-decrease {@link ReceiverConcurrencyPolicy}.
+ * 
+ * <p>Add {@link #getIncrement() increment} receivers while receives come back full and the handlers have spare
+ * capacity, and multiply the number of receivers by {@link #getDecreaseFactor() decreaseFactor} on empty
+ * receives and while the poller is backing off.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class AimdReceiverConcurrencyPolicy implements ReceiverConcurrencyPolicy {
+	
+	@Getter
+	@Setter
+	private int minConcurrency = 1;
+	
+	@Getter
+	@Setter
+	private int maxConcurrency = 10;
+	
+	@Getter
+	@Setter
+	private int increment = 1;
+	
+	@Getter
+	@Setter
+	private double decreaseFactor = 0.5;
+	
+	
+	@Override
+	public int computeConcurrency(int current, ReceiveOutcome outcome) {
+		if (outcome.isFull() && outcome.getFreeCapacity() > 0) {
+			return Math.min(maxConcurrency, current + increment);
+		}
+		if (outcome.isEmpty() || outcome.isBackingOff()) {
+			return Math.max(minConcurrency, (int) (current * decreaseFactor));
+		}
+		return Math.max(minConcurrency, Math.min(maxConcurrency, current));
+	}
+}
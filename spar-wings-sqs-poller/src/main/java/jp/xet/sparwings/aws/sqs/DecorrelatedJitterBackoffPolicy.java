@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * {@link ReceiveBackoffPolicy} with decorrelated jitter.
+ * 
+ * <p>Each backoff is chosen at random between the base and three times the previous backoff, and capped.
+ * Randomized backoffs keep the pollers of a fleet from retrying in lock-step.</p>
+ * 
+ * <p>Empty receives are not backed off by default. Set {@link #setIdleThreshold(int) idleThreshold} to back off
+ * after that many consecutive empty receives, trading the latency of the first message after an idle period for
+ * fewer receive requests.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class DecorrelatedJitterBackoffPolicy implements ReceiveBackoffPolicy {
+	
+	/** base backoff in milliseconds for throttled receives */
+	@Getter
+	@Setter
+	private long throttledBaseMillis = 1000;
+	
+	/** base backoff in milliseconds for failed receives */
+	@Getter
+	@Setter
+	private long failedBaseMillis = 100;
+	
+	/** maximum backoff in milliseconds for throttled or failed receives */
+	@Getter
+	@Setter
+	private long failedCapMillis = 60000;
+	
+	/** the number of consecutive empty receives to start idle backoff, or {@code 0} to disable idle backoff */
+	@Getter
+	@Setter
+	private int idleThreshold;
+	
+	/** base backoff in milliseconds for empty receives */
+	@Getter
+	@Setter
+	private long idleBaseMillis = 1000;
+	
+	/** maximum backoff in milliseconds for empty receives */
+	@Getter
+	@Setter
+	private long idleCapMillis = 20000;
+	
+	
+	@Override
+	public long computeBackoffMillis(Cause cause, int consecutiveCount, long previousBackoffMillis) {
+		switch (cause) {
+			case THROTTLED:
+				return jitter(throttledBaseMillis, failedCapMillis, previousBackoffMillis);
+			case FAILED:
+				return jitter(failedBaseMillis, failedCapMillis, previousBackoffMillis);
+			case EMPTY:
+				if (idleThreshold <= 0 || consecutiveCount < idleThreshold) {
+					return 0;
+				}
+				return jitter(idleBaseMillis, idleCapMillis, previousBackoffMillis);
+			default:
+				throw new AssertionError(cause);
+		}
+	}
+	
+	private static long jitter(long base, long cap, long previous) {
+		long upper = Math.min(cap, Math.max(base, previous) * 3);
+		if (upper <= base) {
+			return Math.min(base, cap);
+		}
+		return ThreadLocalRandom.current().nextLong(base, upper + 1);
+	}
+}
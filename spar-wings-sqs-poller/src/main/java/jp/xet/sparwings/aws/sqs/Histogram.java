@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values with power-of-two buckets.
+ * 
+ * <p>Bucket {@code i} counts values in {@code [2^(i-1), 2^i)} (bucket {@code 0} counts {@code 0}), so percentiles
+ * are reported as the upper bound of the bucket, which is at most twice the actual value.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class Histogram {
+	
+	private static final int BUCKETS = 64;
+	
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	
+	private final AtomicLong count = new AtomicLong();
+	
+	private final AtomicLong sum = new AtomicLong();
+	
+	private final AtomicLong max = new AtomicLong();
+	
+	
+	/**
+	 * Record the value.
+	 * 
+	 * @param value the value (negative values are recorded as {@code 0})
+	 * @since 0.38
+	 */
+	public void record(long value) {
+		long v = Math.max(0, value);
+		buckets.incrementAndGet(Math.min(BUCKETS - 1, BUCKETS - Long.numberOfLeadingZeros(v)));
+		count.incrementAndGet();
+		sum.addAndGet(v);
+		max.accumulateAndGet(v, Math::max);
+	}
+	
+	/**
+	 * Returns the number of recorded values.
+	 * 
+	 * @return the number of recorded values
+	 * @since 0.38
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Returns the sum of recorded values.
+	 * 
+	 * @return the sum of recorded values
+	 * @since 0.38
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+	
+	/**
+	 * Returns the maximum recorded value.
+	 * 
+	 * @return the maximum recorded value, or {@code 0} if no value is recorded
+	 * @since 0.38
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns the mean of recorded values.
+	 * 
+	 * @return the mean, or {@code 0} if no value is recorded
+	 * @since 0.38
+	 */
+	public double getMean() {
+		long c = count.get();
+		return c == 0 ? 0 : (double) sum.get() / c;
+	}
+	
+	/**
+	 * Returns the approximate percentile.
+	 * 
+	 * @param percentile the percentile in {@code [0, 100]}
+	 * @return the upper bound of the bucket which contains the percentile, or {@code 0} if no value is recorded
+	 * @throws IllegalArgumentException if the percentile is out of range
+	 * @since 0.38
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be in [0, 100]: " + percentile);
+		}
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+	
+	private static long upperBound(int bucket) {
+		return bucket == 0 ? 0 : bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+
+/**
+ * {@link SqsPollerMetrics} which aggregates metrics in process.
+ * 
+ * <p>Latencies are recorded in nanoseconds. Expose the getters of this class to your monitoring system to tune
+ * {@code visibilityTimeout}, {@code changeVisibilityThreshold} and {@code maxNumberOfMessages}.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class InProcessSqsPollerMetrics implements SqsPollerMetrics {
+	
+	/** latency of {@code ReceiveMessage} calls */
+	@Getter
+	private final Histogram receiveLatency = new Histogram();
+	
+	/** the number of messages per {@code ReceiveMessage} call */
+	@Getter
+	private final Histogram messagesPerReceive = new Histogram();
+	
+	/** latency of handler invocations */
+	@Getter
+	private final Histogram handlerLatency = new Histogram();
+	
+	/** the number of visibility timeout extensions per message */
+	@Getter
+	private final Histogram visibilityExtensions = new Histogram();
+	
+	/** latency of {@code DeleteMessageBatch} calls */
+	@Getter
+	private final Histogram deleteLatency = new Histogram();
+	
+	private final LongAdder emptyReceives = new LongAdder();
+	
+	private final LongAdder receiveFailures = new LongAdder();
+	
+	private final LongAdder handlerFailures = new LongAdder();
+	
+	private final LongAdder deletedMessages = new LongAdder();
+	
+	/** the last sampled number of in-flight messages */
+	@Getter
+	private volatile int inFlightMessages;
+	
+	/** the last sampled number of tasks queued in the executor, or {@code -1} if unknown */
+	@Getter
+	private volatile int executorQueueDepth = -1;
+	
+	
+	@Override
+	public void recordReceive(long latencyNanos, int requested, int received) {
+		receiveLatency.record(latencyNanos);
+		messagesPerReceive.record(received);
+		if (received == 0) {
+			emptyReceives.increment();
+		}
+	}
+	
+	@Override
+	public void recordReceiveFailure(long latencyNanos) {
+		receiveFailures.increment();
+	}
+	
+	@Override
+	public void recordHandle(long latencyNanos, int messages, boolean succeeded) {
+		handlerLatency.record(latencyNanos);
+		if (succeeded == false) {
+			handlerFailures.increment();
+		}
+	}
+	
+	@Override
+	public void recordVisibilityExtensions(int extensions) {
+		visibilityExtensions.record(extensions);
+	}
+	
+	@Override
+	public void recordDelete(long latencyNanos, int messages) {
+		deleteLatency.record(latencyNanos);
+		deletedMessages.add(messages);
+	}
+	
+	@Override
+	public void recordGauges(int inFlightMessages, int executorQueueDepth) {
+		this.inFlightMessages = inFlightMessages;
+		this.executorQueueDepth = executorQueueDepth;
+	}
+	
+	/**
+	 * Returns the number of successful {@code ReceiveMessage} calls which returned no message.
+	 * 
+	 * @return the number of empty receives
+	 * @since 0.38
+	 */
+	public long getEmptyReceives() {
+		return emptyReceives.sum();
+	}
+	
+	/**
+	 * Returns the ratio of empty receives in successful {@code ReceiveMessage} calls.
+	 * 
+	 * @return the empty receive ratio in {@code [0, 1]}, or {@code 0} if not received yet
+	 * @since 0.38
+	 */
+	public double getEmptyReceiveRatio() {
+		long receives = messagesPerReceive.getCount();
+		return receives == 0 ? 0 : (double) emptyReceives.sum() / receives;
+	}
+	
+	/**
+	 * Returns the number of failed {@code ReceiveMessage} calls.
+	 * 
+	 * @return the number of receive failures
+	 * @since 0.38
+	 */
+	public long getReceiveFailures() {
+		return receiveFailures.sum();
+	}
+	
+	/**
+	 * Returns the number of handler invocations which threw exception.
+	 * 
+	 * @return the number of handler failures
+	 * @since 0.38
+	 */
+	public long getHandlerFailures() {
+		return handlerFailures.sum();
+	}
+	
+	/**
+	 * Returns the number of messages requested to delete by {@code DeleteMessageBatch}.
+	 * 
+	 * @return the number of deleted messages
+	 * @since 0.38
+	 */
+	public long getDeletedMessages() {
+		return deletedMessages.sum();
+	}
+}
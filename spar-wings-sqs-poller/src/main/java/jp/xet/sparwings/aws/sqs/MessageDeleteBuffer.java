@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.retry.support.RetryTemplate;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Acknowledgement stage of {@link SqsMessagePoller}.
+ *
+ * <p>Accumulates handled messages and deletes them with {@code DeleteMessageBatch}, when the buffer reaches
+ * {@value #MAX_BATCH_SIZE} entries or the batch window elapses. Entries failed by server fault are retried one by
+ * one with {@code DeleteMessage}.</p>
+ *
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+@RequiredArgsConstructor
+class MessageDeleteBuffer {
+	
+	/** Maximum number of entries in single {@code DeleteMessageBatch} request */
+	static final int MAX_BATCH_SIZE = 10;
+	
+	private final AmazonSQS sqs;
+	
+	private final RetryTemplate retry;
+	
+	private final String queueUrl;
+	
+	private final ScheduledExecutorService scheduler;
+	
+	private final List<Message> pending = new ArrayList<>(MAX_BATCH_SIZE);
+	
+	private ScheduledFuture<?> scheduledFlush;
+	
+	/** Whether the buffer is closed, guarded by {@link #pending} */
+	private boolean closed;
+	
+	@Getter
+	@Setter
+	private volatile long windowMillis = 200;
+	
+	@Setter
+	private volatile SqsPollerMetrics metrics = SqsPollerMetrics.NOOP;
+	
+	
+	/**
+	 * Enqueue the message to be deleted.
+	 * 
+	 * @param message handled message
+	 */
+	void add(Message message) {
+		List<Message> batch = null;
+		synchronized (pending) {
+			pending.add(message);
+			if (closed || pending.size() >= MAX_BATCH_SIZE) {
+				batch = drain();
+			} else if (scheduledFlush == null) {
+				try {
+					scheduledFlush = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					batch = drain(); // scheduler is shut down
+				}
+			}
+		}
+		if (batch != null) {
+			deleteBatch(batch);
+		}
+	}
+	
+	/**
+	 * Delete all pending messages immediately.
+	 */
+	void flush() {
+		List<Message> batch;
+		synchronized (pending) {
+			batch = drain();
+		}
+		if (batch.isEmpty() == false) {
+			deleteBatch(batch);
+		}
+	}
+	
+	/**
+	 * Delete all pending messages immediately, and delete messages added later without buffering.
+	 */
+	void close() {
+		synchronized (pending) {
+			closed = true;
+		}
+		flush();
+	}
+	
+	private List<Message> drain() {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		List<Message> batch = new ArrayList<>(pending);
+		pending.clear();
+		return batch;
+	}
+	
+	private void deleteBatch(List<Message> batch) {
+		List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), batch.get(i).getReceiptHandle()));
+		}
+		DeleteMessageBatchResult result;
+		long start = System.nanoTime();
+		try {
+			result = retry.execute(context -> sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries)));
+			metrics.recordDelete(System.nanoTime() - start, batch.size());
+		} catch (Exception e) { // NOPMD - cc
+			log.error("Failed to delete {} SQS messages", batch.size(), e);
+			return;
+		}
+		if (log.isInfoEnabled()) {
+			result.getSuccessful().forEach(entry -> log.info("SQS:{} was deleted",
+					batch.get(Integer.parseInt(entry.getId())).getMessageId()));
+		}
+		for (BatchResultErrorEntry error : result.getFailed()) {
+			Message message = batch.get(Integer.parseInt(error.getId()));
+			if (Boolean.TRUE.equals(error.getSenderFault())) {
+				log.warn("SQS:{} could not be deleted: {} {}",
+						message.getMessageId(), error.getCode(), error.getMessage());
+			} else {
+				deleteIndividually(message);
+			}
+		}
+	}
+	
+	private void deleteIndividually(Message message) {
+		try {
+			retry.execute(context -> sqs.deleteMessage(new DeleteMessageRequest(queueUrl, message.getReceiptHandle())));
+			log.info("SQS:{} was deleted", message.getMessageId());
+		} catch (Exception e) { // NOPMD - cc
+			log.error("Failed to delete SQS:{}", message.getMessageId(), e);
+		}
+	}
+}
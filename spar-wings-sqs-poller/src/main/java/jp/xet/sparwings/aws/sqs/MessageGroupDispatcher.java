@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Dispatcher of FIFO queue messages of {@link SqsMessagePoller}.
+ * 
+ * <p>Tasks of the same message group run one by one in dispatched order on the serial lane of the group, and
+ * lanes of different groups run in parallel on the executor, up to {@link #getMaxConcurrentGroups()} lanes.
+ * A lane runs one task per executor submission and then yields to the waiting lanes, and is discarded as soon as
+ * it becomes idle. When a task fails, the remaining queued tasks of the lane are skipped to keep the order of the
+ * group.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+@RequiredArgsConstructor
+class MessageGroupDispatcher {
+	
+	private final Supplier<? extends Executor> executor;
+	
+	private final Map<String, Lane> lanes = new HashMap<>();
+	
+	private final Queue<Lane> readyLanes = new ArrayDeque<>();
+	
+	private int runningLanes;
+	
+	@Getter
+	@Setter
+	private volatile int maxConcurrentGroups = 10;
+	
+	
+	/**
+	 * Enqueue the tasks to the lane of the message group at once.
+	 * 
+	 * @param groupId message group ID
+	 * @param tasks the tasks in order
+	 */
+	void dispatch(String groupId, List<? extends GroupTask> tasks) {
+		synchronized (this) {
+			Lane lane = lanes.computeIfAbsent(groupId, Lane::new);
+			lane.tasks.addAll(tasks);
+			if (lane.scheduled == false) {
+				lane.scheduled = true;
+				readyLanes.add(lane);
+			}
+		}
+		drain();
+	}
+	
+	/**
+	 * Returns the number of message groups which have queued or running tasks.
+	 * 
+	 * @return the number of active message groups
+	 */
+	synchronized int getActiveGroups() {
+		return lanes.size();
+	}
+	
+	private void drain() {
+		while (true) {
+			Lane lane;
+			synchronized (this) {
+				if (runningLanes >= maxConcurrentGroups || readyLanes.isEmpty()) {
+					return;
+				}
+				lane = readyLanes.poll();
+				runningLanes++;
+			}
+			try {
+				executor.get().execute(() -> runNext(lane));
+			} catch (RejectedExecutionException e) {
+				log.error("Task for message group {} was rejected", lane.groupId, e);
+				synchronized (this) {
+					runningLanes--;
+				}
+				skipRemaining(lane);
+			}
+		}
+	}
+	
+	private void runNext(Lane lane) {
+		GroupTask task;
+		synchronized (this) {
+			task = lane.tasks.poll();
+		}
+		boolean success = false;
+		try {
+			success = task == null || task.run();
+		} finally {
+			if (success) {
+				synchronized (this) {
+					runningLanes--;
+					if (lane.tasks.isEmpty()) {
+						release(lane);
+					} else {
+						readyLanes.add(lane);
+					}
+				}
+			} else {
+				synchronized (this) {
+					runningLanes--;
+				}
+				skipRemaining(lane);
+			}
+			drain();
+		}
+	}
+	
+	private void skipRemaining(Lane lane) {
+		while (true) {
+			GroupTask task;
+			synchronized (this) {
+				task = lane.tasks.poll();
+				if (task == null) {
+					release(lane);
+					return;
+				}
+			}
+			task.skip();
+		}
+	}
+	
+	private void release(Lane lane) {
+		lane.scheduled = false;
+		lanes.remove(lane.groupId, lane);
+	}
+	
+	
+	/**
+	 * Task of the message group.
+	 */
+	interface GroupTask {
+		
+		/**
+		 * Run the task.
+		 * 
+		 * @return {@code true} if succeeded
+		 */
+		boolean run();
+		
+		/**
+		 * Called instead of {@link #run()} when the task is not run because the preceding task of the group is failed.
+		 */
+		void skip();
+	}
+	
+	@RequiredArgsConstructor
+	private static class Lane {
+		
+		private final String groupId;
+		
+		private final Queue<GroupTask> tasks = new ArrayDeque<>();
+		
+		private boolean scheduled;
+	}
+}
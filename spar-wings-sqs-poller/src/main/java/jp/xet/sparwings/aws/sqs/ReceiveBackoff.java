@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.sqs.model.OverLimitException;
+
+import jp.xet.sparwings.aws.sqs.ReceiveBackoffPolicy.Cause;
+
+/**
+ * Backoff state of the receive loop of {@link SqsMessagePoller}.
+ * 
+ * <p>Instead of sleeping in the receiving thread, the deadline until which receives are suspended is recorded,
+ * and receivers wait for it in bounded slices.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+class ReceiveBackoff {
+	
+	@Getter
+	@Setter
+	private volatile ReceiveBackoffPolicy policy = new DecorrelatedJitterBackoffPolicy();
+	
+	@Getter
+	private volatile int consecutiveFailures;
+	
+	@Getter
+	private volatile int consecutiveEmptyReceives;
+	
+	@Getter
+	private volatile long lastBackoffMillis;
+	
+	private long deadlineNanos = System.nanoTime();
+	
+	
+	/**
+	 * Record the successful receive.
+	 * 
+	 * @param received the number of received messages
+	 */
+	synchronized void onReceived(int received) {
+		consecutiveFailures = 0;
+		if (received > 0) {
+			consecutiveEmptyReceives = 0;
+			lastBackoffMillis = 0;
+			return;
+		}
+		consecutiveEmptyReceives++;
+		backoff(Cause.EMPTY, consecutiveEmptyReceives);
+	}
+	
+	/**
+	 * Record the failed receive.
+	 * 
+	 * @param e the cause of failure
+	 */
+	synchronized void onFailed(RuntimeException e) {
+		consecutiveFailures++;
+		Cause cause = isThrottling(e) ? Cause.THROTTLED : Cause.FAILED;
+		backoff(cause, consecutiveFailures);
+		log.error("Failed to receive SQS messages ({} times), back off {} ms",
+				consecutiveFailures, lastBackoffMillis, e);
+	}
+	
+	/**
+	 * Returns the remaining backoff.
+	 * 
+	 * @return the remaining backoff in milliseconds, or {@code 0} if not backing off
+	 */
+	synchronized long getRemainingMillis() {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+	}
+	
+	private void backoff(Cause cause, int consecutiveCount) {
+		long millis = Math.max(0, policy.computeBackoffMillis(cause, consecutiveCount, lastBackoffMillis));
+		lastBackoffMillis = millis;
+		deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		if (millis > 0 && cause == Cause.EMPTY) {
+			log.debug("{} consecutive empty receives, back off {} ms", consecutiveCount, millis);
+		}
+	}
+	
+	private static boolean isThrottling(RuntimeException e) {
+		return e instanceof OverLimitException
+				|| e instanceof AmazonClientException && RetryUtils.isThrottlingException((AmazonClientException) e);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+/**
+ * Policy to decide how long {@link SqsMessagePoller} suspends receiving after failed or empty receives.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@FunctionalInterface
+public interface ReceiveBackoffPolicy {
+	
+	/**
+	 * Compute the next backoff.
+	 * 
+	 * @param cause the cause of the backoff
+	 * @param consecutiveCount the number of consecutive receives with the same cause, including the last one
+	 * @param previousBackoffMillis the last backoff in milliseconds, or {@code 0} if not backed off
+	 * @return the backoff in milliseconds ({@code 0} means no backoff)
+	 * @since 0.38
+	 */
+	long computeBackoffMillis(Cause cause, int consecutiveCount, long previousBackoffMillis);
+	
+	
+	/**
+	 * Cause of the backoff.
+	 * 
+	 * @since 0.38
+	 */
+	enum Cause {
+		
+		/** {@code ReceiveMessage} was throttled */
+		THROTTLED,
+		
+		/** {@code ReceiveMessage} was failed by other reason */
+		FAILED,
+		
+		/** {@code ReceiveMessage} returned no message */
+		EMPTY
+	}
+}
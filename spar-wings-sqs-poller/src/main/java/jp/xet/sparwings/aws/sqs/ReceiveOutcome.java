@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Outcome of single receive attempt of {@link SqsMessagePoller}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@ToString
+public class ReceiveOutcome {
+	
+	/**
+	 * Returns the outcome of the receive which was skipped because the poller was backing off.
+	 * 
+	 * @return the outcome
+	 * @since 0.38
+	 */
+	static ReceiveOutcome backingOff() {
+		return new ReceiveOutcome(0, 0, 0, true);
+	}
+	
+	
+	/** The number of messages requested to SQS, or {@code 0} if the receive was skipped */
+	@Getter
+	private final int requested;
+	
+	/** The number of received messages */
+	@Getter
+	private final int received;
+	
+	/** The number of messages which the handlers can accept after dispatching received messages */
+	@Getter
+	private final int freeCapacity;
+	
+	/** {@code true} if the receive was skipped because the poller was backing off */
+	@Getter
+	private final boolean backingOff;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param requested the number of messages requested to SQS, or {@code 0} if the receive was skipped
+	 * @param received the number of received messages
+	 * @param freeCapacity the number of messages which the handlers can accept
+	 * @since 0.38
+	 */
+	public ReceiveOutcome(int requested, int received, int freeCapacity) {
+		this(requested, received, freeCapacity, false);
+	}
+	
+	private ReceiveOutcome(int requested, int received, int freeCapacity, boolean backingOff) {
+		this.requested = requested;
+		this.received = received;
+		this.freeCapacity = freeCapacity;
+		this.backingOff = backingOff;
+	}
+	
+	/**
+	 * Returns whether the receive was skipped because the poller was saturated.
+	 * 
+	 * @return {@code true} if saturated
+	 * @since 0.38
+	 */
+	public boolean isSaturated() {
+		return requested == 0 && backingOff == false;
+	}
+	
+	/**
+	 * Returns whether no message was received.
+	 * 
+	 * @return {@code true} if the receive came back empty
+	 * @since 0.38
+	 */
+	public boolean isEmpty() {
+		return requested > 0 && received == 0;
+	}
+	
+	/**
+	 * Returns whether all of the requested messages were received.
+	 * 
+	 * @return {@code true} if the receive came back full
+	 * @since 0.38
+	 */
+	public boolean isFull() {
+		return requested > 0 && received >= requested;
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+/**
+ * Policy to decide the number of concurrent long-poll receivers of {@link SqsReceiverPool}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@FunctionalInterface
+public interface ReceiverConcurrencyPolicy {
+	
+	/**
+	 * Compute the next number of concurrent receivers.
+	 * 
+	 * @param current the current number of receivers
+	 * @param outcome the outcome of the last receive
+	 * @return the next number of receivers (values less than 1 are treated as 1)
+	 * @since 0.38
+	 */
+	int computeConcurrency(int current, ReceiveOutcome outcome);
+}
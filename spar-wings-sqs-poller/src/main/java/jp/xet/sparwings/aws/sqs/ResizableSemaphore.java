@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * {@link Semaphore} which total number of permits can be changed at runtime.
+ * 
+ * <p>When the maximum is reduced below the number of acquired permits, {@link #availablePermits()} becomes negative
+ * until enough permits are released.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("serial")
+class ResizableSemaphore extends Semaphore {
+	
+	private int maxPermits;
+	
+	
+	ResizableSemaphore(int maxPermits) {
+		super(maxPermits);
+		this.maxPermits = maxPermits;
+	}
+	
+	synchronized int getMaxPermits() {
+		return maxPermits;
+	}
+	
+	synchronized void setMaxPermits(int maxPermits) {
+		if (maxPermits < 1) {
+			throw new IllegalArgumentException("maxPermits must be positive: " + maxPermits);
+		}
+		int delta = maxPermits - this.maxPermits;
+		if (delta > 0) {
+			release(delta);
+		} else if (delta < 0) {
+			reducePermits(-delta);
+		}
+		this.maxPermits = maxPermits;
+	}
+}
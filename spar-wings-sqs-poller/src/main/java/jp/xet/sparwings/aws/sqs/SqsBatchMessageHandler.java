@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Handler which processes all messages of single receive at once.
+ * 
+ * <p>Use this handler instead of {@code Consumer<Message>} to amortise downstream I/O across a receive batch,
+ * for example to write all messages by single {@code BatchWriteItem} call.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see SqsMessagePoller#withBatchHandler(com.amazonaws.services.sqs.AmazonSQS,
+ *      org.springframework.retry.support.RetryTemplate, String, SqsBatchMessageHandler)
+ */
+@FunctionalInterface
+public interface SqsBatchMessageHandler {
+	
+	/**
+	 * Process received messages.
+	 * 
+	 * <p>Messages which are not contained in the returned collection are deleted from the queue. Failed messages
+	 * are left in the queue and reappear after their visibility timeout. If this method throws an exception,
+	 * all of the messages are treated as failed.</p>
+	 * 
+	 * @param messages received messages (1 to 10 messages)
+	 * @return message IDs of the failed messages, or empty collection if all messages succeeded
+	 * @since 0.38
+	 */
+	Collection<String> handle(List<Message> messages);
+}
@@ -16,33 +16,42 @@
 package jp.xet.sparwings.aws.sqs;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.retry.support.RetryTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.util.DigestUtils;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.OverLimitException;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 
+import jp.xet.sparwings.aws.sqs.MessageGroupDispatcher.GroupTask;
+import jp.xet.sparwings.aws.sqs.VisibilityHeartbeat.InFlightMessage;
+
 /**
  * TODO for daisuke
  * 
@@ -51,8 +60,60 @@ import com.amazonaws.services.sqs.model.ReceiveMessageResult;
  * @author daisuke
  */
 @Slf4j
-@RequiredArgsConstructor
-public class SqsMessagePoller { // NOPMD - cc
+public class SqsMessagePoller implements DisposableBean { // NOPMD - cc
+	
+	/** Upper limit of {@code MaxNumberOfMessages} of {@code ReceiveMessage} API */
+	private static final int MAX_NUMBER_OF_MESSAGES_PER_RECEIVE = 10;
+	
+	private static final int DEFAULT_MAX_IN_FLIGHT_MESSAGES = 10;
+	
+	private static final long SATURATION_WAIT_MILLIS = 1000;
+	
+	/** Attribute name of the message group ID of FIFO queue messages */
+	private static final String MESSAGE_GROUP_ID = "MessageGroupId";
+	
+	
+	private static ThreadFactory createThreadFactory(boolean daemon) {
+		return r -> {
+			Thread thread = new Thread(r);
+			thread.setDaemon(daemon);
+			thread.setUncaughtExceptionHandler((t, e) -> {
+				synchronized (SqsMessagePoller.class) {
+					log.error("Uncaught exception in thread '{}': {}", t.getName(), e.getMessage());
+				}
+			});
+			return thread;
+		};
+	}
+	
+	static Object computeReceptHandleDigest(Message message) {
+		return new Object() {
+			
+			@Override
+			public String toString() {
+				return DigestUtils.md5DigestAsHex(message.getReceiptHandle().getBytes(StandardCharsets.UTF_8));
+			}
+		};
+	}
+	
+	/**
+	 * Create instance with the handler which processes all messages of single receive at once.
+	 * 
+	 * <p>This is a factory method rather than a constructor, so that lambda handlers passed to
+	 * {@link #SqsMessagePoller(AmazonSQS, RetryTemplate, String, Consumer)} are not ambiguous.</p>
+	 * 
+	 * @param sqs {@link AmazonSQS}
+	 * @param retry {@link RetryTemplate} to retry SQS API calls
+	 * @param workerQueueUrl URL of the queue to poll
+	 * @param batchMessageHandler handler of received messages
+	 * @return the poller
+	 * @since 0.38
+	 */
+	public static SqsMessagePoller withBatchHandler(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl,
+			SqsBatchMessageHandler batchMessageHandler) {
+		return new SqsMessagePoller(sqs, retry, workerQueueUrl, null, batchMessageHandler);
+	}
+	
 	
 	@Getter
 	private final AmazonSQS sqs;
@@ -63,20 +124,21 @@ public class SqsMessagePoller { // NOPMD - cc
 	@Getter
 	private final String workerQueueUrl;
 	
+	/** handler of each message, or {@code null} if {@link #batchMessageHandler} is used */
 	@Getter
 	private final Consumer<Message> messageHandler;
 	
+	/**
+	 * handler of all messages of single receive, or {@code null} if {@link #messageHandler} is used
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private final SqsBatchMessageHandler batchMessageHandler;
+	
 	@Getter
 	@Setter
-	private ExecutorService executor = Executors.newCachedThreadPool(r -> {
-		Thread thread = new Thread(r);
-		thread.setUncaughtExceptionHandler((t, e) -> {
-			synchronized (SqsMessagePoller.class) {
-				log.error("Uncaught exception in thread '{}': {}", t.getName(), e.getMessage());
-			}
-		});
-		return thread;
-	});
+	private ExecutorService executor = Executors.newCachedThreadPool(createThreadFactory(false));
 	
 	@Getter
 	@Setter
@@ -94,6 +156,238 @@ public class SqsMessagePoller { // NOPMD - cc
 	@Setter
 	private int maxNumberOfMessages = 10;
 	
+	/**
+	 * Interval in milliseconds of the heartbeat task which extends visibility timeout of in-flight messages.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private long heartbeatIntervalMillis = 1000;
+	
+	/**
+	 * Maximum number of visibility timeout extensions per message.
+	 * The message is not deleted even if its handler succeeds after the extensions are exhausted.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private int maxVisibilityExtensions = 3;
+	
+	/**
+	 * Instrumentation of this poller.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private volatile SqsPollerMetrics metrics = SqsPollerMetrics.NOOP;
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			createThreadFactory(true));
+	
+	private final MessageDeleteBuffer deleteBuffer;
+	
+	private final VisibilityHeartbeat heartbeat;
+	
+	private final ResizableSemaphore inFlightPermits = new ResizableSemaphore(DEFAULT_MAX_IN_FLIGHT_MESSAGES);
+	
+	private final ReceiveBackoff backoff = new ReceiveBackoff();
+	
+	private final MessageGroupDispatcher groupDispatcher = new MessageGroupDispatcher(() -> executor);
+	
+	private ScheduledFuture<?> heartbeatFuture;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param sqs {@link AmazonSQS}
+	 * @param retry {@link RetryTemplate} to retry SQS API calls
+	 * @param workerQueueUrl URL of the queue to poll
+	 * @param messageHandler handler of each message
+	 * @since 0.3
+	 */
+	public SqsMessagePoller(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl,
+			Consumer<Message> messageHandler) {
+		this(sqs, retry, workerQueueUrl, messageHandler, null);
+	}
+	
+	private SqsMessagePoller(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl,
+			Consumer<Message> messageHandler, SqsBatchMessageHandler batchMessageHandler) {
+		this.sqs = sqs;
+		this.retry = retry;
+		this.workerQueueUrl = workerQueueUrl;
+		this.messageHandler = messageHandler;
+		this.batchMessageHandler = batchMessageHandler;
+		deleteBuffer = new MessageDeleteBuffer(sqs, retry, workerQueueUrl, scheduler);
+		heartbeat = new VisibilityHeartbeat(sqs, retry, workerQueueUrl);
+	}
+	
+	/**
+	 * Returns the maximum time in milliseconds to hold handled messages before deleting them in a batch.
+	 * 
+	 * @return the batch window in milliseconds
+	 * @since 0.38
+	 */
+	public long getDeleteBatchWindowMillis() {
+		return deleteBuffer.getWindowMillis();
+	}
+	
+	/**
+	 * Set the maximum time in milliseconds to hold handled messages before deleting them in a batch.
+	 * 
+	 * <p>Handled messages are deleted by {@code DeleteMessageBatch} when 10 messages are accumulated
+	 * or this window elapses.</p>
+	 * 
+	 * @param deleteBatchWindowMillis the batch window in milliseconds
+	 * @since 0.38
+	 */
+	public void setDeleteBatchWindowMillis(long deleteBatchWindowMillis) {
+		deleteBuffer.setWindowMillis(deleteBatchWindowMillis);
+	}
+	
+	/**
+	 * Run handlers on virtual threads if the running JVM supports them (JDK 21 or later).
+	 * 
+	 * <p>A new virtual thread is started for each handler task instead of the pooled platform thread, so that
+	 * thousands of handlers blocking on I/O do not need thousands of thread stacks. The number of concurrent
+	 * handlers is still limited by {@link #setMaxInFlightMessages(int) maxInFlightMessages}. If virtual threads are
+	 * not supported, the current {@link #getExecutor() executor} is kept.</p>
+	 * 
+	 * @return {@code true} if virtual threads are enabled
+	 * @since 0.38
+	 */
+	public boolean enableVirtualThreads() {
+		Optional<ExecutorService> virtualExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor("sqs-handler-");
+		if (virtualExecutor.isPresent()) {
+			executor = virtualExecutor.get();
+			log.info("SQS message handlers run on virtual threads");
+			return true;
+		}
+		log.warn("Virtual threads are not supported by this JVM, SQS message handlers run on platform threads");
+		return false;
+	}
+	
+	/**
+	 * Set the instrumentation of this poller.
+	 * 
+	 * @param metrics the metrics, or {@code null} to record nothing
+	 * @since 0.38
+	 */
+	public void setMetrics(SqsPollerMetrics metrics) {
+		this.metrics = metrics == null ? SqsPollerMetrics.NOOP : metrics;
+		deleteBuffer.setMetrics(this.metrics);
+	}
+	
+	/**
+	 * Returns the number of tasks queued in the {@link #getExecutor() executor}.
+	 * 
+	 * @return the number of queued tasks, or {@code -1} if the executor is not {@link ThreadPoolExecutor}
+	 * @since 0.38
+	 */
+	public int getExecutorQueueDepth() {
+		ExecutorService executor = this.executor;
+		if (executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executor).getQueue().size();
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the policy to back off receiving after failed or empty receives.
+	 * 
+	 * @return the backoff policy
+	 * @since 0.38
+	 */
+	public ReceiveBackoffPolicy getBackoffPolicy() {
+		return backoff.getPolicy();
+	}
+	
+	/**
+	 * Set the policy to back off receiving after failed or empty receives.
+	 * 
+	 * @param backoffPolicy the backoff policy
+	 * @since 0.38
+	 */
+	public void setBackoffPolicy(ReceiveBackoffPolicy backoffPolicy) {
+		backoff.setPolicy(backoffPolicy);
+	}
+	
+	/**
+	 * Returns the maximum number of FIFO message groups which are processed in parallel.
+	 * 
+	 * @return the maximum number of concurrent message groups
+	 * @since 0.38
+	 */
+	public int getMaxConcurrentMessageGroups() {
+		return groupDispatcher.getMaxConcurrentGroups();
+	}
+	
+	/**
+	 * Set the maximum number of FIFO message groups which are processed in parallel.
+	 * 
+	 * <p>Messages which have {@code MessageGroupId} are processed one by one in received order within the group,
+	 * and messages of different groups are processed in parallel. When the handler fails, the subsequent messages
+	 * of the same group in the poller are not processed and are left in the queue, to keep the order of the
+	 * group.</p>
+	 * 
+	 * @param maxConcurrentMessageGroups the maximum number of concurrent message groups
+	 * @since 0.38
+	 */
+	public void setMaxConcurrentMessageGroups(int maxConcurrentMessageGroups) {
+		groupDispatcher.setMaxConcurrentGroups(maxConcurrentMessageGroups);
+	}
+	
+	/**
+	 * Returns the number of FIFO message groups which have messages in process.
+	 * 
+	 * @return the number of active message groups
+	 * @since 0.38
+	 */
+	public int getActiveMessageGroupCount() {
+		return groupDispatcher.getActiveGroups();
+	}
+	
+	/**
+	 * Returns the number of consecutive failed receives.
+	 * 
+	 * @return the number of consecutive failed receives
+	 * @since 0.38
+	 */
+	public int getConsecutiveReceiveFailures() {
+		return backoff.getConsecutiveFailures();
+	}
+	
+	/**
+	 * Returns the number of consecutive empty receives.
+	 * 
+	 * @return the number of consecutive empty receives
+	 * @since 0.38
+	 */
+	public int getConsecutiveEmptyReceives() {
+		return backoff.getConsecutiveEmptyReceives();
+	}
+	
+	/**
+	 * Returns the last backoff chosen by the {@link #getBackoffPolicy() backoff policy}.
+	 * 
+	 * @return the last backoff in milliseconds, or {@code 0} if not backed off
+	 * @since 0.38
+	 */
+	public long getLastBackoffMillis() {
+		return backoff.getLastBackoffMillis();
+	}
+	
+	/**
+	 * Returns the remaining time until the poller resumes receiving.
+	 * 
+	 * @return the remaining backoff in milliseconds, or {@code 0} if not backing off
+	 * @since 0.38
+	 */
+	public long getBackoffRemainingMillis() {
+		return backoff.getRemainingMillis();
+	}
 	
 	/**
 	 * TODO for daisuke
@@ -101,98 +395,304 @@ public class SqsMessagePoller { // NOPMD - cc
 	 * @since 0.3
 	 */
 	@Scheduled(fixedDelay = 1) // SUPPRESS CHECKSTYLE bug?
-	public void loop() { // NOPMD - cc
-		List<Message> messages = reveiveMessages();
+	public void loop() {
+		poll();
+	}
+	
+	/**
+	 * Receive messages once and dispatch them to the handler.
+	 * 
+	 * <p>This method can be called from multiple threads concurrently.</p>
+	 * 
+	 * @return the outcome of the receive
+	 * @see SqsReceiverPool
+	 * @since 0.38
+	 */
+	public ReceiveOutcome poll() { // NOPMD - cc
+		startHeartbeatIfNecessary();
+		if (awaitBackoff()) {
+			log.trace("SQS message poller is backing off");
+			return ReceiveOutcome.backingOff();
+		}
+		int permits = acquirePermits();
+		if (permits == 0) {
+			log.trace("SQS message poller is saturated");
+			return new ReceiveOutcome(0, 0, 0);
+		}
+		List<Message> messages = Collections.emptyList();
+		long start = System.nanoTime();
+		try {
+			messages = reveiveMessages(permits);
+			metrics.recordReceive(System.nanoTime() - start, permits, messages.size());
+			backoff.onReceived(messages.size());
+		} catch (AmazonClientException e) {
+			metrics.recordReceiveFailure(System.nanoTime() - start);
+			backoff.onFailed(e);
+			return ReceiveOutcome.backingOff();
+		} finally {
+			inFlightPermits.release(permits - messages.size());
+		}
 		if (messages.isEmpty()) {
 			log.trace("No SQS message received");
-			return;
+		} else {
+			log.debug("{} SQS messages are received", messages.size());
+			if (batchMessageHandler != null) {
+				handleMessages(messages);
+			} else {
+				dispatchMessages(messages);
+			}
 		}
-		log.debug("{} SQS messages are received", messages.size());
-		messages.stream().parallel().forEach(this::handleMessage);
+		return new ReceiveOutcome(permits, messages.size(), Math.max(0, inFlightPermits.availablePermits()));
+	}
+	
+	/**
+	 * Record the unexpected failure of {@link #poll()} and back off the subsequent receives.
+	 * 
+	 * @param e the cause of failure
+	 * @return the outcome of the failed receive
+	 * @see SqsReceiverPool
+	 */
+	ReceiveOutcome onPollFailed(RuntimeException e) {
+		backoff.onFailed(e);
+		return ReceiveOutcome.backingOff();
+	}
+	
+	/**
+	 * Returns the number of messages which are received and not processed yet.
+	 * The capacity reserved for the ongoing receive is also counted.
+	 * 
+	 * @return the number of in-flight messages
+	 * @since 0.38
+	 */
+	public int getInFlightMessageCount() {
+		return inFlightPermits.getMaxPermits() - inFlightPermits.availablePermits();
+	}
+	
+	/**
+	 * Returns the maximum number of messages which are received and not processed yet.
+	 * 
+	 * @return the maximum number of in-flight messages
+	 * @since 0.38
+	 */
+	public int getMaxInFlightMessages() {
+		return inFlightPermits.getMaxPermits();
+	}
+	
+	/**
+	 * Set the maximum number of messages which are received and not processed yet.
+	 * 
+	 * <p>The poller asks SQS only for as many messages as the free capacity, and does not receive any message
+	 * while the poller is saturated.</p>
+	 * 
+	 * @param maxInFlightMessages the maximum number of in-flight messages
+	 * @since 0.38
+	 */
+	public void setMaxInFlightMessages(int maxInFlightMessages) {
+		inFlightPermits.setMaxPermits(maxInFlightMessages);
 	}
 	
-	private List<Message> reveiveMessages() {
-		ReceiveMessageResult receiveMessageResult;
+	private int acquirePermits() {
 		try {
-			log.trace("Start SQS long polling");
-			receiveMessageResult = sqs.receiveMessage(new ReceiveMessageRequest(workerQueueUrl)
-				.withWaitTimeSeconds(waitTimeSeconds)
-				.withMaxNumberOfMessages(maxNumberOfMessages)
-				.withVisibilityTimeout(visibilityTimeout)
-				.withAttributeNames("ApproximateReceiveCount"));
-			return receiveMessageResult.getMessages();
-		} catch (OverLimitException e) {
-			log.error("SQS over limit", e);
-			try {
-				Thread.sleep(60000);
-			} catch (InterruptedException e1) {
-				log.error("interrupted", e1);
-				throw new AssertionError(e1); // NOPMD - lost OverLimitException's stacktrace
+			if (inFlightPermits.tryAcquire(SATURATION_WAIT_MILLIS, TimeUnit.MILLISECONDS) == false) {
+				return 0;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+		int permits = 1;
+		int limit = Math.min(maxNumberOfMessages, MAX_NUMBER_OF_MESSAGES_PER_RECEIVE);
+		while (permits < limit && inFlightPermits.tryAcquire()) {
+			permits++;
+		}
+		return permits;
+	}
+	
+	private void startHeartbeatIfNecessary() {
+		synchronized (heartbeat) {
+			if (heartbeatFuture == null) {
+				heartbeatFuture = scheduler.scheduleWithFixedDelay(this::heartbeat,
+						heartbeatIntervalMillis, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
 			}
 		}
-		return Collections.emptyList();
+	}
+	
+	private void heartbeat() {
+		try {
+			heartbeat.tick(visibilityTimeout, changeVisibilityThreshold, maxVisibilityExtensions);
+			metrics.recordGauges(getInFlightMessageCount(), getExecutorQueueDepth());
+		} catch (RuntimeException e) {
+			log.error("Unexpected exception in visibility heartbeat", e);
+		}
+	}
+	
+	private List<Message> reveiveMessages(int numberOfMessages) {
+		log.trace("Start SQS long polling");
+		ReceiveMessageResult receiveMessageResult = sqs.receiveMessage(new ReceiveMessageRequest(workerQueueUrl)
+			.withWaitTimeSeconds(waitTimeSeconds)
+			.withMaxNumberOfMessages(numberOfMessages)
+			.withVisibilityTimeout(visibilityTimeout)
+			.withAttributeNames("ApproximateReceiveCount", MESSAGE_GROUP_ID));
+		return receiveMessageResult.getMessages();
+	}
+	
+	/**
+	 * Wait for the backoff up to {@value #SATURATION_WAIT_MILLIS} milliseconds.
+	 * 
+	 * @return {@code true} if the poller is still backing off
+	 */
+	boolean awaitBackoff() {
+		long remaining = backoff.getRemainingMillis();
+		if (remaining <= 0) {
+			return false;
+		}
+		try {
+			Thread.sleep(Math.min(remaining, SATURATION_WAIT_MILLIS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		}
+		return backoff.getRemainingMillis() > 0;
 	}
 	
 	private void handleMessage(Message message) {
+		logReceived(message);
+		InFlightMessage inFlight = heartbeat.register(message);
+		try {
+			executor.execute(() -> doHandle(inFlight));
+			log.debug("Main task for {} is submitted", message.getMessageId());
+		} catch (RejectedExecutionException e) {
+			log.error("Main task for {} was rejected", message.getMessageId(), e);
+			complete(inFlight, false);
+		}
+	}
+	
+	private void dispatchMessages(List<Message> messages) {
+		Map<String, List<Message>> groups = new LinkedHashMap<>();
+		for (Message message : messages) {
+			String groupId = message.getAttributes().get(MESSAGE_GROUP_ID);
+			if (groupId == null) {
+				handleMessage(message);
+			} else {
+				groups.computeIfAbsent(groupId, k -> new ArrayList<>()).add(message);
+			}
+		}
+		groups.forEach(this::handleGroupMessages);
+	}
+	
+	private void handleGroupMessages(String groupId, List<Message> messages) {
+		List<GroupTask> tasks = new ArrayList<>(messages.size());
+		for (Message message : messages) {
+			logReceived(message);
+			InFlightMessage inFlight = heartbeat.register(message);
+			tasks.add(new GroupTask() {
+				
+				@Override
+				public boolean run() {
+					return doHandle(inFlight);
+				}
+				
+				@Override
+				public void skip() {
+					log.warn("Job for SQS:{} was skipped because preceding job of group {} was failed",
+							message.getMessageId(), groupId);
+					complete(inFlight, false);
+				}
+			});
+		}
+		groupDispatcher.dispatch(groupId, tasks);
+		log.debug("Main tasks for {} messages are dispatched to group {}", messages.size(), groupId);
+	}
+	
+	private void handleMessages(List<Message> messages) {
+		List<InFlightMessage> inFlights = new ArrayList<>(messages.size());
+		for (Message message : messages) {
+			logReceived(message);
+			inFlights.add(heartbeat.register(message));
+		}
+		try {
+			executor.execute(() -> doHandleBatch(inFlights));
+			log.debug("Main task for {} messages is submitted", messages.size());
+		} catch (RejectedExecutionException e) {
+			log.error("Main task for {} messages was rejected", messages.size(), e);
+			inFlights.forEach(inFlight -> complete(inFlight, false));
+		}
+	}
+	
+	private void logReceived(Message message) {
 		log.info("SQS message was recieved: {}", message.getMessageId());
 		log.debug("Receive SQS:{} C:{} RHD:{}",
 				message.getMessageId(),
 				message.getAttributes().get("ApproximateReceiveCount"),
 				computeReceptHandleDigest(message));
-		
-		Future<Message> future = executor.submit(() -> messageHandler.accept(message), message);
-		log.debug("Main task for {} is submitted", message.getMessageId());
-		
-		doFollowup(message, future);
 	}
 	
-	private void doFollowup(Message message, Future<Message> future) {
-		log.debug("Start visibility timeout follow-up task for {}", message.getMessageId());
+	private boolean doHandle(InFlightMessage inFlight) {
+		Message message = inFlight.getMessage();
+		boolean success = false;
+		long start = System.nanoTime();
 		try {
-			retry.execute(context -> {
-				try {
-					future.get(changeVisibilityThreshold, TimeUnit.SECONDS);
-					log.debug("Job for SQS:{} was done", message.getMessageId());
-					sqs.deleteMessage(new DeleteMessageRequest(workerQueueUrl, message.getReceiptHandle()));
-					log.info("SQS:{} was deleted", message.getMessageId());
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					log.warn("Job for SQS:{} was interrupted", message.getMessageId());
-				} catch (ExecutionException e) { // handle e.getCause()
-					log.error("Job for SQS:{} was failed", message.getMessageId(), e.getCause());
-				} catch (TimeoutException e) { // we need more time
-					extendTimeout(message);
-					throw e;
-				}
-				return null;
-			});
+			messageHandler.accept(message);
+			log.debug("Job for SQS:{} was done", message.getMessageId());
+			success = true;
+		} catch (Exception e) { // NOPMD - cc
+			log.error("Job for SQS:{} was failed", message.getMessageId(), e);
+		} finally {
+			metrics.recordHandle(System.nanoTime() - start, 1, success);
+			complete(inFlight, success);
+		}
+		return success;
+	}
+	
+	private void doHandleBatch(List<InFlightMessage> inFlights) {
+		List<Message> messages = inFlights.stream().map(InFlightMessage::getMessage).collect(Collectors.toList());
+		Collection<String> failedMessageIds = null;
+		long start = System.nanoTime();
+		try {
+			failedMessageIds = batchMessageHandler.handle(messages);
+			log.debug("Job for {} SQS messages was done", messages.size());
 		} catch (Exception e) { // NOPMD - cc
-			log.error("Retry attempt exceeded?", e);
+			log.error("Job for {} SQS messages was failed", messages.size(), e);
+		} finally {
+			metrics.recordHandle(System.nanoTime() - start, messages.size(), failedMessageIds != null);
+			for (InFlightMessage inFlight : inFlights) {
+				String messageId = inFlight.getMessage().getMessageId();
+				boolean success = failedMessageIds != null && failedMessageIds.contains(messageId) == false;
+				if (failedMessageIds != null && success == false) {
+					log.warn("Job for SQS:{} was failed", messageId);
+				}
+				complete(inFlight, success);
+			}
 		}
-		log.debug("Visibility timeout follow-up task for {} was finished", message.getMessageId());
 	}
 	
-	private void extendTimeout(Message message) {
-		log.debug("Job for SQS:{} was timeout RHD:{}", message.getMessageId(), computeReceptHandleDigest(message));
-		sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(
-				workerQueueUrl, message.getReceiptHandle(), visibilityTimeout));
-		if (log.isDebugEnabled()) {
-			log.debug("Visibility for SQS:{} was updated VT:{}", message.getMessageId(), visibilityTimeout);
-		} else if (log.isTraceEnabled()) {
-			log.trace("Visibility for SQS:{} was updated VT:{} RHD:{}",
-					message.getMessageId(),
-					visibilityTimeout,
-					computeReceptHandleDigest(message));
+	private void complete(InFlightMessage inFlight, boolean success) {
+		Message message = inFlight.getMessage();
+		try {
+			if (success == false) {
+				return;
+			}
+			if (inFlight.isAbandoned()) {
+				log.warn("SQS:{} is not deleted because its visibility timeout was not extended",
+						message.getMessageId());
+			} else {
+				deleteBuffer.add(message);
+			}
+		} finally {
+			heartbeat.unregister(inFlight);
+			inFlightPermits.release();
+			metrics.recordVisibilityExtensions(inFlight.getExtensionCount());
 		}
 	}
 	
-	private Object computeReceptHandleDigest(Message message) {
-		return new Object() {
-			
-			@Override
-			public String toString() {
-				return DigestUtils.md5DigestAsHex(message.getReceiptHandle().getBytes(StandardCharsets.UTF_8));
+	@Override
+	public void destroy() {
+		synchronized (heartbeat) {
+			if (heartbeatFuture != null) {
+				heartbeatFuture.cancel(false);
 			}
-		};
+		}
+		deleteBuffer.close();
+		scheduler.shutdown();
 	}
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+/**
+ * Instrumentation SPI of {@link SqsMessagePoller}.
+ * 
+ * <p>All methods do nothing by default. Implementations must be thread-safe and should return quickly, because
+ * they are called from receiving, handling and heartbeat threads.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see InProcessSqsPollerMetrics
+ */
+public interface SqsPollerMetrics {
+	
+	/** Metrics which records nothing */
+	SqsPollerMetrics NOOP = new SqsPollerMetrics() {
+	};
+	
+	
+	/**
+	 * Record the completed {@code ReceiveMessage} call.
+	 * 
+	 * @param latencyNanos latency of the call in nanoseconds
+	 * @param requested the number of requested messages
+	 * @param received the number of received messages
+	 * @since 0.38
+	 */
+	default void recordReceive(long latencyNanos, int requested, int received) {
+		// do nothing
+	}
+	
+	/**
+	 * Record the failed {@code ReceiveMessage} call.
+	 * 
+	 * @param latencyNanos latency of the call in nanoseconds
+	 * @since 0.38
+	 */
+	default void recordReceiveFailure(long latencyNanos) {
+		// do nothing
+	}
+	
+	/**
+	 * Record the handler invocation.
+	 * 
+	 * @param latencyNanos latency of the handler in nanoseconds
+	 * @param messages the number of messages passed to the handler
+	 * @param succeeded {@code true} if the handler completed without exception
+	 * @since 0.38
+	 */
+	default void recordHandle(long latencyNanos, int messages, boolean succeeded) {
+		// do nothing
+	}
+	
+	/**
+	 * Record the number of visibility timeout extensions of the message whose processing is finished.
+	 * 
+	 * @param extensions the number of extensions
+	 * @since 0.38
+	 */
+	default void recordVisibilityExtensions(int extensions) {
+		// do nothing
+	}
+	
+	/**
+	 * Record the completed {@code DeleteMessageBatch} call.
+	 * 
+	 * @param latencyNanos latency of the call in nanoseconds
+	 * @param messages the number of messages in the batch
+	 * @since 0.38
+	 */
+	default void recordDelete(long latencyNanos, int messages) {
+		// do nothing
+	}
+	
+	/**
+	 * Record the sampled gauges. Called periodically by the visibility heartbeat.
+	 * 
+	 * @param inFlightMessages the number of in-flight messages
+	 * @param executorQueueDepth the number of tasks queued in the executor, or {@code -1} if unknown
+	 * @since 0.38
+	 */
+	default void recordGauges(int inFlightMessages, int executorQueueDepth) {
+		// do nothing
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.context.SmartLifecycle;
+
+/**
+ * Pool of concurrent long-poll receivers for {@link SqsMessagePoller}.
+ * 
+ * <p>Runs {@link SqsMessagePoller#poll()} on multiple threads instead of a single {@code @Scheduled} loop, so that
+ * more than one {@code ReceiveMessage} call can be outstanding. After each receive the number of receivers is
+ * recomputed by {@link ReceiverConcurrencyPolicy} ({@link AimdReceiverConcurrencyPolicy} by default); extra
+ * receivers retire after their current receive, and missing receivers are started immediately.</p>
+ * 
+ * <p>Do not call {@link SqsMessagePoller#loop()} from a scheduler while this pool is running.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class SqsReceiverPool implements SmartLifecycle {
+	
+	@Getter
+	private final SqsMessagePoller poller;
+	
+	@Getter
+	@Setter
+	private ReceiverConcurrencyPolicy concurrencyPolicy = new AimdReceiverConcurrencyPolicy();
+	
+	@Getter
+	@Setter
+	private int initialConcurrency = 1;
+	
+	@Getter
+	@Setter
+	private ExecutorService receiverExecutor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "sqs-receiver");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final AtomicInteger targetConcurrency = new AtomicInteger();
+	
+	private final AtomicInteger activeReceivers = new AtomicInteger();
+	
+	private volatile boolean running;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param poller {@link SqsMessagePoller} to run
+	 * @since 0.38
+	 */
+	public SqsReceiverPool(SqsMessagePoller poller) {
+		this.poller = poller;
+	}
+	
+	/**
+	 * Returns the current target number of concurrent receivers.
+	 * 
+	 * @return the number of receivers
+	 * @since 0.38
+	 */
+	public int getConcurrency() {
+		return targetConcurrency.get();
+	}
+	
+	/**
+	 * Returns the number of receivers which are running now.
+	 * 
+	 * @return the number of running receivers
+	 * @since 0.38
+	 */
+	public int getActiveReceivers() {
+		return activeReceivers.get();
+	}
+	
+	/**
+	 * Run receivers and handlers on virtual threads if the running JVM supports them (JDK 21 or later).
+	 * 
+	 * <p>Call this method before {@link #start()}. The number of receivers is still limited by the
+	 * {@link #getConcurrencyPolicy() concurrency policy}.</p>
+	 * 
+	 * @return {@code true} if virtual threads are enabled
+	 * @see SqsMessagePoller#enableVirtualThreads()
+	 * @since 0.38
+	 */
+	public boolean enableVirtualThreads() {
+		Optional<ExecutorService> virtualExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor("sqs-receiver-");
+		if (virtualExecutor.isPresent() == false) {
+			log.warn("Virtual threads are not supported by this JVM, SQS receivers run on platform threads");
+			return false;
+		}
+		receiverExecutor = virtualExecutor.get();
+		return poller.enableVirtualThreads();
+	}
+	
+	@Override
+	public void start() {
+		log.info("Start SQS receiver pool for {}", poller.getWorkerQueueUrl());
+		targetConcurrency.set(Math.max(1, initialConcurrency));
+		running = true;
+		spawnReceivers();
+	}
+	
+	@Override
+	public void stop() {
+		log.info("Stop SQS receiver pool for {}", poller.getWorkerQueueUrl());
+		running = false;
+	}
+	
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+	
+	private void spawnReceivers() {
+		while (running) {
+			int active = activeReceivers.get();
+			if (active >= targetConcurrency.get()) {
+				return;
+			}
+			if (activeReceivers.compareAndSet(active, active + 1)) {
+				log.debug("Start SQS receiver #{}", active + 1);
+				receiverExecutor.execute(this::receive);
+			}
+		}
+	}
+	
+	private boolean retireIfExcessive() {
+		while (true) {
+			int active = activeReceivers.get();
+			if (active <= targetConcurrency.get()) {
+				return false;
+			}
+			if (activeReceivers.compareAndSet(active, active - 1)) {
+				log.debug("Retire SQS receiver #{}", active);
+				return true;
+			}
+		}
+	}
+	
+	private ReceiveOutcome poll() {
+		try {
+			return poller.poll();
+		} catch (RuntimeException e) { // NOPMD - cc
+			return poller.onPollFailed(e);
+		}
+	}
+	
+	private void awaitBackoff() {
+		while (running && Thread.currentThread().isInterrupted() == false && poller.awaitBackoff()) {
+			log.trace("SQS receiver is backing off");
+		}
+	}
+	
+	private void receive() {
+		boolean retired = false;
+		try {
+			while (running && retired == false) {
+				ReceiveOutcome outcome = poll();
+				int concurrency = targetConcurrency.updateAndGet(
+						current -> Math.max(1, concurrencyPolicy.computeConcurrency(current, outcome)));
+				log.trace("Receive outcome {}, concurrency {}", outcome, concurrency);
+				retired = retireIfExcessive();
+				if (retired == false) {
+					spawnReceivers();
+					if (outcome.isBackingOff()) {
+						// a failure may precede the backoff wait in poll(), so wait it out here in bounded slices
+						awaitBackoff();
+					}
+				}
+			}
+		} finally {
+			if (retired == false) {
+				activeReceivers.decrementAndGet();
+			}
+		}
+	}
+}
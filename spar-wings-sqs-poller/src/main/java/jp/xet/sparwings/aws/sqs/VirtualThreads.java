@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reflective factory of virtual-thread-per-task executors, which are available on JDK 21 or later.
+ * 
+ * <p>This library is compiled for Java 8, so virtual threads are created through reflection.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+@UtilityClass
+class VirtualThreads {
+	
+	/**
+	 * Create new executor which starts a new virtual thread for each task.
+	 * 
+	 * @param namePrefix prefix of thread names
+	 * @return the executor, or empty if virtual threads are not supported by the running JVM
+	 */
+	static Optional<ExecutorService> newVirtualThreadPerTaskExecutor(String namePrefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return Optional.of((ExecutorService) method.invoke(null, factory));
+		} catch (ReflectiveOperationException | RuntimeException e) { // NOPMD - cc
+			log.debug("Virtual threads are not available: {}", e.toString());
+			return Optional.empty();
+		}
+	}
+}
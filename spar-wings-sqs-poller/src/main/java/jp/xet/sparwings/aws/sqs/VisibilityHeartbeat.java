@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.retry.support.RetryTemplate;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * In-flight message registry of {@link SqsMessagePoller}.
+ *
+ * <p>Single heartbeat task calls {@link #tick(int, int, int)} periodically, and the visibility timeout of every
+ * registered message which is not extended for {@code changeVisibilityThreshold} seconds is extended with
+ * {@code ChangeMessageVisibilityBatch}, up to 10 messages per request.</p>
+ *
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+@RequiredArgsConstructor
+class VisibilityHeartbeat {
+	
+	/** Maximum number of entries in single {@code ChangeMessageVisibilityBatch} request */
+	static final int MAX_BATCH_SIZE = 10;
+	
+	private final AmazonSQS sqs;
+	
+	private final RetryTemplate retry;
+	
+	private final String queueUrl;
+	
+	private final Map<String, InFlightMessage> inFlightMessages = new ConcurrentHashMap<>();
+	
+	
+	/**
+	 * Register the received message as in-flight.
+	 * 
+	 * @param message received message
+	 * @return in-flight entry
+	 */
+	InFlightMessage register(Message message) {
+		InFlightMessage inFlight = new InFlightMessage(message, System.nanoTime());
+		inFlightMessages.put(message.getReceiptHandle(), inFlight);
+		return inFlight;
+	}
+	
+	/**
+	 * Unregister the in-flight message which processing is finished.
+	 * 
+	 * @param inFlight in-flight entry
+	 */
+	void unregister(InFlightMessage inFlight) {
+		inFlightMessages.remove(inFlight.getMessage().getReceiptHandle(), inFlight);
+	}
+	
+	/**
+	 * Returns the number of in-flight messages.
+	 * 
+	 * @return the number of in-flight messages
+	 */
+	int size() {
+		return inFlightMessages.size();
+	}
+	
+	/**
+	 * Extend visibility timeout of the messages close to expiry.
+	 * 
+	 * @param visibilityTimeout new visibility timeout in seconds
+	 * @param changeVisibilityThreshold interval of extension in seconds
+	 * @param maxExtensions maximum number of extensions per message
+	 */
+	void tick(int visibilityTimeout, int changeVisibilityThreshold, int maxExtensions) {
+		long now = System.nanoTime();
+		long thresholdNanos = TimeUnit.SECONDS.toNanos(changeVisibilityThreshold);
+		List<InFlightMessage> due = new ArrayList<>();
+		for (InFlightMessage inFlight : inFlightMessages.values()) {
+			if (now - inFlight.lastExtendedNanos < thresholdNanos) {
+				continue;
+			}
+			if (inFlight.extensionCount >= maxExtensions) {
+				abandon(inFlight);
+			} else {
+				due.add(inFlight);
+			}
+		}
+		for (int i = 0; i < due.size(); i += MAX_BATCH_SIZE) {
+			extend(due.subList(i, Math.min(i + MAX_BATCH_SIZE, due.size())), visibilityTimeout, now);
+		}
+	}
+	
+	private void abandon(InFlightMessage inFlight) {
+		log.error("Visibility timeout extension for SQS:{} exceeded", inFlight.getMessage().getMessageId());
+		inFlight.abandoned = true;
+		inFlightMessages.remove(inFlight.getMessage().getReceiptHandle(), inFlight);
+	}
+	
+	private void extend(List<InFlightMessage> batch, int visibilityTimeout, long now) {
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			Message message = batch.get(i).getMessage();
+			log.debug("Job for SQS:{} was timeout RHD:{}",
+					message.getMessageId(), SqsMessagePoller.computeReceptHandleDigest(message));
+			entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i), message.getReceiptHandle())
+				.withVisibilityTimeout(visibilityTimeout));
+		}
+		ChangeMessageVisibilityBatchResult result;
+		try {
+			result = retry.execute(context -> sqs.changeMessageVisibilityBatch(
+					new ChangeMessageVisibilityBatchRequest(queueUrl, entries)));
+		} catch (Exception e) { // NOPMD - cc
+			log.error("Failed to change visibility of {} SQS messages", batch.size(), e);
+			return;
+		}
+		result.getSuccessful().forEach(entry -> {
+			InFlightMessage inFlight = batch.get(Integer.parseInt(entry.getId()));
+			inFlight.lastExtendedNanos = now;
+			inFlight.extensionCount++;
+			log.debug("Visibility for SQS:{} was updated VT:{}",
+					inFlight.getMessage().getMessageId(), visibilityTimeout);
+		});
+		for (BatchResultErrorEntry error : result.getFailed()) {
+			Message message = batch.get(Integer.parseInt(error.getId())).getMessage();
+			log.warn("Visibility for SQS:{} could not be updated: {} {}",
+					message.getMessageId(), error.getCode(), error.getMessage());
+		}
+	}
+	
+	
+	/**
+	 * In-flight entry of the message.
+	 */
+	static class InFlightMessage {
+		
+		@Getter
+		private final Message message;
+		
+		private volatile long lastExtendedNanos;
+		
+		@Getter
+		private volatile int extensionCount;
+		
+		@Getter
+		private volatile boolean abandoned;
+		
+		
+		InFlightMessage(Message message, long receivedNanos) {
+			this.message = message;
+			lastExtendedNanos = receivedNanos;
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs.local;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchEntryIdsNotDistinctException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityResult;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.EmptyBatchRequestException;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.PurgeQueueResult;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException;
+
+/**
+ * In-process {@link com.amazonaws.services.sqs.AmazonSQS} engine.
+ * 
+ * <p>Supports standard queue operations which {@link jp.xet.sparwings.aws.sqs.SqsMessagePoller} depends on:
+ * send, long-poll receive with visibility timeout and receive count, delete and visibility change, including their
+ * batch variants. If the instance is created with a directory, each queue is backed by a memory-mapped append-only
+ * segment log in the sub-directory of the queue name, and undeleted messages survive restarts. Visibility state
+ * and receive counts are not persisted, so recovered messages are visible immediately.</p>
+ * 
+ * <p>FIFO queues, message attributes, delay and dead-letter queues are not supported.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class LocalAmazonSQS extends AbstractAmazonSQS {
+	
+	private static final String URL_PREFIX = "local://sqs/";
+	
+	private static final int MAX_BATCH_SIZE = 10;
+	
+	private static final int DEFAULT_VISIBILITY_TIMEOUT = 30;
+	
+	private final Path directory;
+	
+	private final Map<String, LocalQueue> queues = new ConcurrentHashMap<>();
+	
+	/** size of segment files in bytes */
+	@Getter
+	@Setter
+	private int segmentSize = 64 * 1024 * 1024;
+	
+	/** {@code true} to force every log record to the storage device */
+	@Getter
+	@Setter
+	private boolean forceOnWrite;
+	
+	
+	/**
+	 * Create in-memory instance.
+	 * 
+	 * @since 0.38
+	 */
+	public LocalAmazonSQS() {
+		this(null);
+	}
+	
+	/**
+	 * Create durable instance.
+	 * 
+	 * @param directory directory to store segment logs, or {@code null} for in-memory instance
+	 * @since 0.38
+	 */
+	public LocalAmazonSQS(Path directory) {
+		this.directory = directory;
+	}
+	
+	@Override
+	public CreateQueueResult createQueue(CreateQueueRequest request) {
+		String name = request.getQueueName();
+		LocalQueue queue = queues.computeIfAbsent(URL_PREFIX + name, url -> {
+			String visibilityTimeout = request.getAttributes().get("VisibilityTimeout");
+			return new LocalQueue(name, url,
+					visibilityTimeout == null ? DEFAULT_VISIBILITY_TIMEOUT : Integer.parseInt(visibilityTimeout),
+					openLog(name));
+		});
+		return new CreateQueueResult().withQueueUrl(queue.getUrl());
+	}
+	
+	@Override
+	public GetQueueUrlResult getQueueUrl(GetQueueUrlRequest request) {
+		return new GetQueueUrlResult().withQueueUrl(getQueue(URL_PREFIX + request.getQueueName()).getUrl());
+	}
+	
+	@Override
+	public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+		LocalQueue queue = getQueue(request.getQueueUrl());
+		Map<String, String> attributes = new HashMap<>();
+		attributes.put("ApproximateNumberOfMessages", String.valueOf(queue.getVisibleCount()));
+		attributes.put("ApproximateNumberOfMessagesNotVisible", String.valueOf(queue.getInFlightCount()));
+		attributes.put("VisibilityTimeout", String.valueOf(queue.getVisibilityTimeout()));
+		List<String> names = request.getAttributeNames();
+		if (names.contains("All") == false) {
+			attributes.keySet().retainAll(names);
+		}
+		return new GetQueueAttributesResult().withAttributes(attributes);
+	}
+	
+	@Override
+	public PurgeQueueResult purgeQueue(PurgeQueueRequest request) {
+		getQueue(request.getQueueUrl()).purge();
+		return new PurgeQueueResult();
+	}
+	
+	@Override
+	public SendMessageResult sendMessage(SendMessageRequest request) {
+		Message sent = getQueue(request.getQueueUrl()).send(request.getMessageBody());
+		return new SendMessageResult().withMessageId(sent.getMessageId()).withMD5OfMessageBody(sent.getMD5OfBody());
+	}
+	
+	@Override
+	public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+		LocalQueue queue = getQueue(request.getQueueUrl());
+		List<SendMessageBatchRequestEntry> entries = request.getEntries();
+		validateBatch(entries.size(), entries.stream().map(SendMessageBatchRequestEntry::getId));
+		SendMessageBatchResult result = new SendMessageBatchResult();
+		for (SendMessageBatchRequestEntry entry : entries) {
+			Message sent = queue.send(entry.getMessageBody());
+			result.withSuccessful(new SendMessageBatchResultEntry()
+				.withId(entry.getId())
+				.withMessageId(sent.getMessageId())
+				.withMD5OfMessageBody(sent.getMD5OfBody()));
+		}
+		return result;
+	}
+	
+	@Override
+	public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+		LocalQueue queue = getQueue(request.getQueueUrl());
+		int maxNumberOfMessages = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+		if (maxNumberOfMessages < 1 || maxNumberOfMessages > MAX_BATCH_SIZE) {
+			throw invalidParameter("MaxNumberOfMessages must be between 1 and 10: " + maxNumberOfMessages);
+		}
+		int visibilityTimeout = request.getVisibilityTimeout() == null
+				? queue.getVisibilityTimeout() : request.getVisibilityTimeout();
+		int waitTimeSeconds = request.getWaitTimeSeconds() == null ? 0 : request.getWaitTimeSeconds();
+		try {
+			List<Message> messages = queue.receive(maxNumberOfMessages, visibilityTimeout,
+					TimeUnit.SECONDS.toMillis(waitTimeSeconds), new HashSet<>(request.getAttributeNames()));
+			return new ReceiveMessageResult().withMessages(messages);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while receiving messages", e);
+		}
+	}
+	
+	@Override
+	public DeleteMessageResult deleteMessage(DeleteMessageRequest request) {
+		getQueue(request.getQueueUrl()).delete(request.getReceiptHandle());
+		return new DeleteMessageResult();
+	}
+	
+	@Override
+	public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+		LocalQueue queue = getQueue(request.getQueueUrl());
+		List<DeleteMessageBatchRequestEntry> entries = request.getEntries();
+		validateBatch(entries.size(), entries.stream().map(DeleteMessageBatchRequestEntry::getId));
+		DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+		for (DeleteMessageBatchRequestEntry entry : entries) {
+			try {
+				queue.delete(entry.getReceiptHandle());
+				result.withSuccessful(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+			} catch (AmazonSQSException e) {
+				result.withFailed(toErrorEntry(entry.getId(), e));
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public ChangeMessageVisibilityResult changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+		getQueue(request.getQueueUrl()).changeVisibility(request.getReceiptHandle(), request.getVisibilityTimeout());
+		return new ChangeMessageVisibilityResult();
+	}
+	
+	@Override
+	public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+			ChangeMessageVisibilityBatchRequest request) {
+		LocalQueue queue = getQueue(request.getQueueUrl());
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = request.getEntries();
+		validateBatch(entries.size(), entries.stream().map(ChangeMessageVisibilityBatchRequestEntry::getId));
+		ChangeMessageVisibilityBatchResult result = new ChangeMessageVisibilityBatchResult();
+		for (ChangeMessageVisibilityBatchRequestEntry entry : entries) {
+			try {
+				queue.changeVisibility(entry.getReceiptHandle(), entry.getVisibilityTimeout());
+				result.withSuccessful(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+			} catch (AmazonSQSException e) {
+				result.withFailed(toErrorEntry(entry.getId(), e));
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public void shutdown() {
+		queues.values().forEach(LocalQueue::close);
+		queues.clear();
+	}
+	
+	private LocalQueue getQueue(String queueUrl) {
+		LocalQueue queue = queueUrl == null ? null : queues.get(queueUrl);
+		if (queue == null) {
+			QueueDoesNotExistException e = new QueueDoesNotExistException("The specified queue does not exist: "
+					+ queueUrl);
+			e.setErrorCode("AWS.SimpleQueueService.NonExistentQueue");
+			throw e;
+		}
+		return queue;
+	}
+	
+	private SegmentLog openLog(String name) {
+		if (directory == null) {
+			return null;
+		}
+		try {
+			return SegmentLog.open(directory.resolve(name), segmentSize, forceOnWrite);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private static void validateBatch(int size, Stream<String> ids) {
+		if (size == 0) {
+			throw new EmptyBatchRequestException("There should be at least one entry in the request");
+		}
+		if (size > MAX_BATCH_SIZE) {
+			throw new TooManyEntriesInBatchRequestException("Maximum number of entries per request are 10");
+		}
+		Set<String> distinct = new HashSet<>();
+		if (ids.allMatch(distinct::add) == false) {
+			throw new BatchEntryIdsNotDistinctException("Two or more batch entries have the same Id");
+		}
+	}
+	
+	private static BatchResultErrorEntry toErrorEntry(String id, AmazonSQSException e) {
+		return new BatchResultErrorEntry()
+			.withId(id)
+			.withSenderFault(true)
+			.withCode(e.getClass().getSimpleName().replaceAll("Exception$", ""))
+			.withMessage(e.getErrorMessage());
+	}
+	
+	private static AmazonSQSException invalidParameter(String message) {
+		AmazonSQSException e = new AmazonSQSException(message);
+		e.setErrorCode("InvalidParameterValue");
+		return e;
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs.local;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import org.springframework.util.DigestUtils;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+
+import jp.xet.sparwings.aws.sqs.local.SegmentLog.LoggedMessage;
+
+/**
+ * Single queue of {@link LocalAmazonSQS}.
+ * 
+ * <p>Visible messages are kept in a FIFO deque, and in-flight messages are tracked by a priority queue of
+ * visibility deadlines. Stale deadline entries left by visibility changes or deletes are skipped lazily.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+class LocalQueue {
+	
+	private static final String RECEIPT_HANDLE_SEPARATOR = "#";
+	
+	@Getter
+	private final String name;
+	
+	@Getter
+	private final String url;
+	
+	@Getter
+	private final int visibilityTimeout;
+	
+	private final SegmentLog segmentLog;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private final Condition available = lock.newCondition();
+	
+	private final Map<String, LocalMessage> messages = new HashMap<>();
+	
+	private final Deque<LocalMessage> visible = new ArrayDeque<>();
+	
+	private final PriorityQueue<Deadline> deadlines = new PriorityQueue<>();
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param name queue name
+	 * @param url queue URL
+	 * @param visibilityTimeout default visibility timeout in seconds
+	 * @param segmentLog durable log, or {@code null} for in-memory queue
+	 */
+	LocalQueue(String name, String url, int visibilityTimeout, SegmentLog segmentLog) {
+		this.name = name;
+		this.url = url;
+		this.visibilityTimeout = visibilityTimeout;
+		this.segmentLog = segmentLog;
+		if (segmentLog != null) {
+			for (LoggedMessage logged : segmentLog.takeRecoveredMessages()) {
+				LocalMessage message = new LocalMessage(logged.getMessageId(), logged.getBody(),
+						logged.getSentTimestamp());
+				messages.put(message.id, message);
+				visible.add(message);
+			}
+		}
+	}
+	
+	/**
+	 * Enqueue the message.
+	 * 
+	 * @param body message body
+	 * @return the sent message which has message ID and MD5 of body
+	 * @throws UncheckedIOException if failed to write the log
+	 */
+	Message send(String body) {
+		LocalMessage message = new LocalMessage(UUID.randomUUID().toString(), body, System.currentTimeMillis());
+		lock.lock();
+		try {
+			if (segmentLog != null) {
+				segmentLog.appendSend(message.id, body, message.sentTimestamp);
+			}
+			messages.put(message.id, message);
+			visible.add(message);
+			available.signal();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+		return new Message().withMessageId(message.id).withMD5OfBody(message.md5OfBody);
+	}
+	
+	/**
+	 * Receive visible messages, and make them invisible.
+	 * 
+	 * @param maxNumberOfMessages maximum number of messages to receive
+	 * @param visibilityTimeout visibility timeout in seconds
+	 * @param waitTimeMillis maximum time to wait for messages in milliseconds
+	 * @param attributeNames attribute names to return
+	 * @return the received messages
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	List<Message> receive(int maxNumberOfMessages, int visibilityTimeout, long waitTimeMillis,
+			Collection<String> attributeNames) throws InterruptedException {
+		long now = System.nanoTime();
+		long deadline = now + TimeUnit.MILLISECONDS.toNanos(waitTimeMillis);
+		List<Message> result = new ArrayList<>(maxNumberOfMessages);
+		lock.lockInterruptibly();
+		try {
+			while (true) {
+				now = System.nanoTime();
+				expire(now);
+				List<LocalMessage> delivered = new ArrayList<>(maxNumberOfMessages);
+				while (delivered.size() < maxNumberOfMessages && visible.isEmpty() == false) {
+					LocalMessage message = visible.poll();
+					if (message.deleted == false) {
+						result.add(deliver(message, now, visibilityTimeout, attributeNames));
+						delivered.add(message);
+					}
+				}
+				if (visibilityTimeout <= 0) {
+					delivered.forEach(this::makeVisible);
+				}
+				long remaining = deadline - now;
+				if (result.isEmpty() == false || remaining <= 0) {
+					return result;
+				}
+				Deadline next = deadlines.peek();
+				available.awaitNanos(next == null ? remaining : Math.min(remaining, next.at - now));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Delete the message.
+	 * 
+	 * @param receiptHandle receipt handle of the message
+	 * @throws ReceiptHandleIsInvalidException if the receipt handle is malformed
+	 * @throws UncheckedIOException if failed to write the log
+	 */
+	void delete(String receiptHandle) {
+		String messageId = parseMessageId(receiptHandle);
+		lock.lock();
+		try {
+			LocalMessage message = messages.remove(messageId);
+			if (message == null) {
+				return;
+			}
+			message.deleted = true;
+			if (segmentLog != null) {
+				segmentLog.appendDelete(messageId);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Change visibility timeout of the in-flight message.
+	 * 
+	 * @param receiptHandle receipt handle of the message
+	 * @param visibilityTimeout new visibility timeout in seconds from now
+	 * @throws ReceiptHandleIsInvalidException if the receipt handle is malformed or outdated
+	 * @throws MessageNotInflightException if the message is not in flight
+	 */
+	void changeVisibility(String receiptHandle, int visibilityTimeout) {
+		String messageId = parseMessageId(receiptHandle);
+		lock.lock();
+		try {
+			long now = System.nanoTime();
+			expire(now);
+			LocalMessage message = messages.get(messageId);
+			if (message == null || receiptHandle.equals(message.receiptHandle) == false) {
+				throw new ReceiptHandleIsInvalidException("The receipt handle has expired: " + receiptHandle);
+			}
+			if (message.inFlight == false) {
+				throw new MessageNotInflightException("The message is not in flight: " + messageId);
+			}
+			if (visibilityTimeout <= 0) {
+				makeVisible(message);
+			} else {
+				message.visibleAt = now + TimeUnit.SECONDS.toNanos(visibilityTimeout);
+				deadlines.add(new Deadline(message, message.visibleAt));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Delete all messages.
+	 * 
+	 * @throws UncheckedIOException if failed to write the log
+	 */
+	void purge() {
+		lock.lock();
+		try {
+			for (String messageId : new ArrayList<>(messages.keySet())) {
+				messages.remove(messageId).deleted = true;
+				if (segmentLog != null) {
+					segmentLog.appendDelete(messageId);
+				}
+			}
+			visible.clear();
+			deadlines.clear();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of visible messages.
+	 * 
+	 * @return the number of visible messages
+	 */
+	int getVisibleCount() {
+		lock.lock();
+		try {
+			expire(System.nanoTime());
+			return (int) visible.stream().filter(m -> m.deleted == false).count();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of in-flight messages.
+	 * 
+	 * @return the number of in-flight messages
+	 */
+	int getInFlightCount() {
+		lock.lock();
+		try {
+			expire(System.nanoTime());
+			return (int) messages.values().stream().filter(m -> m.inFlight).count();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Close the log of this queue.
+	 */
+	void close() {
+		if (segmentLog != null) {
+			segmentLog.close();
+		}
+	}
+	
+	private Message deliver(LocalMessage message, long now, int visibilityTimeout,
+			Collection<String> attributeNames) {
+		message.receiveCount++;
+		if (message.firstReceiveTimestamp == 0) {
+			message.firstReceiveTimestamp = System.currentTimeMillis();
+		}
+		message.receiptHandle = message.id + RECEIPT_HANDLE_SEPARATOR + UUID.randomUUID();
+		message.inFlight = true;
+		message.visibleAt = now + TimeUnit.SECONDS.toNanos(visibilityTimeout);
+		if (visibilityTimeout > 0) {
+			deadlines.add(new Deadline(message, message.visibleAt));
+		}
+		Message result = new Message()
+			.withMessageId(message.id)
+			.withBody(message.body)
+			.withMD5OfBody(message.md5OfBody)
+			.withReceiptHandle(message.receiptHandle);
+		putAttribute(result, attributeNames, "ApproximateReceiveCount", message.receiveCount);
+		putAttribute(result, attributeNames, "SentTimestamp", message.sentTimestamp);
+		putAttribute(result, attributeNames, "ApproximateFirstReceiveTimestamp", message.firstReceiveTimestamp);
+		return result;
+	}
+	
+	private void expire(long now) {
+		while (deadlines.isEmpty() == false && deadlines.peek().at - now <= 0) {
+			Deadline expired = deadlines.poll();
+			LocalMessage message = expired.message;
+			if (message.deleted == false && message.inFlight && message.visibleAt == expired.at) {
+				makeVisible(message);
+			}
+		}
+	}
+	
+	private void makeVisible(LocalMessage message) {
+		message.inFlight = false;
+		visible.add(message);
+		available.signal();
+	}
+	
+	private static void putAttribute(Message message, Collection<String> attributeNames, String name, long value) {
+		if (attributeNames.contains("All") || attributeNames.contains(name)) {
+			message.addAttributesEntry(name, String.valueOf(value));
+		}
+	}
+	
+	private static String parseMessageId(String receiptHandle) {
+		int index = receiptHandle == null ? -1 : receiptHandle.indexOf(RECEIPT_HANDLE_SEPARATOR);
+		if (index <= 0) {
+			throw new ReceiptHandleIsInvalidException("The receipt handle is not valid: " + receiptHandle);
+		}
+		return receiptHandle.substring(0, index);
+	}
+	
+	
+	private static class LocalMessage {
+		
+		private final String id;
+		
+		private final String body;
+		
+		private final String md5OfBody;
+		
+		private final long sentTimestamp;
+		
+		private long firstReceiveTimestamp;
+		
+		private int receiveCount;
+		
+		private String receiptHandle;
+		
+		private boolean inFlight;
+		
+		private boolean deleted;
+		
+		private long visibleAt;
+		
+		
+		LocalMessage(String id, String body, long sentTimestamp) {
+			this.id = id;
+			this.body = body;
+			this.md5OfBody = DigestUtils.md5DigestAsHex(body.getBytes(StandardCharsets.UTF_8));
+			this.sentTimestamp = sentTimestamp;
+		}
+	}
+	
+	@RequiredArgsConstructor
+	private static class Deadline implements Comparable<Deadline> {
+		
+		private final LocalMessage message;
+		
+		private final long at;
+		
+		
+		@Override
+		public int compareTo(Deadline o) {
+			return Long.signum(at - o.at);
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs.local;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Memory-mapped append-only log of {@link LocalQueue}.
+ * 
+ * <p>The log consists of fixed size segment files named by sequence number. Each record is
+ * {@code [int length][int crc32][byte type][payload]}, and a zero length marks the end of the segment. On open,
+ * all segments are replayed in order, and replay of a segment stops at the first record whose checksum does not
+ * match, which is a torn write of the previous process.</p>
+ * 
+ * <p>The log tracks which segment holds each live message, and removes the oldest segments as soon as all of
+ * their messages are deleted. Segments are removed only from the head, so that {@code DELETE} records never
+ * outlive the {@code SEND} records which they refer to.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+class SegmentLog implements Closeable {
+	
+	private static final byte SEND = 1;
+	
+	private static final byte DELETE = 2;
+	
+	private static final int HEADER_SIZE = 8;
+	
+	private static final String SUFFIX = ".seg";
+	
+	
+	/**
+	 * Open the log in the directory and replay it.
+	 * 
+	 * @param directory directory of segment files
+	 * @param segmentSize size of new segment files in bytes
+	 * @param force {@code true} to force every record to the storage device
+	 * @return the opened log
+	 * @throws IOException if an I/O error occurs
+	 */
+	static SegmentLog open(Path directory, int segmentSize, boolean force) throws IOException {
+		Files.createDirectories(directory);
+		SegmentLog segmentLog = new SegmentLog(directory, segmentSize, force);
+		segmentLog.replay();
+		return segmentLog;
+	}
+	
+	
+	private final Path directory;
+	
+	private final int segmentSize;
+	
+	private final boolean force;
+	
+	private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+	
+	/** segment sequence of live messages, keyed by message ID */
+	private final Map<String, Long> liveMessages = new HashMap<>();
+	
+	private List<LoggedMessage> recovered = new ArrayList<>();
+	
+	private Segment active;
+	
+	
+	private SegmentLog(Path directory, int segmentSize, boolean force) {
+		if (segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("segmentSize is too small: " + segmentSize);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.force = force;
+	}
+	
+	/**
+	 * Returns the messages which are recovered by replay, in send order, and forget them.
+	 * 
+	 * @return the recovered messages
+	 */
+	synchronized List<LoggedMessage> takeRecoveredMessages() {
+		List<LoggedMessage> result = recovered;
+		recovered = new ArrayList<>();
+		return result;
+	}
+	
+	/**
+	 * Returns the number of segment files.
+	 * 
+	 * @return the number of segments
+	 */
+	synchronized int getSegmentCount() {
+		return segments.size();
+	}
+	
+	/**
+	 * Append {@code SEND} record.
+	 * 
+	 * @param messageId message ID
+	 * @param body message body
+	 * @param sentTimestamp sent timestamp in epoch milliseconds
+	 * @throws IOException if an I/O error occurs
+	 */
+	synchronized void appendSend(String messageId, String body, long sentTimestamp) throws IOException {
+		byte[] id = messageId.getBytes(StandardCharsets.UTF_8);
+		byte[] content = body.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 4 + id.length + 4 + content.length);
+		payload.put(SEND).putLong(sentTimestamp).putInt(id.length).put(id).putInt(content.length).put(content);
+		Segment segment = append(payload.array());
+		segment.live++;
+		liveMessages.put(messageId, segment.sequence);
+	}
+	
+	/**
+	 * Append {@code DELETE} record, and remove the segments whose messages are all deleted.
+	 * 
+	 * @param messageId message ID
+	 * @throws IOException if an I/O error occurs
+	 */
+	synchronized void appendDelete(String messageId) throws IOException {
+		Long sequence = liveMessages.remove(messageId);
+		if (sequence == null) {
+			return;
+		}
+		byte[] id = messageId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(1 + 4 + id.length);
+		payload.put(DELETE).putInt(id.length).put(id);
+		append(payload.array());
+		Segment segment = segments.get(sequence);
+		if (segment != null) {
+			segment.live--;
+		}
+		compact();
+	}
+	
+	@Override
+	public synchronized void close() {
+		for (Segment segment : segments.values()) {
+			segment.buffer.force();
+		}
+		segments.clear();
+		active = null;
+	}
+	
+	private Segment append(byte[] payload) throws IOException {
+		int recordSize = HEADER_SIZE + payload.length;
+		if (recordSize + HEADER_SIZE > segmentSize) {
+			throw new IOException("Record is too large for segment: " + recordSize);
+		}
+		if (active == null || active.buffer.remaining() < recordSize + HEADER_SIZE) {
+			long sequence = active == null ? 0 : active.sequence + 1;
+			active = map(sequence, segmentSize);
+			segments.put(sequence, active);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		int position = active.buffer.position();
+		active.buffer.position(position + 4);
+		active.buffer.putInt((int) crc.getValue()).put(payload);
+		// write length last, so that a torn record is never read as complete
+		active.buffer.putInt(position, payload.length);
+		if (force) {
+			active.buffer.force();
+		}
+		return active;
+	}
+	
+	private void compact() throws IOException {
+		while (segments.isEmpty() == false) {
+			Segment head = segments.firstEntry().getValue();
+			if (head == active || head.live > 0) {
+				return;
+			}
+			segments.remove(head.sequence);
+			Files.deleteIfExists(head.path);
+			log.debug("Segment {} was removed", head.path);
+		}
+	}
+	
+	private void replay() throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			stream.forEach(paths::add);
+		}
+		paths.sort(null);
+		Map<String, LoggedMessage> sent = new LinkedHashMap<>();
+		Map<Long, Integer> liveCounts = new HashMap<>();
+		for (Path path : paths) {
+			String fileName = path.getFileName().toString();
+			long sequence = Long.parseLong(fileName.substring(0, fileName.length() - SUFFIX.length()));
+			Segment segment = map(sequence, (int) Math.max(Files.size(path), HEADER_SIZE));
+			segments.put(sequence, segment);
+			replaySegment(segment, sent);
+			active = segment;
+		}
+		for (LoggedMessage message : sent.values()) {
+			liveCounts.merge(message.getSegment(), 1, Integer::sum);
+			liveMessages.put(message.getMessageId(), message.getSegment());
+		}
+		segments.values().forEach(segment -> segment.live = liveCounts.getOrDefault(segment.sequence, 0));
+		recovered = new ArrayList<>(sent.values());
+		compact();
+		log.info("{} live messages were recovered from {} segments in {}", sent.size(), segments.size(), directory);
+	}
+	
+	private void replaySegment(Segment segment, Map<String, LoggedMessage> sent) {
+		ByteBuffer buffer = segment.buffer;
+		while (buffer.remaining() >= HEADER_SIZE) {
+			int position = buffer.position();
+			int length = buffer.getInt();
+			if (length == 0) {
+				buffer.position(position);
+				return;
+			}
+			int checksum = buffer.getInt();
+			if (length < 0 || length > buffer.remaining()) {
+				truncate(segment, position);
+				return;
+			}
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum) {
+				truncate(segment, position);
+				return;
+			}
+			apply(ByteBuffer.wrap(payload), segment.sequence, sent);
+		}
+	}
+	
+	private void apply(ByteBuffer payload, long sequence, Map<String, LoggedMessage> sent) {
+		byte type = payload.get();
+		if (type == SEND) {
+			long sentTimestamp = payload.getLong();
+			String messageId = readString(payload);
+			String body = readString(payload);
+			sent.put(messageId, new LoggedMessage(messageId, body, sentTimestamp, sequence));
+		} else if (type == DELETE) {
+			sent.remove(readString(payload));
+		} else {
+			log.warn("Unknown record type {} in segment {}", type, sequence);
+		}
+	}
+	
+	private void truncate(Segment segment, int position) {
+		log.warn("Torn record was found in {} at {}, discard the rest of the segment", segment.path, position);
+		ByteBuffer buffer = segment.buffer;
+		buffer.position(position);
+		while (buffer.hasRemaining()) {
+			buffer.put((byte) 0);
+		}
+		buffer.position(position);
+	}
+	
+	private Segment map(long sequence, int size) throws IOException {
+		Path path = directory.resolve(String.format("%020d%s", sequence, SUFFIX));
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return new Segment(sequence, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+		}
+	}
+	
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	
+	/**
+	 * Message recorded in the log.
+	 */
+	@Getter
+	@RequiredArgsConstructor
+	static class LoggedMessage {
+		
+		private final String messageId;
+		
+		private final String body;
+		
+		private final long sentTimestamp;
+		
+		private final long segment;
+	}
+	
+	@RequiredArgsConstructor
+	private static class Segment {
+		
+		private final long sequence;
+		
+		private final Path path;
+		
+		private final MappedByteBuffer buffer;
+		
+		private int live;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link AimdReceiverConcurrencyPolicy}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class AimdReceiverConcurrencyPolicyTest {
+	
+	AimdReceiverConcurrencyPolicy sut;
+	
+	
+	@Before
+	public void setUp() {
+		sut = new AimdReceiverConcurrencyPolicy();
+		sut.setMinConcurrency(1);
+		sut.setMaxConcurrency(8);
+	}
+	
+	@Test
+	public void testFullReceiveWithSpareCapacity_increase() {
+		assertThat(sut.computeConcurrency(3, new ReceiveOutcome(10, 10, 5)), is(4));
+	}
+	
+	@Test
+	public void testFullReceiveWithoutSpareCapacity_keep() {
+		assertThat(sut.computeConcurrency(3, new ReceiveOutcome(10, 10, 0)), is(3));
+	}
+	
+	@Test
+	public void testFullReceive_upToMax() {
+		assertThat(sut.computeConcurrency(8, new ReceiveOutcome(10, 10, 5)), is(8));
+	}
+	
+	@Test
+	public void testPartialReceive_keep() {
+		assertThat(sut.computeConcurrency(3, new ReceiveOutcome(10, 4, 5)), is(3));
+	}
+	
+	@Test
+	public void testEmptyReceive_decrease() {
+		assertThat(sut.computeConcurrency(8, new ReceiveOutcome(10, 0, 10)), is(4));
+		assertThat(sut.computeConcurrency(3, new ReceiveOutcome(10, 0, 10)), is(1));
+	}
+	
+	@Test
+	public void testEmptyReceive_downToMin() {
+		assertThat(sut.computeConcurrency(1, new ReceiveOutcome(10, 0, 10)), is(1));
+	}
+	
+	@Test
+	public void testSaturated_keep() {
+		assertThat(sut.computeConcurrency(3, new ReceiveOutcome(0, 0, 0)), is(3));
+	}
+	
+	@Test
+	public void testBackingOff_decrease() {
+		assertThat(sut.computeConcurrency(8, ReceiveOutcome.backingOff()), is(4));
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import jp.xet.sparwings.aws.sqs.ReceiveBackoffPolicy.Cause;
+
+/**
+ * Test for {@link DecorrelatedJitterBackoffPolicy}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class DecorrelatedJitterBackoffPolicyTest {
+	
+	DecorrelatedJitterBackoffPolicy sut;
+	
+	
+	@Before
+	public void setUp() {
+		sut = new DecorrelatedJitterBackoffPolicy();
+		sut.setThrottledBaseMillis(1000);
+		sut.setFailedBaseMillis(100);
+		sut.setFailedCapMillis(60000);
+		sut.setIdleThreshold(3);
+		sut.setIdleBaseMillis(500);
+		sut.setIdleCapMillis(2000);
+	}
+	
+	@Test
+	public void testFirstFailure_betweenBaseAndThreeTimesBase() {
+		for (int i = 0; i < 100; i++) {
+			assertThat(sut.computeBackoffMillis(Cause.FAILED, 1, 0), allOf(greaterThanOrEqualTo(100L),
+					lessThanOrEqualTo(300L)));
+			assertThat(sut.computeBackoffMillis(Cause.THROTTLED, 1, 0), allOf(greaterThanOrEqualTo(1000L),
+					lessThanOrEqualTo(3000L)));
+		}
+	}
+	
+	@Test
+	public void testConsecutiveFailure_upToThreeTimesPrevious() {
+		for (int i = 0; i < 100; i++) {
+			assertThat(sut.computeBackoffMillis(Cause.THROTTLED, 2, 5000), allOf(greaterThanOrEqualTo(1000L),
+					lessThanOrEqualTo(15000L)));
+		}
+	}
+	
+	@Test
+	public void testConsecutiveFailure_capped() {
+		for (int i = 0; i < 100; i++) {
+			assertThat(sut.computeBackoffMillis(Cause.THROTTLED, 10, 50000), lessThanOrEqualTo(60000L));
+		}
+	}
+	
+	@Test
+	public void testEmptyReceive_belowThreshold() {
+		assertThat(sut.computeBackoffMillis(Cause.EMPTY, 1, 0), is(0L));
+		assertThat(sut.computeBackoffMillis(Cause.EMPTY, 2, 0), is(0L));
+	}
+	
+	@Test
+	public void testEmptyReceive_aboveThreshold() {
+		for (int i = 0; i < 100; i++) {
+			assertThat(sut.computeBackoffMillis(Cause.EMPTY, 3, 0), allOf(greaterThanOrEqualTo(500L),
+					lessThanOrEqualTo(1500L)));
+			assertThat(sut.computeBackoffMillis(Cause.EMPTY, 10, 2000), allOf(greaterThanOrEqualTo(500L),
+					lessThanOrEqualTo(2000L)));
+		}
+	}
+	
+	@Test
+	public void testEmptyReceive_disabled() {
+		sut.setIdleThreshold(0);
+		assertThat(sut.computeBackoffMillis(Cause.EMPTY, 100, 0), is(0L));
+	}
+	
+	@Test
+	public void testEmptyReceive_disabledByDefault() {
+		// setup
+		DecorrelatedJitterBackoffPolicy policy = new DecorrelatedJitterBackoffPolicy();
+		// exercise
+		long actual = policy.computeBackoffMillis(Cause.EMPTY, 100, 0);
+		// verify
+		assertThat(actual, is(0L));
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link Histogram}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class HistogramTest {
+	
+	Histogram sut;
+	
+	
+	@Before
+	public void setUp() {
+		sut = new Histogram();
+	}
+	
+	@Test
+	public void testEmpty() {
+		assertThat(sut.getCount(), is(0L));
+		assertThat(sut.getMean(), is(0.0));
+		assertThat(sut.getPercentile(99), is(0L));
+	}
+	
+	@Test
+	public void testStatistics() {
+		for (int i = 1; i <= 100; i++) {
+			sut.record(i);
+		}
+		assertThat(sut.getCount(), is(100L));
+		assertThat(sut.getSum(), is(5050L));
+		assertThat(sut.getMax(), is(100L));
+		assertThat(sut.getMean(), is(closeTo(50.5, 0.001)));
+	}
+	
+	@Test
+	public void testPercentile_upperBoundOfBucket() {
+		for (int i = 0; i < 90; i++) {
+			sut.record(3); // bucket [2, 4)
+		}
+		for (int i = 0; i < 10; i++) {
+			sut.record(1000); // bucket [512, 1024)
+		}
+		assertThat(sut.getPercentile(50), is(3L));
+		assertThat(sut.getPercentile(90), is(3L));
+		assertThat(sut.getPercentile(91), is(1000L));
+		assertThat(sut.getPercentile(100), is(1000L));
+	}
+	
+	@Test
+	public void testZeroAndNegative() {
+		sut.record(0);
+		sut.record(-5);
+		assertThat(sut.getCount(), is(2L));
+		assertThat(sut.getPercentile(100), is(0L));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testPercentile_outOfRange() {
+		sut.getPercentile(101);
+	}
+}
@@ -17,17 +17,28 @@ package jp.xet.sparwings.aws.sqs;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.springframework.retry.support.RetryTemplate;
 import org.springframework.util.DigestUtils;
@@ -35,6 +46,7 @@ import org.springframework.util.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -44,13 +56,25 @@ import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.OverLimitException;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 
+import jp.xet.sparwings.aws.sqs.ReceiveBackoffPolicy.Cause;
+
 /**
  * Test for {@link SqsMessagePoller}.
  * 
@@ -75,14 +99,33 @@ public class SqsMessagePollerTest {
 	@Mock
 	Consumer<Message> messageHandler;
 	
+	@Mock
+	SqsBatchMessageHandler batchMessageHandler;
+	
 	SqsMessagePoller sut;
 	
 	
 	@Before
 	public void setUp() throws Exception {
 		sut = new SqsMessagePoller(sqs, retry, Q_URL, messageHandler);
-		sut.setVisibilityTimeout(10);
-		sut.setChangeVisibilityThreshold(1);
+		configure(sut);
+	}
+	
+	private void configure(SqsMessagePoller poller) {
+		poller.setVisibilityTimeout(10);
+		poller.setChangeVisibilityThreshold(1);
+		poller.setHeartbeatIntervalMillis(100);
+	}
+	
+	private void useBatchMessageHandler() throws Exception {
+		sut.destroy();
+		sut = SqsMessagePoller.withBatchHandler(sqs, retry, Q_URL, batchMessageHandler);
+		configure(sut);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		sut.destroy();
 	}
 	
 	private ReceiveMessageResult receiveMessageResultOf(Message... msgs) {
@@ -98,12 +141,69 @@ public class SqsMessagePollerTest {
 			.withMD5OfBody(DigestUtils.md5DigestAsHex(body.getBytes()));
 	}
 	
+	private Message createFifoMessage(int i, String groupId) {
+		Message message = createMessage(i);
+		message.addAttributesEntry("MessageGroupId", groupId);
+		return message;
+	}
+	
 	private DeleteMessageRequest createDeleteMessageRequest(int i) {
 		return new DeleteMessageRequest()
 			.withQueueUrl(Q_URL)
 			.withReceiptHandle("rh-" + i);
 	}
 	
+	private void stubDeleteMessageBatch() {
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenAnswer(invocation -> {
+			DeleteMessageBatchRequest request = invocation.getArgument(0);
+			return new DeleteMessageBatchResult().withSuccessful(request.getEntries().stream()
+				.map(e -> new DeleteMessageBatchResultEntry().withId(e.getId()))
+				.collect(Collectors.toList()));
+		});
+	}
+	
+	private void stubChangeMessageVisibilityBatch() {
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenAnswer(invocation -> {
+			ChangeMessageVisibilityBatchRequest request = invocation.getArgument(0);
+			return new ChangeMessageVisibilityBatchResult().withSuccessful(request.getEntries().stream()
+				.map(e -> new ChangeMessageVisibilityBatchResultEntry().withId(e.getId()))
+				.collect(Collectors.toList()));
+		});
+	}
+	
+	private List<ChangeMessageVisibilityBatchRequestEntry> changedVisibilityEntries() {
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+				ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqs, atLeast(1)).changeMessageVisibilityBatch(captor.capture());
+		return captor.getAllValues().stream()
+			.peek(r -> assertThat(r.getQueueUrl(), is(Q_URL)))
+			.flatMap(r -> r.getEntries().stream())
+			.collect(Collectors.toList());
+	}
+	
+	private List<String> deletedReceiptHandles(int expectedCount) throws InterruptedException {
+		ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		List<String> receiptHandles = Collections.emptyList();
+		for (int i = 0; i < 50 && receiptHandles.size() < expectedCount; i++) {
+			Thread.sleep(100);
+			verify(sqs, atLeast(0)).deleteMessageBatch(captor.capture());
+			receiptHandles = captor.getAllValues().stream()
+				.peek(r -> assertThat(r.getQueueUrl(), is(Q_URL)))
+				.flatMap(r -> r.getEntries().stream())
+				.map(DeleteMessageBatchRequestEntry::getReceiptHandle)
+				.distinct()
+				.collect(Collectors.toList());
+		}
+		return receiptHandles;
+	}
+	
+	private void awaitIdle() throws InterruptedException {
+		for (int i = 0; i < 300 && sut.getInFlightMessageCount() > 0; i++) {
+			Thread.sleep(50);
+		}
+		assertThat(sut.getInFlightMessageCount(), is(0));
+	}
+	
 	private Answer<?> createHeavyJobAnswer(int size, boolean excepiton) {
 		return invocation -> {
 			for (int i = 0; i < size; i++) {
@@ -127,23 +227,24 @@ public class SqsMessagePollerTest {
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler, never()).accept(any(Message.class));
-		verify(sqs, never()).deleteMessage(any(DeleteMessageRequest.class));
-		verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		verify(sqs, after(500).never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		verify(sqs, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
 	}
 	
 	@Test
 	public void test_1Message() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
+		stubDeleteMessageBatch();
 		// exercise
 		sut.loop();
+		awaitIdle();
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs).deleteMessage(eq(expectedDmr));
-		verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		assertThat(deletedReceiptHandles(1), containsInAnyOrder("rh-1"));
+		verify(sqs, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
 	}
 	
 	@Test
@@ -152,45 +253,171 @@ public class SqsMessagePollerTest {
 		Message msg1 = createMessage(1);
 		Message msg2 = createMessage(2);
 		Message msg3 = createMessage(3);
-		DeleteMessageRequest expectedDmr1 = createDeleteMessageRequest(1);
-		DeleteMessageRequest expectedDmr2 = createDeleteMessageRequest(2);
-		DeleteMessageRequest expectedDmr3 = createDeleteMessageRequest(3);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
 			.thenReturn(receiveMessageResultOf(msg1, msg2, msg3));
+		stubDeleteMessageBatch();
 		// exercise
 		sut.loop();
+		awaitIdle();
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
 		verify(messageHandler).accept(eq(msg2));
 		verify(messageHandler).accept(eq(msg3));
-		verify(sqs).deleteMessage(eq(expectedDmr1));
-		verify(sqs).deleteMessage(eq(expectedDmr2));
-		verify(sqs).deleteMessage(eq(expectedDmr3));
-		verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		assertThat(deletedReceiptHandles(3), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		verify(sqs, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+	}
+	
+	@Test
+	public void test_12Message() throws Exception {
+		// setup
+		sut.setMaxInFlightMessages(12);
+		Message[] msgs = new Message[12];
+		for (int i = 0; i < msgs.length; i++) {
+			msgs[i] = createMessage(i + 1);
+		}
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(Arrays.copyOfRange(msgs, 0, 10)))
+			.thenReturn(receiveMessageResultOf(Arrays.copyOfRange(msgs, 10, 12)));
+		stubDeleteMessageBatch();
+		// exercise
+		sut.loop();
+		sut.loop();
+		awaitIdle();
+		// verify
+		verify(messageHandler, times(12)).accept(any(Message.class));
+		List<String> deleted = deletedReceiptHandles(12);
+		assertThat(deleted, containsInAnyOrder("rh-1", "rh-2", "rh-3", "rh-4", "rh-5", "rh-6",
+				"rh-7", "rh-8", "rh-9", "rh-10", "rh-11", "rh-12"));
+		verify(sqs, times(2)).deleteMessageBatch(any(DeleteMessageBatchRequest.class)); // 10 + 2
+		verify(sqs, never()).deleteMessage(any(DeleteMessageRequest.class));
+	}
+	
+	@Test
+	public void test_3MessageWithPartialDeleteFailure() throws Exception {
+		// setup
+		Message msg1 = createMessage(1);
+		Message msg2 = createMessage(2);
+		Message msg3 = createMessage(3);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(msg1, msg2, msg3));
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenAnswer(invocation -> {
+			DeleteMessageBatchRequest request = invocation.getArgument(0);
+			DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+			for (DeleteMessageBatchRequestEntry e : request.getEntries()) {
+				if (e.getReceiptHandle().equals("rh-2")) {
+					result.withFailed(new BatchResultErrorEntry().withId(e.getId()).withSenderFault(false));
+				} else if (e.getReceiptHandle().equals("rh-3")) {
+					result.withFailed(new BatchResultErrorEntry().withId(e.getId()).withSenderFault(true));
+				} else {
+					result.withSuccessful(new DeleteMessageBatchResultEntry().withId(e.getId()));
+				}
+			}
+			return result;
+		});
+		// exercise
+		sut.loop();
+		awaitIdle();
+		// verify
+		assertThat(deletedReceiptHandles(3), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		verify(sqs, timeout(1000)).deleteMessage(eq(createDeleteMessageRequest(2)));
+		verify(sqs, never()).deleteMessage(eq(createDeleteMessageRequest(1)));
+		verify(sqs, never()).deleteMessage(eq(createDeleteMessageRequest(3)));
+	}
+	
+	@Test
+	public void test_destroyFlushesPendingDeletion() throws Exception {
+		// setup
+		sut.setDeleteBatchWindowMillis(60000);
+		Message msg1 = createMessage(1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
+		stubDeleteMessageBatch();
+		sut.loop();
+		awaitIdle();
+		verify(sqs, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		// exercise
+		sut.destroy();
+		// verify
+		assertThat(deletedReceiptHandles(1), containsInAnyOrder("rh-1"));
+	}
+	
+	@Test
+	public void test_messageHandledAfterDestroyIsDeleted() throws Exception {
+		// setup
+		Message msg1 = createMessage(1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
+		stubDeleteMessageBatch();
+		CountDownLatch latch = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			latch.await();
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		sut.loop();
+		sut.destroy();
+		// exercise
+		latch.countDown();
+		awaitIdle();
+		// verify
+		assertThat(deletedReceiptHandles(1), containsInAnyOrder("rh-1"));
+	}
+	
+	@Test
+	public void test_receiveOnlyFreeCapacity() throws Exception {
+		// setup
+		sut.setMaxInFlightMessages(3);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf());
+		// exercise
+		sut.loop();
+		// verify
+		ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+		verify(sqs).receiveMessage(captor.capture());
+		assertThat(captor.getValue().getMaxNumberOfMessages(), is(3));
+		assertThat(sut.getInFlightMessageCount(), is(0));
+	}
+	
+	@Test
+	public void test_skipReceiveWhenSaturated() throws Exception {
+		// setup
+		sut.setMaxInFlightMessages(2);
+		CountDownLatch latch = new CountDownLatch(1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2)));
+		doAnswer(invocation -> {
+			latch.await();
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		stubDeleteMessageBatch();
+		sut.loop();
+		// exercise
+		sut.loop();
+		// verify
+		verify(sqs, times(1)).receiveMessage(any(ReceiveMessageRequest.class));
+		assertThat(sut.getInFlightMessageCount(), is(2));
+		latch.countDown();
+		awaitIdle();
+		assertThat(deletedReceiptHandles(2), containsInAnyOrder("rh-1", "rh-2"));
 	}
 	
 	@Test
 	public void test_1HeavyMessage() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doAnswer(createHeavyJobAnswer(4, false)).when(messageHandler).accept(any(Message.class));
+		stubDeleteMessageBatch();
+		stubChangeMessageVisibilityBatch();
 		// exercise
 		sut.loop();
+		awaitIdle();
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs).deleteMessage(eq(expectedDmr));
+		assertThat(deletedReceiptHandles(1), containsInAnyOrder("rh-1"));
 		
-		ArgumentCaptor<ChangeMessageVisibilityRequest> captor =
-				ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
-		verify(sqs, times(1)).changeMessageVisibility(captor.capture());
-		ChangeMessageVisibilityRequest cmvReq = captor.getValue();
-		assertThat(cmvReq.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq.getReceiptHandle(), is("rh-1"));
-		assertThat(cmvReq.getVisibilityTimeout(), is(10));
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = changedVisibilityEntries();
+		assertThat(entries.size(), is(1));
+		assertThat(entries.get(0).getReceiptHandle(), is("rh-1"));
+		assertThat(entries.get(0).getVisibilityTimeout(), is(10));
 	}
 	
 	@Test
@@ -199,72 +426,51 @@ public class SqsMessagePollerTest {
 		Message msg1 = createMessage(1);
 		Message msg2 = createMessage(2);
 		Message msg3 = createMessage(3);
-		DeleteMessageRequest expectedDmr1 = createDeleteMessageRequest(1);
-		DeleteMessageRequest expectedDmr2 = createDeleteMessageRequest(2);
-		DeleteMessageRequest expectedDmr3 = createDeleteMessageRequest(3);
 		doReturn(receiveMessageResultOf(msg1, msg2, msg3))
 			.when(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		doAnswer(createHeavyJobAnswer(4, false))
 			.when(messageHandler).accept(any(Message.class));
+		stubDeleteMessageBatch();
+		stubChangeMessageVisibilityBatch();
 		// exercise
 		sut.loop();
+		awaitIdle();
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
 		verify(messageHandler).accept(eq(msg2));
 		verify(messageHandler).accept(eq(msg3));
-		verify(sqs).deleteMessage(eq(expectedDmr1));
-		verify(sqs).deleteMessage(eq(expectedDmr2));
-		verify(sqs).deleteMessage(eq(expectedDmr3));
-		ArgumentCaptor<ChangeMessageVisibilityRequest> captor =
-				ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
-		verify(sqs, times(3)).changeMessageVisibility(captor.capture());
-		
-		ChangeMessageVisibilityRequest cmvReq1 = captor.getAllValues().stream()
-			.filter(r -> r.getReceiptHandle().equals("rh-1")).findFirst().get();
-		assertThat(cmvReq1.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq1.getVisibilityTimeout(), is(10));
-		
-		ChangeMessageVisibilityRequest cmvReq2 = captor.getAllValues().stream()
-			.filter(r -> r.getReceiptHandle().equals("rh-2")).findFirst().get();
-		assertThat(cmvReq2.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq2.getReceiptHandle(), is("rh-2"));
-		assertThat(cmvReq2.getVisibilityTimeout(), is(10));
-		
-		ChangeMessageVisibilityRequest cmvReq3 = captor.getAllValues().stream()
-			.filter(r -> r.getReceiptHandle().equals("rh-3")).findFirst().get();
-		assertThat(cmvReq3.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq3.getReceiptHandle(), is("rh-3"));
-		assertThat(cmvReq3.getVisibilityTimeout(), is(10));
+		assertThat(deletedReceiptHandles(3), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = changedVisibilityEntries();
+		assertThat(entries.stream().map(ChangeMessageVisibilityBatchRequestEntry::getReceiptHandle)
+			.collect(Collectors.toList()), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		entries.forEach(e -> assertThat(e.getVisibilityTimeout(), is(10)));
 	}
 	
 	@Test
 	public void test_1VeryHeavyMessage() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doAnswer(createHeavyJobAnswer(7, false)).when(messageHandler).accept(any(Message.class));
+		stubDeleteMessageBatch();
+		stubChangeMessageVisibilityBatch();
 		// exercise
 		sut.loop();
+		awaitIdle();
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs).deleteMessage(eq(expectedDmr));
+		assertThat(deletedReceiptHandles(1), containsInAnyOrder("rh-1"));
 		
-		ArgumentCaptor<ChangeMessageVisibilityRequest> captor =
-				ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
-		verify(sqs, times(2)).changeMessageVisibility(captor.capture());
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = changedVisibilityEntries();
+		assertThat(entries.size(), is(2));
 		
-		ChangeMessageVisibilityRequest cmvReq1 = captor.getAllValues().get(0);
-		assertThat(cmvReq1.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq1.getReceiptHandle(), is("rh-1"));
-		assertThat(cmvReq1.getVisibilityTimeout(), is(10));
+		assertThat(entries.get(0).getReceiptHandle(), is("rh-1"));
+		assertThat(entries.get(0).getVisibilityTimeout(), is(10));
 		
-		ChangeMessageVisibilityRequest cmvReq2 = captor.getAllValues().get(1);
-		assertThat(cmvReq2.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq2.getReceiptHandle(), is("rh-1"));
-		assertThat(cmvReq2.getVisibilityTimeout(), is(10));
+		assertThat(entries.get(1).getReceiptHandle(), is("rh-1"));
+		assertThat(entries.get(1).getVisibilityTimeout(), is(10));
 	}
 	
 	@Test
@@ -273,47 +479,301 @@ public class SqsMessagePollerTest {
 		sut.setVisibilityTimeout(60);
 		sut.setChangeVisibilityThreshold(1);
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doAnswer(createHeavyJobAnswer(24, false)).when(messageHandler).accept(any(Message.class));
+		stubChangeMessageVisibilityBatch();
 		// exercise
 		sut.loop();
+		awaitIdle();
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs, never()).deleteMessage(eq(expectedDmr)); // retry attempt exceeded
-		verify(sqs, times(3)).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		verify(sqs, after(500).never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class)); // retry attempt exceeded
+		assertThat(changedVisibilityEntries().size(), is(3));
 	}
 	
 	@Test
 	public void test_1MessageWithFailureHandler() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doThrow(RuntimeException.class).when(messageHandler).accept(any(Message.class));
 		// exercise
 		sut.loop();
+		awaitIdle();
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs, never()).deleteMessage(eq(expectedDmr));
-		verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		verify(sqs, after(500).never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		verify(sqs, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
 	}
 	
 	@Test
 	public void test_1HeavyMessageWithFailureHandler() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doAnswer(createHeavyJobAnswer(4, true)).when(messageHandler).accept(any(Message.class));
+		stubChangeMessageVisibilityBatch();
 		// exercise
 		sut.loop();
+		awaitIdle();
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs, never()).deleteMessage(eq(expectedDmr));
-		verify(sqs).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		verify(sqs, after(500).never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		assertThat(changedVisibilityEntries().size(), is(1));
+	}
+	
+	@Test
+	public void test_3MessageWithBatchHandler() throws Exception {
+		// setup
+		useBatchMessageHandler();
+		Message msg1 = createMessage(1);
+		Message msg2 = createMessage(2);
+		Message msg3 = createMessage(3);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(msg1, msg2, msg3));
+		when(batchMessageHandler.handle(any())).thenReturn(Collections.emptyList());
+		stubDeleteMessageBatch();
+		// exercise
+		sut.loop();
+		awaitIdle();
+		// verify
+		verify(batchMessageHandler).handle(eq(Arrays.asList(msg1, msg2, msg3)));
+		verify(messageHandler, never()).accept(any(Message.class));
+		assertThat(deletedReceiptHandles(3), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		verify(sqs, times(1)).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+	}
+	
+	@Test
+	public void test_3MessageWithPartialFailureBatchHandler() throws Exception {
+		// setup
+		useBatchMessageHandler();
+		Message msg1 = createMessage(1);
+		Message msg2 = createMessage(2);
+		Message msg3 = createMessage(3);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(msg1, msg2, msg3));
+		when(batchMessageHandler.handle(any())).thenReturn(Collections.singleton("mid-2"));
+		stubDeleteMessageBatch();
+		// exercise
+		sut.loop();
+		awaitIdle();
+		// verify
+		verify(batchMessageHandler).handle(eq(Arrays.asList(msg1, msg2, msg3)));
+		assertThat(deletedReceiptHandles(2), containsInAnyOrder("rh-1", "rh-3"));
+	}
+	
+	@Test
+	public void test_3MessageWithFailureBatchHandler() throws Exception {
+		// setup
+		useBatchMessageHandler();
+		Message msg1 = createMessage(1);
+		Message msg2 = createMessage(2);
+		Message msg3 = createMessage(3);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(msg1, msg2, msg3));
+		doThrow(RuntimeException.class).when(batchMessageHandler).handle(any());
+		// exercise
+		sut.loop();
+		awaitIdle();
+		// verify
+		verify(batchMessageHandler).handle(eq(Arrays.asList(msg1, msg2, msg3)));
+		verify(sqs, after(500).never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+	}
+	
+	@Test
+	public void test_overLimit_backOffWithoutBlocking() throws Exception {
+		// setup
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenThrow(new OverLimitException("over limit"));
+		sut.setBackoffPolicy((cause, count, previous) -> cause == Cause.THROTTLED ? 60000 : 0);
+		// exercise
+		long start = System.currentTimeMillis();
+		ReceiveOutcome first = sut.poll();
+		ReceiveOutcome second = sut.poll();
+		long elapsed = System.currentTimeMillis() - start;
+		// verify
+		verify(sqs, times(1)).receiveMessage(any(ReceiveMessageRequest.class));
+		assertThat(first.isBackingOff(), is(true));
+		assertThat(second.isBackingOff(), is(true));
+		assertThat(elapsed < 5000, is(true));
+		assertThat(sut.getConsecutiveReceiveFailures(), is(1));
+		assertThat(sut.getLastBackoffMillis(), is(60000L));
+		assertThat(sut.getBackoffRemainingMillis() > 50000, is(true));
+		assertThat(sut.getInFlightMessageCount(), is(0));
+	}
+	
+	@Test
+	public void test_failureRecovered_resetBackoff() throws Exception {
+		// setup
+		Message msg1 = createMessage(1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenThrow(new AmazonClientException("network"))
+			.thenReturn(receiveMessageResultOf(msg1));
+		stubDeleteMessageBatch();
+		sut.setBackoffPolicy((cause, count, previous) -> cause == Cause.FAILED ? 100 : 0);
+		// exercise
+		sut.poll();
+		assertThat(sut.getConsecutiveReceiveFailures(), is(1));
+		while (sut.poll().isBackingOff()) {
+			// wait for backoff
+		}
+		awaitIdle();
+		// verify
+		verify(messageHandler).accept(eq(msg1));
+		assertThat(sut.getConsecutiveReceiveFailures(), is(0));
+		assertThat(sut.getLastBackoffMillis(), is(0L));
+	}
+	
+	@Test
+	public void test_emptyReceives_idleBackoff() throws Exception {
+		// setup
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf());
+		DecorrelatedJitterBackoffPolicy policy = new DecorrelatedJitterBackoffPolicy();
+		policy.setIdleThreshold(2);
+		policy.setIdleBaseMillis(60000);
+		policy.setIdleCapMillis(60000);
+		sut.setBackoffPolicy(policy);
+		// exercise
+		assertThat(sut.poll().isEmpty(), is(true));
+		assertThat(sut.getBackoffRemainingMillis(), is(0L));
+		assertThat(sut.poll().isEmpty(), is(true));
+		assertThat(sut.poll().isBackingOff(), is(true));
+		// verify
+		verify(sqs, times(2)).receiveMessage(any(ReceiveMessageRequest.class));
+		assertThat(sut.getConsecutiveEmptyReceives(), is(2));
+		assertThat(sut.getLastBackoffMillis(), is(60000L));
+	}
+	
+	@Test
+	public void test_fifoMessages_orderedWithinGroup() throws Exception {
+		// setup
+		Message a1 = createFifoMessage(1, "a");
+		Message b1 = createFifoMessage(2, "b");
+		Message a2 = createFifoMessage(3, "a");
+		Message a3 = createFifoMessage(4, "a");
+		Message b2 = createFifoMessage(5, "b");
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(a1, b1, a2, a3, b2));
+		stubDeleteMessageBatch();
+		List<String> handled = Collections.synchronizedList(new ArrayList<>());
+		doAnswer(invocation -> {
+			Message message = invocation.getArgument(0);
+			Thread.sleep(50);
+			handled.add(message.getMessageId());
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		// exercise
+		sut.loop();
+		awaitIdle();
+		// verify
+		List<String> groupA = handled.stream().filter(Arrays.asList("mid-1", "mid-3", "mid-4")::contains)
+			.collect(Collectors.toList());
+		List<String> groupB = handled.stream().filter(Arrays.asList("mid-2", "mid-5")::contains)
+			.collect(Collectors.toList());
+		assertThat(groupA, is(Arrays.asList("mid-1", "mid-3", "mid-4")));
+		assertThat(groupB, is(Arrays.asList("mid-2", "mid-5")));
+		assertThat(deletedReceiptHandles(5), containsInAnyOrder("rh-1", "rh-2", "rh-3", "rh-4", "rh-5"));
+		assertThat(sut.getActiveMessageGroupCount(), is(0));
+	}
+	
+	@Test
+	public void test_fifoMessages_skipRestOfGroupOnFailure() throws Exception {
+		// setup
+		Message a1 = createFifoMessage(1, "a");
+		Message a2 = createFifoMessage(2, "a");
+		Message b1 = createFifoMessage(3, "b");
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(a1, a2, b1));
+		stubDeleteMessageBatch();
+		doThrow(RuntimeException.class).when(messageHandler).accept(eq(a1));
+		// exercise
+		sut.loop();
+		awaitIdle();
+		// verify
+		verify(messageHandler).accept(eq(a1));
+		verify(messageHandler, never()).accept(eq(a2));
+		verify(messageHandler).accept(eq(b1));
+		assertThat(deletedReceiptHandles(1), containsInAnyOrder("rh-3"));
+		assertThat(sut.getActiveMessageGroupCount(), is(0));
+	}
+	
+	@Test
+	public void test_fifoMessages_boundedGroupParallelism() throws Exception {
+		// setup
+		sut.setMaxConcurrentMessageGroups(1);
+		Message a1 = createFifoMessage(1, "a");
+		Message b1 = createFifoMessage(2, "b");
+		Message c1 = createFifoMessage(3, "c");
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(a1, b1, c1));
+		stubDeleteMessageBatch();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		doAnswer(invocation -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(50);
+			running.decrementAndGet();
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		// exercise
+		sut.loop();
+		awaitIdle();
+		// verify
+		assertThat(deletedReceiptHandles(3), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		assertThat(maxRunning.get(), is(1));
+	}
+	
+	@Test
+	public void test_metrics() throws Exception {
+		// setup
+		InProcessSqsPollerMetrics metrics = new InProcessSqsPollerMetrics();
+		sut.setMetrics(metrics);
+		Message msg1 = createMessage(1);
+		Message msg2 = createMessage(2);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(msg1, msg2))
+			.thenReturn(receiveMessageResultOf());
+		doThrow(RuntimeException.class).when(messageHandler).accept(eq(msg2));
+		stubDeleteMessageBatch();
+		// exercise
+		sut.loop();
+		sut.loop();
+		awaitIdle();
+		sut.destroy();
+		// verify
+		assertThat(metrics.getReceiveLatency().getCount(), is(2L));
+		assertThat(metrics.getMessagesPerReceive().getSum(), is(2L));
+		assertThat(metrics.getEmptyReceives(), is(1L));
+		assertThat(metrics.getEmptyReceiveRatio(), is(0.5));
+		assertThat(metrics.getHandlerLatency().getCount(), is(2L));
+		assertThat(metrics.getHandlerFailures(), is(1L));
+		assertThat(metrics.getVisibilityExtensions().getCount(), is(2L));
+		assertThat(metrics.getDeleteLatency().getCount(), is(1L));
+		assertThat(metrics.getDeletedMessages(), is(1L));
+		assertThat(sut.getExecutorQueueDepth(), is(0));
+	}
+	
+	@Test
+	public void test_virtualThreads() throws Exception {
+		// setup
+		boolean enabled = sut.enableVirtualThreads();
+		Message msg1 = createMessage(1);
+		Message msg2 = createMessage(2);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(msg1, msg2));
+		stubDeleteMessageBatch();
+		List<String> threadNames = Collections.synchronizedList(new ArrayList<>());
+		doAnswer(invocation -> {
+			threadNames.add(Thread.currentThread().getName());
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		// exercise
+		sut.loop();
+		awaitIdle();
+		// verify
+		assertThat(deletedReceiptHandles(2), containsInAnyOrder("rh-1", "rh-2"));
+		assertThat(threadNames.stream().allMatch(name -> name.startsWith("sqs-handler-")), is(enabled));
 	}
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.springframework.retry.support.RetryTemplate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+/**
+ * Test for {@link SqsReceiverPool}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class SqsReceiverPoolTest {
+	
+	private static final String Q_URL = "http://example.com";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	@Mock
+	Consumer<Message> messageHandler;
+	
+	SqsMessagePoller poller;
+	
+	SqsReceiverPool sut;
+	
+	AtomicBoolean backlog = new AtomicBoolean(true);
+	
+	AtomicInteger outstanding = new AtomicInteger();
+	
+	AtomicInteger maxOutstanding = new AtomicInteger();
+	
+	AtomicInteger sequence = new AtomicInteger();
+	
+	
+	@Before
+	public void setUp() {
+		poller = new SqsMessagePoller(sqs, new RetryTemplate(), Q_URL, messageHandler);
+		poller.setMaxInFlightMessages(100);
+		sut = new SqsReceiverPool(poller);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+			ReceiveMessageRequest request = invocation.getArgument(0);
+			maxOutstanding.accumulateAndGet(outstanding.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(50); // receive latency
+				ReceiveMessageResult result = new ReceiveMessageResult();
+				if (backlog.get()) {
+					for (int i = 0; i < request.getMaxNumberOfMessages(); i++) {
+						int n = sequence.incrementAndGet();
+						result.withMessages(new Message().withMessageId("mid-" + n).withReceiptHandle("rh-" + n));
+					}
+				}
+				return result;
+			} finally {
+				outstanding.decrementAndGet();
+			}
+		});
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(new DeleteMessageBatchResult());
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		sut.stop();
+		poller.destroy();
+	}
+	
+	@Test
+	public void testScaleUpOnFullReceivesAndScaleDownOnEmptyReceives() throws Exception {
+		// exercise
+		sut.start();
+		Thread.sleep(1000);
+		// verify
+		assertThat(sut.getConcurrency(), is(greaterThan(1)));
+		assertThat(maxOutstanding.get(), is(greaterThan(1)));
+		
+		// exercise
+		backlog.set(false);
+		Thread.sleep(1000);
+		// verify
+		assertThat(sut.getConcurrency(), is(1));
+		assertThat(sut.getActiveReceivers(), is(1));
+	}
+	
+	@Test
+	public void testBackOffAndScaleDownOnUnexpectedPollFailures() throws Exception {
+		// setup
+		AtomicInteger polls = new AtomicInteger();
+		SqsMessagePoller failing = new SqsMessagePoller(sqs, new RetryTemplate(), Q_URL, messageHandler) {
+			
+			@Override
+			public ReceiveOutcome poll() {
+				polls.incrementAndGet();
+				throw new IllegalStateException("poll failure");
+			}
+		};
+		SqsReceiverPool pool = new SqsReceiverPool(failing);
+		pool.setInitialConcurrency(4);
+		try {
+			// exercise
+			pool.start();
+			Thread.sleep(1000);
+			// verify
+			assertThat(polls.get(), is(greaterThan(0)));
+			assertThat(polls.get(), is(lessThan(20)));
+			assertThat(pool.getConcurrency(), is(1));
+		} finally {
+			pool.stop();
+			failing.destroy();
+		}
+	}
+}
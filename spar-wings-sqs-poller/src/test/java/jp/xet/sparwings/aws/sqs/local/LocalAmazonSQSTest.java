@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs.local;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.springframework.retry.support.RetryTemplate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+import jp.xet.sparwings.aws.sqs.SqsMessagePoller;
+
+/**
+ * Test for {@link LocalAmazonSQS}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@SuppressWarnings("javadoc")
+public class LocalAmazonSQSTest {
+	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	LocalAmazonSQS sut;
+	
+	String queueUrl;
+	
+	
+	@Before
+	public void setUp() throws Exception {
+		sut = new LocalAmazonSQS(temporaryFolder.getRoot().toPath());
+		queueUrl = sut.createQueue("test").getQueueUrl();
+	}
+	
+	@After
+	public void tearDown() {
+		sut.shutdown();
+	}
+	
+	private List<Message> receive(int max, int visibilityTimeout) {
+		return sut.receiveMessage(new ReceiveMessageRequest(queueUrl)
+			.withMaxNumberOfMessages(max)
+			.withVisibilityTimeout(visibilityTimeout)
+			.withAttributeNames("ApproximateReceiveCount")).getMessages();
+	}
+	
+	private List<String> bodies(List<Message> messages) {
+		return messages.stream().map(Message::getBody).collect(Collectors.toList());
+	}
+	
+	@Test
+	public void testSendReceiveDelete() {
+		sut.sendMessage(queueUrl, "foo");
+		sut.sendMessage(queueUrl, "bar");
+		List<Message> messages = receive(10, 30);
+		assertThat(bodies(messages), containsInAnyOrder("foo", "bar"));
+		assertThat(messages.get(0).getAttributes().get("ApproximateReceiveCount"), is("1"));
+		assertThat(receive(10, 30), is(empty()));
+		sut.deleteMessageBatch(queueUrl, messages.stream()
+			.map(m -> new DeleteMessageBatchRequestEntry(m.getMessageId(), m.getReceiptHandle()))
+			.collect(Collectors.toList()));
+		assertThat(sut.getQueueAttributes(queueUrl, Collections.singletonList("All")).getAttributes()
+			.get("ApproximateNumberOfMessagesNotVisible"), is("0"));
+	}
+	
+	@Test
+	public void testVisibilityTimeout() throws Exception {
+		sut.sendMessage(queueUrl, "foo");
+		Message first = receive(1, 1).get(0);
+		assertThat(receive(1, 1), is(empty()));
+		Thread.sleep(1100);
+		Message second = receive(1, 30).get(0);
+		assertThat(second.getMessageId(), is(first.getMessageId()));
+		assertThat(second.getAttributes().get("ApproximateReceiveCount"), is("2"));
+	}
+	
+	@Test
+	public void testChangeVisibility() {
+		sut.sendMessage(queueUrl, "foo");
+		Message message = receive(1, 30).get(0);
+		sut.changeMessageVisibilityBatch(queueUrl, Collections.singletonList(
+				new ChangeMessageVisibilityBatchRequestEntry("0", message.getReceiptHandle())
+					.withVisibilityTimeout(0)));
+		List<Message> messages = receive(1, 30);
+		assertThat(bodies(messages), containsInAnyOrder("foo"));
+		// outdated receipt handle can not change visibility
+		assertThat(sut.changeMessageVisibilityBatch(queueUrl, Collections.singletonList(
+				new ChangeMessageVisibilityBatchRequestEntry("0", message.getReceiptHandle())
+					.withVisibilityTimeout(60))).getFailed(), hasSize(1));
+	}
+	
+	@Test(expected = ReceiptHandleIsInvalidException.class)
+	public void testDelete_invalidReceiptHandle() {
+		sut.deleteMessage(queueUrl, "invalid");
+	}
+	
+	@Test
+	public void testLongPolling() throws Exception {
+		long start = System.currentTimeMillis();
+		CompletableFuture<List<Message>> future = CompletableFuture.supplyAsync(() -> sut.receiveMessage(
+				new ReceiveMessageRequest(queueUrl).withWaitTimeSeconds(5)).getMessages());
+		Thread.sleep(200);
+		sut.sendMessage(queueUrl, "foo");
+		assertThat(bodies(future.get()), containsInAnyOrder("foo"));
+		assertThat(System.currentTimeMillis() - start, is(lessThan(4000L)));
+	}
+	
+	@Test
+	public void testRecoverFromLog() {
+		sut.sendMessage(queueUrl, "foo");
+		sut.sendMessage(queueUrl, "bar");
+		sut.sendMessage(queueUrl, "baz");
+		Message bar = receive(10, 30).stream().filter(m -> m.getBody().equals("bar")).findFirst().get();
+		sut.deleteMessage(queueUrl, bar.getReceiptHandle());
+		sut.shutdown();
+		
+		sut = new LocalAmazonSQS(temporaryFolder.getRoot().toPath());
+		queueUrl = sut.createQueue("test").getQueueUrl();
+		assertThat(bodies(receive(10, 30)), containsInAnyOrder("foo", "baz"));
+	}
+	
+	@Test
+	public void testRecoverFromTornWrite() throws Exception {
+		sut.sendMessage(queueUrl, "foo");
+		sut.sendMessage(queueUrl, "bar");
+		sut.shutdown();
+		Path segment = segments().get(0);
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			// find the end of records and write a torn record
+			long position = 0;
+			while (true) {
+				file.seek(position);
+				int length = file.readInt();
+				if (length == 0) {
+					break;
+				}
+				position += 8 + length;
+			}
+			file.seek(position);
+			file.writeInt(100);
+			file.writeInt(12345);
+			file.writeByte(1);
+		}
+		
+		sut = new LocalAmazonSQS(temporaryFolder.getRoot().toPath());
+		queueUrl = sut.createQueue("test").getQueueUrl();
+		assertThat(bodies(receive(10, 30)), containsInAnyOrder("foo", "bar"));
+		sut.sendMessage(queueUrl, "baz");
+		sut.shutdown();
+		
+		sut = new LocalAmazonSQS(temporaryFolder.getRoot().toPath());
+		queueUrl = sut.createQueue("test").getQueueUrl();
+		assertThat(bodies(receive(10, 30)), containsInAnyOrder("foo", "bar", "baz"));
+	}
+	
+	@Test
+	public void testRemoveDeletedSegments() throws Exception {
+		sut.shutdown();
+		sut = new LocalAmazonSQS(temporaryFolder.getRoot().toPath());
+		sut.setSegmentSize(256);
+		queueUrl = sut.createQueue("small").getQueueUrl();
+		for (int i = 0; i < 30; i++) {
+			sut.sendMessage(queueUrl, "message-" + i);
+		}
+		assertThat(segments("small").size() > 1, is(true));
+		List<Message> messages;
+		while ((messages = receive(10, 30)).isEmpty() == false) {
+			for (Message message : messages) {
+				sut.deleteMessage(queueUrl, message.getReceiptHandle());
+			}
+		}
+		assertThat(segments("small"), hasSize(1));
+	}
+	
+	@Test
+	public void testSqsMessagePoller() throws Exception {
+		for (int i = 0; i < 25; i++) {
+			sut.sendMessage(queueUrl, "message-" + i);
+		}
+		Set<String> handled = ConcurrentHashMap.newKeySet();
+		SqsMessagePoller poller = new SqsMessagePoller(sut, new RetryTemplate(), queueUrl,
+				message -> handled.add(message.getBody()));
+		poller.setWaitTimeSeconds(0);
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (handled.size() < 25 && System.currentTimeMillis() < deadline) {
+				poller.poll();
+			}
+			while (poller.getInFlightMessageCount() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		} finally {
+			poller.destroy();
+		}
+		assertThat(handled, hasSize(25));
+		assertThat(sut.getQueueAttributes(queueUrl, Collections.singletonList("All")).getAttributes()
+			.get("ApproximateNumberOfMessages"), is("0"));
+		assertThat(sut.getQueueAttributes(queueUrl, Collections.singletonList("All")).getAttributes()
+			.get("ApproximateNumberOfMessagesNotVisible"), is("0"));
+	}
+	
+	private List<Path> segments() throws Exception {
+		return segments("test");
+	}
+	
+	private List<Path> segments(String queueName) throws Exception {
+		try (Stream<Path> stream = Files.list(temporaryFolder.getRoot().toPath().resolve(queueName))) {
+			return stream.sorted().collect(Collectors.toList());
+		}
+	}
+}